@@ -0,0 +1,51 @@
+plugins {
+    java
+    id("me.champeau.jmh") version "0.7.3"
+}
+
+java {
+    toolchain {
+        languageVersion.set(JavaLanguageVersion.of(17))
+    }
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.release.set(17)
+}
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    jmh(project(":java17"))
+    jmh("io.sigpipe:jbsdiff:1.0")
+}
+
+jmh {
+    // Keep results machine readable so runs from different commits can be compared
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+    fork.set(2)
+    warmupIterations.set(3)
+    iterations.set(5)
+
+    val includes = providers.gradleProperty("jmhIncludes")
+    if (includes.isPresent) {
+        this.includes.add(includes.get())
+    }
+}
+
+// ./gradlew :benchmarks:generateBundle -Plibraries=50 -PlibrarySize=262144 -PserverSize=33554432
+tasks.register<JavaExec>("generateBundle") {
+    group = "benchmark"
+    description = "Writes a synthetic bundle to build/bundle"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("io.papermc.paperclip.SyntheticBundle")
+    args(
+        layout.buildDirectory.dir("bundle").get().asFile.path,
+        providers.gradleProperty("libraries").getOrElse("50"),
+        providers.gradleProperty("librarySize").getOrElse("262144"),
+        providers.gradleProperty("serverSize").getOrElse("33554432")
+    )
+}
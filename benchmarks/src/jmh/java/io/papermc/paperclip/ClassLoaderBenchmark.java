@@ -0,0 +1,121 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Creating the server class loader and loading classes through it, with the plain {@link URLClassLoader} Paperclip
+ * used before and with {@link JarClassLoader}, either indexing the jars from scratch or reusing a saved index. Every
+ * invocation uses a new loader, so each class is really loaded rather than found in the loader's cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ClassLoaderBenchmark {
+
+    // Paper ships about a hundred libraries
+    @Param({"100"})
+    public int jars;
+
+    @Param({"200"})
+    public int classesPerJar;
+
+    @Param({"url", "indexed", "indexed-cached"})
+    public String loader;
+
+    private Path dir;
+    private URL[] urls;
+    private List<String> classes;
+    private List<String> missing;
+    private Path indexFile;
+    private URLClassLoader classLoader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.dir = Files.createTempDirectory("paperclip-bench");
+        this.urls = new URL[this.jars];
+        this.classes = new ArrayList<>();
+        for (int i = 0; i < this.jars; i++) {
+            final Path jar = this.dir.resolve("library-" + i + ".jar");
+            this.classes.addAll(SyntheticBundle.classJar(jar, "org/example/library" + i, 8, this.classesPerJar));
+            this.urls[i] = jar.toUri().toURL();
+        }
+        // Load in a fixed but scattered order, as a server does
+        Collections.shuffle(this.classes, new Random(this.jars));
+
+        // Lookups for things that aren't there, like plugins probing for optional dependencies
+        this.missing = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            this.missing.add("org/example/library" + (i % this.jars) + "/p0/Missing" + i + ".class");
+        }
+
+        this.indexFile = this.dir.resolve("classpath.index");
+        if (this.loader.equals("indexed-cached")) {
+            new JarClassLoader(this.urls, null, this.indexFile, new byte[] {1}).close();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createLoader() throws IOException {
+        this.classLoader = switch (this.loader) {
+            case "url" -> new URLClassLoader(this.urls, null);
+            case "indexed" -> new JarClassLoader(this.urls, null);
+            case "indexed-cached" -> new JarClassLoader(this.urls, null, this.indexFile, new byte[] {1});
+            default -> throw new IllegalArgumentException(this.loader);
+        };
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeLoader() throws IOException {
+        this.classLoader.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (final Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public int loadClasses() throws ClassNotFoundException {
+        int loaded = 0;
+        for (final String name : this.classes) {
+            loaded += Class.forName(name, false, this.classLoader).getModifiers();
+        }
+        return loaded;
+    }
+
+    @Benchmark
+    public int missingResources() {
+        int found = 0;
+        for (final String name : this.missing) {
+            if (this.classLoader.getResource(name) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
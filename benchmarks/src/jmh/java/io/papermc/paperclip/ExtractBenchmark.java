@@ -0,0 +1,120 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Extracting the libraries from the original jar into the repo dir, the same way {@link Paperclip} does. A cold run
+ * starts from an empty repo dir, a warm run finds every file already extracted and recorded in the validation index.
+ * The libraries are either stored or deflated in the jar, and are read either directly from the jar file by
+ * {@link EntryExtractor} or through a stream as with {@code paperclip.streamExtract}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExtractBenchmark {
+
+    @Param({"100"})
+    public int libraries;
+
+    @Param({"262144"})
+    public int librarySize;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"cold", "warm"})
+    public String state;
+
+    @Param({"stored", "deflated"})
+    public String method;
+
+    // EntryExtractor reads its property once, this relies on every trial running in a fresh fork
+    @Param({"direct", "stream"})
+    public String extractor;
+
+    private SyntheticBundle bundle;
+    private FileEntry[] entries;
+    private OriginalJar originalJar;
+    private Path repoDir;
+    private ValidationIndex index;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        System.setProperty("paperclip.streamExtract", Boolean.toString(this.extractor.equals("stream")));
+        this.bundle = SyntheticBundle.generate(
+            Files.createTempDirectory("paperclip-bench"),
+            this.libraries,
+            this.librarySize,
+            0,
+            this.method.equals("stored")
+        );
+        this.entries = this.bundle.libraries();
+        this.originalJar = new OriginalJar(this.bundle.originalJar);
+        this.repoDir = this.bundle.dir.resolve("repo");
+        this.executor = this.threads > 1 ? Util.newExecutor("Paperclip-Worker", this.threads) : null;
+
+        if (this.state.equals("warm")) {
+            this.index = ValidationIndex.load(this.repoDir, false, this.executor);
+            this.extract();
+            this.index.save();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() throws IOException {
+        if (this.state.equals("cold")) {
+            delete(this.repoDir);
+        }
+        this.index = ValidationIndex.load(this.repoDir, false, this.executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        this.originalJar.close();
+        delete(this.bundle.dir);
+    }
+
+    @Benchmark
+    public List<URL> extract() throws IOException {
+        final Path targetDir = this.repoDir.resolve("libraries");
+        final var tasks = new ArrayList<Util.IOTask<URL>>(this.entries.length);
+        for (final FileEntry entry : this.entries) {
+            tasks.add(() -> entry.extractFile(new PatchEntry[0], "libraries", this.originalJar, SyntheticBundle.LIBRARIES_DIR, targetDir, this.index, null));
+        }
+        return Util.invokeAll(this.executor, tasks);
+    }
+
+    private static void delete(final Path dir) throws IOException {
+        if (Files.notExists(dir)) {
+            return;
+        }
+        try (final Stream<Path> files = Files.walk(dir)) {
+            for (final Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
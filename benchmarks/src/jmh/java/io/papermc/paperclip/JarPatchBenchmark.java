@@ -0,0 +1,89 @@
+package io.papermc.paperclip;
+
+import io.sigpipe.jbsdiff.Diff;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Patching a jar with a bsdiff patch of the whole jar, as {@link PatchBenchmark} does, and with a patch in the
+ * {@code entries} format applied by {@link JarPatcher}, on the same pair of jars.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JarPatchBenchmark {
+
+    @Param({"8000"})
+    public int entries;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path dir;
+    private Path oldJar;
+    private Path jarPatch;
+    private Path entryPatch;
+    private Path output;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.dir = Files.createTempDirectory("paperclip-bench");
+        this.oldJar = this.dir.resolve("old.jar");
+        final Path newJar = this.dir.resolve("new.jar");
+        SyntheticBundle.jarPair(this.oldJar, newJar, this.entries, 2048);
+
+        this.jarPatch = this.dir.resolve("jar.patch");
+        try (final OutputStream out = Files.newOutputStream(this.jarPatch)) {
+            Diff.diff(Util.readBytes(this.oldJar), Util.readBytes(newJar), out);
+        }
+        this.entryPatch = this.dir.resolve("entries.patch");
+        SyntheticBundle.entryPatch(this.oldJar, newJar, this.entryPatch);
+        this.output = this.dir.resolve("output.jar");
+
+        // Whole-jar patches don't use it, they can only use one thread
+        this.executor = this.threads > 1 ? Util.newExecutor("Paperclip-Worker", this.threads) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        try (final Stream<Path> files = Files.walk(this.dir)) {
+            for (final Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void wholeJar() throws Exception {
+        try (final OutputStream out = new BufferedOutputStream(Files.newOutputStream(this.output))) {
+            BsdiffPatcher.patch(this.oldJar, this.jarPatch, out);
+        }
+    }
+
+    @Benchmark
+    public void entries() throws Exception {
+        try (final OutputStream out = new BufferedOutputStream(Files.newOutputStream(this.output))) {
+            JarPatcher.patch(this.oldJar, this.entryPatch, out, this.executor == null ? Runnable::run : this.executor);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.papermc.paperclip;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing the list files from the bundle and decoding the hashes in them, and reading the same lists from a
+ * {@link BundleManifest} instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ManifestBenchmark {
+
+    // Current Paper bundles list around a hundred libraries, the larger size shows how parsing scales
+    @Param({"100", "10000"})
+    public int entries;
+
+    private String libraries;
+    private String patches;
+    private String hex;
+    private ByteBuffer manifest;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.libraries = SyntheticBundle.librariesList(this.entries);
+        this.patches = SyntheticBundle.patchesList(this.entries);
+        this.hex = this.libraries.substring(0, 64);
+        this.manifest = ByteBuffer.wrap(BundleManifest.encode(
+            new BundleManifest.Layout(0, 0, 0, 0),
+            "org.example.Main",
+            null,
+            this.parsePatches(),
+            null,
+            this.parseLibraries(),
+            Map.of()
+        ));
+    }
+
+    @Benchmark
+    public FileEntry[] parseLibraries() throws IOException {
+        return FileEntry.parse(new BufferedReader(new StringReader(this.libraries)));
+    }
+
+    @Benchmark
+    public PatchEntry[] parsePatches() throws IOException {
+        return PatchEntry.parse(new BufferedReader(new StringReader(this.patches)));
+    }
+
+    @Benchmark
+    public byte[] fromHex() {
+        return Util.fromHex(this.hex);
+    }
+
+    @Benchmark
+    public BundleManifest decodeManifest() throws IOException {
+        return BundleManifest.decode(this.manifest, null);
+    }
+}
@@ -0,0 +1,67 @@
+package io.papermc.paperclip;
+
+import io.sigpipe.jbsdiff.Patch;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Applying the server patch with the streaming {@link BsdiffPatcher} and with the in-memory jbsdiff patcher it
+ * replaced. Both write the patched jar to disk, as {@link PatchEntry} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PatchBenchmark {
+
+    @Param({"16777216", "67108864"})
+    public int serverSize;
+
+    private SyntheticBundle bundle;
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.bundle = SyntheticBundle.generate(Files.createTempDirectory("paperclip-bench"), 0, 0, this.serverSize, false);
+        this.output = this.bundle.dir.resolve("output.jar");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try (final Stream<Path> files = Files.walk(this.bundle.dir)) {
+            for (final Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void streaming() throws Exception {
+        try (final OutputStream out = new BufferedOutputStream(Files.newOutputStream(this.output))) {
+            BsdiffPatcher.patch(this.bundle.serverJar, this.bundle.patchFile, out);
+        }
+    }
+
+    @Benchmark
+    public void legacy() throws Exception {
+        final byte[] original = Util.readBytes(this.bundle.serverJar);
+        final byte[] patch = Util.readBytes(this.bundle.patchFile);
+        try (final OutputStream out = new BufferedOutputStream(Files.newOutputStream(this.output))) {
+            Patch.patch(original, patch, out);
+        }
+    }
+}
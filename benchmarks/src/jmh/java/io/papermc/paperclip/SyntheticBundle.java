@@ -0,0 +1,333 @@
+package io.papermc.paperclip;
+
+import io.sigpipe.jbsdiff.DefaultDiffSettings;
+import io.sigpipe.jbsdiff.Diff;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+/**
+ * A bundle shaped like the ones paperweight produces, generated from a seed so every benchmark run sees the same data.
+ * The original jar holds the libraries under {@code META-INF/libraries} and the vanilla server jar under
+ * {@code META-INF/versions}, and a bsdiff patch turns that server jar into a slightly modified one.
+ */
+final class SyntheticBundle {
+
+    static final String LIBRARIES_DIR = "/META-INF/libraries";
+    static final String VERSIONS_DIR = "/META-INF/versions";
+
+    final Path dir;
+    final Path originalJar;
+    final Path serverJar;
+    final Path patchedJar;
+    final Path patchFile;
+    final String librariesList;
+    final String patchesList;
+
+    private SyntheticBundle(
+        final Path dir,
+        final Path originalJar,
+        final Path serverJar,
+        final Path patchedJar,
+        final Path patchFile,
+        final String librariesList,
+        final String patchesList
+    ) {
+        this.dir = dir;
+        this.originalJar = originalJar;
+        this.serverJar = serverJar;
+        this.patchedJar = patchedJar;
+        this.patchFile = patchFile;
+        this.librariesList = librariesList;
+        this.patchesList = patchesList;
+    }
+
+    /**
+     * Writes a bundle with {@code libraryCount} libraries of {@code librarySize} bytes each and a server jar of
+     * {@code serverSize} bytes into {@code dir}. A {@code serverSize} of zero skips the server jar and its patch. The
+     * libraries are stored in the original jar if {@code stored} is set, and deflated otherwise.
+     */
+    static SyntheticBundle generate(
+        final Path dir,
+        final int libraryCount,
+        final int librarySize,
+        final int serverSize,
+        final boolean stored
+    ) throws Exception {
+        Files.createDirectories(dir);
+        final var random = new Random(libraryCount * 31L + librarySize);
+
+        final Path serverJar = dir.resolve("server.jar");
+        final Path patchedJar = dir.resolve("server-patched.jar");
+        final Path patchFile = dir.resolve("server.patch");
+        final var patches = new StringBuilder();
+        if (serverSize > 0) {
+            final byte[] original = content(random, serverSize);
+            final byte[] patched = modify(random, original);
+            Files.write(serverJar, original);
+            Files.write(patchedJar, patched);
+            try (final OutputStream out = Files.newOutputStream(patchFile)) {
+                Diff.diff(original, patched, out);
+            }
+            patches.append(patchLine(original, patched, Util.readBytes(patchFile)));
+        }
+
+        final var libraries = new StringBuilder();
+        final Path originalJar = dir.resolve("original.jar");
+        try (final var out = new ZipOutputStream(Files.newOutputStream(originalJar))) {
+            for (int i = 0; i < libraryCount; i++) {
+                final String path = "org/example/library-" + i + "/1.0/library-" + i + "-1.0.jar";
+                final byte[] data = content(random, librarySize);
+                final var entry = new ZipEntry(LIBRARIES_DIR.substring(1) + "/" + path);
+                if (stored) {
+                    final var crc = new CRC32();
+                    crc.update(data);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(data);
+                out.closeEntry();
+                libraries.append(Util.toHex(hash(data))).append('\t')
+                    .append("org.example:library-").append(i).append(":1.0").append('\t')
+                    .append(path).append('\n');
+            }
+            if (serverSize > 0) {
+                out.putNextEntry(new ZipEntry(VERSIONS_DIR.substring(1) + "/server.jar"));
+                out.write(Util.readBytes(serverJar));
+                out.closeEntry();
+            }
+        }
+
+        return new SyntheticBundle(dir, originalJar, serverJar, patchedJar, patchFile, libraries.toString(), patches.toString());
+    }
+
+    FileEntry[] libraries() throws IOException {
+        return FileEntry.parse(new BufferedReader(new StringReader(this.librariesList)));
+    }
+
+    PatchEntry[] patches() throws IOException {
+        return PatchEntry.parse(new BufferedReader(new StringReader(this.patchesList)));
+    }
+
+    /**
+     * A libraries.list with {@code count} entries, without writing the libraries themselves.
+     */
+    static String librariesList(final int count) {
+        final var random = new Random(count);
+        final var list = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            list.append(Util.toHex(content(random, 32))).append('\t')
+                .append("org.example:library-").append(i).append(":1.0").append('\t')
+                .append("org/example/library-").append(i).append("/1.0/library-").append(i).append("-1.0.jar").append('\n');
+        }
+        return list.toString();
+    }
+
+    /**
+     * A patches.list with {@code count} entries, without writing the patches themselves.
+     */
+    static String patchesList(final int count) {
+        final var random = new Random(count);
+        final var list = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            list.append("versions").append('\t')
+                .append(Util.toHex(content(random, 32))).append('\t')
+                .append(Util.toHex(content(random, 32))).append('\t')
+                .append(Util.toHex(content(random, 32))).append('\t')
+                .append("server-").append(i).append(".jar").append('\t')
+                .append("server-").append(i).append(".patch").append('\t')
+                .append("server-").append(i).append(".jar").append('\n');
+        }
+        return list.toString();
+    }
+
+    /**
+     * Writes a jar of {@code classCount} empty classes spread over {@code packageCount} packages under
+     * {@code prefix}, and returns the names of the classes in it.
+     */
+    static List<String> classJar(final Path jar, final String prefix, final int packageCount, final int classCount) throws IOException {
+        final var names = new ArrayList<String>(classCount);
+        try (final var out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (int i = 0; i < classCount; i++) {
+                final String name = prefix + "/p" + (i % packageCount) + "/C" + i;
+                out.putNextEntry(new ZipEntry(name + ".class"));
+                out.write(emptyClass(name));
+                out.closeEntry();
+                names.add(name.replace('/', '.'));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Writes a jar of {@code entryCount} entries of about {@code entrySize} bytes to {@code oldJar}, and a newer
+     * version of it to {@code newJar} in which about one entry in twenty is changed, one in a hundred removed and one
+     * in a hundred added, roughly what Paper does to the vanilla server jar.
+     */
+    static void jarPair(final Path oldJar, final Path newJar, final int entryCount, final int entrySize) throws IOException {
+        final var random = new Random(entryCount * 31L + entrySize);
+        try (
+            final var oldOut = new ZipOutputStream(Files.newOutputStream(oldJar));
+            final var newOut = new ZipOutputStream(Files.newOutputStream(newJar))
+        ) {
+            for (int i = 0; i < entryCount; i++) {
+                final String name = "net/example/p" + (i % 64) + "/C" + i + ".class";
+                final byte[] data = content(random, entrySize / 2 + random.nextInt(entrySize));
+                final int change = random.nextInt(100);
+
+                oldOut.putNextEntry(new ZipEntry(name));
+                oldOut.write(data);
+                oldOut.closeEntry();
+                if (change == 0) {
+                    continue;
+                }
+
+                newOut.putNextEntry(new ZipEntry(name));
+                newOut.write(change < 6 ? modify(random, data) : data);
+                newOut.closeEntry();
+                if (change == 1) {
+                    newOut.putNextEntry(new ZipEntry("io/example/Added" + i + ".class"));
+                    newOut.write(content(random, entrySize));
+                    newOut.closeEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a patch in the {@code entries} format turning {@code oldJar} into {@code newJar}, see {@link JarPatcher}.
+     * The patched jar has the same entries as {@code newJar}, but isn't the same file.
+     */
+    static void entryPatch(final Path oldJar, final Path newJar, final Path patchFile) throws Exception {
+        final ZipIndex oldIndex = ZipIndex.map(oldJar);
+        final ZipIndex newIndex = ZipIndex.map(newJar);
+        final List<ZipIndex.Entry> entries = newIndex.entries();
+        entries.sort(Comparator.comparingLong(ZipIndex.Entry::localHeaderOffset));
+
+        final var index = new StringBuilder();
+        try (final var out = new ZipOutputStream(Files.newOutputStream(patchFile))) {
+            for (final ZipIndex.Entry entry : entries) {
+                final byte[] data = newIndex.read(entry);
+                final ZipIndex.Entry old = oldIndex.entry(entry.name());
+                if (old != null && Arrays.equals(oldIndex.read(old), data)) {
+                    index.append("copy\t").append(entry.name()).append('\n');
+                    continue;
+                }
+
+                out.putNextEntry(new ZipEntry(entry.name()));
+                if (old != null) {
+                    // gzip rather than bzip2, which needs megabytes of tables for every tiny patch
+                    Diff.diff(oldIndex.read(old), data, out, new DefaultDiffSettings(CompressorStreamFactory.GZIP));
+                    index.append("patch\t");
+                } else {
+                    out.write(data);
+                    index.append("add\t");
+                }
+                out.closeEntry();
+                index.append(entry.name()).append('\n');
+            }
+
+            out.putNextEntry(new ZipEntry(JarPatcher.INDEX_NAME));
+            out.write(index.toString().getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+    }
+
+    /**
+     * The chunk hashes of {@code data} as they would be listed in {@code chunks.list}, see {@link ChunkHashes}.
+     */
+    static ChunkHashes.Chunks chunks(final byte[] data, final int chunkSize) {
+        final byte[][] hashes = new byte[Math.max(1, (data.length + chunkSize - 1) / chunkSize)][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = hash(Arrays.copyOfRange(data, i * chunkSize, Math.min(data.length, (i + 1) * chunkSize)));
+        }
+        return new ChunkHashes.Chunks(data.length, chunkSize, hashes);
+    }
+
+    // The smallest valid class file: a public class extending Object, with no members at all
+    private static byte[] emptyClass(final String name) throws IOException {
+        final var bytes = new ByteArrayOutputStream();
+        final var out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);
+        out.writeShort(5);
+        out.writeByte(7);
+        out.writeShort(2);
+        out.writeByte(1);
+        out.writeUTF(name);
+        out.writeByte(7);
+        out.writeShort(4);
+        out.writeByte(1);
+        out.writeUTF("java/lang/Object");
+        out.writeShort(0x21);
+        out.writeShort(1);
+        out.writeShort(3);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        return bytes.toByteArray();
+    }
+
+    private static String patchLine(final byte[] original, final byte[] patched, final byte[] patch) {
+        return "versions\t" + Util.toHex(hash(original)) + '\t' + Util.toHex(hash(patch)) + '\t' + Util.toHex(hash(patched))
+            + "\tserver.jar\tserver.patch\tserver.jar\n";
+    }
+
+    private static byte[] hash(final byte[] data) {
+        return Util.sha256Digest().digest(data);
+    }
+
+    // Bytes from a small alphabet, which compress about as well as the class files in a real jar
+    private static byte[] content(final Random random, final int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('A' + random.nextInt(24));
+        }
+        return data;
+    }
+
+    // Changes about one byte in a hundred and grows the data by a few percent, roughly what a Paper patch does
+    private static byte[] modify(final Random random, final byte[] original) {
+        final byte[] patched = new byte[original.length + original.length / 32];
+        System.arraycopy(original, 0, patched, 0, original.length);
+        for (int i = 0; i < original.length / 100; i++) {
+            patched[random.nextInt(original.length)] = (byte) random.nextInt(256);
+        }
+        for (int i = original.length; i < patched.length; i++) {
+            patched[i] = (byte) ('a' + random.nextInt(24));
+        }
+        return patched;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 4 && args.length != 5) {
+            System.err.println("Usage: SyntheticBundle <dir> <libraries> <library size> <server size> [stored]");
+            System.exit(1);
+        }
+
+        final Path dir = Path.of(args[0]);
+        final SyntheticBundle bundle = generate(dir, Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), args.length == 5 && args[4].equals("stored"));
+        Files.writeString(dir.resolve("libraries.list"), bundle.librariesList);
+        Files.writeString(dir.resolve("patches.list"), bundle.patchesList);
+        System.out.println("Wrote bundle to " + dir.toAbsolutePath());
+    }
+}
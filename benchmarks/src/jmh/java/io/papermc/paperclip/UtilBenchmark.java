@@ -0,0 +1,87 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Reading and hashing a single file, as done for every library and patched jar on startup. {@code failingChunks}
+ * checks the same file against 1 MiB chunk hashes on a pool of {@code paperclip.threads} threads, as done for files
+ * listed in {@code chunks.list}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UtilBenchmark {
+
+    // 16 KiB, about a small library, and 64 MiB, about a patched server jar
+    @Param({"16384", "67108864"})
+    public int size;
+
+    private Path file;
+    private byte[] hash;
+    private ChunkHashes.Chunks chunks;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final byte[] data = new byte[this.size];
+        new Random(this.size).nextBytes(data);
+        this.file = Files.createTempFile("paperclip-bench", ".jar");
+        Files.write(this.file, data);
+        this.hash = Util.hashFile(this.file);
+        this.chunks = SyntheticBundle.chunks(data, 1024 * 1024);
+        final int threads = Util.threadCount("paperclip.threads");
+        this.executor = threads > 1 ? Util.newExecutor("Paperclip-Worker", threads) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        Files.deleteIfExists(this.file);
+    }
+
+    @Benchmark
+    public byte[] readFully() throws IOException {
+        try (final InputStream in = Files.newInputStream(this.file)) {
+            return Util.readFully(in);
+        }
+    }
+
+    @Benchmark
+    public byte[] readBytes() {
+        return Util.readBytes(this.file);
+    }
+
+    @Benchmark
+    public byte[] hashFile() throws IOException {
+        return Util.hashFile(this.file);
+    }
+
+    @Benchmark
+    public boolean isFileValid() {
+        return Util.isFileValid(this.file, this.hash);
+    }
+
+    @Benchmark
+    public BitSet failingChunks() throws IOException {
+        return this.chunks.failing(this.file, this.executor);
+    }
+}
@@ -0,0 +1,170 @@
+package io.papermc.paperclip;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Applies bsdiff patches in the format jbsdiff writes, without loading either file onto the heap. The old file is read
+ * with positional reads, the control, diff and extra blocks are decompressed as streams and the output is written as
+ * it is produced, so memory use stays the same no matter how large the jars are. The output is byte for byte the same
+ * as {@code io.sigpipe.jbsdiff.Patch}.
+ */
+final class BsdiffPatcher {
+
+    private static final byte[] MAGIC = "BSDIFF40".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 32;
+    private static final int CONTROL_SIZE = 24;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BsdiffPatcher() {}
+
+    /**
+     * @return the length of the file {@code patchFile} produces, as its header says
+     */
+    static long outputLength(final Path patchFile) throws IOException {
+        return readOffset(readHeader(patchFile), 24);
+    }
+
+    static void patch(final Path oldFile, final Path patchFile, final OutputStream out) throws IOException, CompressorException {
+        final byte[] header = readHeader(patchFile);
+        final long controlLength = readOffset(header, 8);
+        final long diffLength = readOffset(header, 16);
+        final long outputLength = readOffset(header, 24);
+        if (controlLength < 0 || diffLength < 0 || outputLength < 0) {
+            throw new IOException("Invalid bsdiff header lengths");
+        }
+
+        try (
+            final FileChannel oldChannel = FileChannel.open(oldFile, READ);
+            final InputStream controlIn = openBlock(patchFile, HEADER_SIZE);
+            final InputStream diffIn = openBlock(patchFile, HEADER_SIZE + controlLength);
+            final InputStream extraIn = openBlock(patchFile, HEADER_SIZE + controlLength + diffLength)
+        ) {
+            final long oldSize = oldChannel.size();
+            final byte[] control = new byte[CONTROL_SIZE];
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            final ByteBuffer oldBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+            long newPos = 0;
+            long oldPos = 0;
+            while (newPos < outputLength) {
+                readExactly(controlIn, control, CONTROL_SIZE);
+                final long diff = readOffset(control, 0);
+                final long extra = readOffset(control, 8);
+                final long seek = readOffset(control, 16);
+                if (diff < 0 || extra < 0 || newPos + diff + extra > outputLength) {
+                    throw new IOException("Corrupt bsdiff control block");
+                }
+
+                // Diff string: patch bytes added to the old bytes at the same position
+                long remaining = diff;
+                while (remaining > 0) {
+                    final int count = (int) Math.min(remaining, BUFFER_SIZE);
+                    readExactly(diffIn, buffer, count);
+                    addOld(oldChannel, oldSize, oldPos, buffer, count, oldBuffer);
+                    out.write(buffer, 0, count);
+                    oldPos += count;
+                    remaining -= count;
+                }
+                newPos += diff;
+
+                // Extra string: copied to the output as is
+                remaining = extra;
+                while (remaining > 0) {
+                    final int count = (int) Math.min(remaining, BUFFER_SIZE);
+                    readExactly(extraIn, buffer, count);
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+                newPos += extra;
+                oldPos += seek;
+            }
+        }
+    }
+
+    private static InputStream openBlock(final Path patchFile, final long offset) throws IOException, CompressorException {
+        final InputStream in = Files.newInputStream(patchFile);
+        try {
+            in.skipNBytes(offset);
+            return new CompressorStreamFactory().createCompressorInputStream(new BufferedInputStream(in));
+        } catch (final IOException | CompressorException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static void addOld(
+        final FileChannel oldChannel,
+        final long oldSize,
+        final long oldPos,
+        final byte[] buffer,
+        final int count,
+        final ByteBuffer oldBuffer
+    ) throws IOException {
+        // Positions outside of the old file add nothing, same as jbsdiff
+        final long start = Math.max(oldPos, 0);
+        final long end = Math.min(oldPos + count, oldSize);
+        if (start >= end) {
+            return;
+        }
+
+        oldBuffer.clear().limit((int) (end - start));
+        long position = start;
+        while (oldBuffer.hasRemaining()) {
+            final int read = oldChannel.read(oldBuffer, position);
+            if (read < 0) {
+                throw new IOException("Old file ended early");
+            }
+            position += read;
+        }
+
+        final byte[] old = oldBuffer.array();
+        final int offset = (int) (start - oldPos);
+        for (int i = 0; i < oldBuffer.limit(); i++) {
+            buffer[offset + i] += old[i];
+        }
+    }
+
+    private static byte[] readHeader(final Path patchFile) throws IOException {
+        final byte[] header = new byte[HEADER_SIZE];
+        try (final InputStream headerIn = Files.newInputStream(patchFile)) {
+            if (headerIn.readNBytes(header, 0, HEADER_SIZE) != HEADER_SIZE) {
+                throw new IOException("Patch file is too short to contain a bsdiff header");
+            }
+        }
+        if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException("Invalid bsdiff header magic");
+        }
+        return header;
+    }
+
+    private static void readExactly(final InputStream in, final byte[] buffer, final int count) throws IOException {
+        if (in.readNBytes(buffer, 0, count) != count) {
+            throw new IOException("Corrupt patch, block ended early");
+        }
+    }
+
+    // bsdiff stores offsets as 8 byte little endian sign-magnitude numbers
+    private static long readOffset(final byte[] buffer, final int index) {
+        long value = buffer[index + 7] & 0x7F;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (buffer[index + i] & 0xFF);
+        }
+        if ((buffer[index + 7] & 0x80) != 0) {
+            value = -value;
+        }
+        return value;
+    }
+}
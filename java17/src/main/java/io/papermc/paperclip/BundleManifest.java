@@ -0,0 +1,646 @@
+package io.papermc.paperclip;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An optional binary form of everything Paperclip otherwise reads from the text files in {@code META-INF}: the
+ * patches, versions and libraries lists, the download context and the main class, with every hash as raw bytes. It
+ * also records where each file to extract or patch with is stored in our jar, the offset of its data, its sizes and
+ * its compression method, so those are read straight from a mapping of the jar without looking them up.
+ *
+ * <p>The manifest is added to a finished jar at build time, by running this class with the jar as its argument. It is
+ * stored as the last entry, {@value #ENTRY_NAME}, and the comment of the end of central directory record says where,
+ * so finding it only takes reading the end of the jar. The manifest records the size of the jar and where its central
+ * directory is, along with a CRC of the directory, so a jar without one, or one that was changed after the manifest
+ * was added, is read from the text files as before.</p>
+ */
+final class BundleManifest {
+
+    static final String ENTRY_NAME = "META-INF/paperclip.manifest";
+
+    // "PCMF"
+    private static final int MAGIC = 0x50434d46;
+    private static final int VERSION = 2;
+    private static final int HASH_LENGTH = 32;
+    private static final int END_SIZE = 22;
+    private static final int CENTRAL_SIZE = 46;
+    // The magic, then the offset and length of the manifest data
+    private static final int COMMENT_SIZE = 12;
+    // 1980-01-01, the earliest date a zip entry can have
+    private static final short DOS_DATE = (1 << 5) | 1;
+
+    private static BundleManifest manifest;
+    private static boolean loaded = false;
+
+    private final ByteBuffer data;
+    private final ByteBuffer jar;
+    private final String mainClass;
+    private final DownloadContext downloadContext;
+    private final PatchEntry[] patches;
+    private final FileEntry[] versions;
+    private final FileEntry[] libraries;
+    private final Map<String, Resource> resources;
+
+    private BundleManifest(
+        final ByteBuffer data,
+        final ByteBuffer jar,
+        final String mainClass,
+        final DownloadContext downloadContext,
+        final PatchEntry[] patches,
+        final FileEntry[] versions,
+        final FileEntry[] libraries,
+        final Map<String, Resource> resources
+    ) {
+        this.data = data;
+        this.jar = jar;
+        this.mainClass = mainClass;
+        this.downloadContext = downloadContext;
+        this.patches = patches;
+        this.versions = versions;
+        this.libraries = libraries;
+        this.resources = resources;
+    }
+
+    /**
+     * @return the manifest of our jar, or {@code null} if it has none, in which case the text files are used
+     */
+    static synchronized BundleManifest get() {
+        if (!loaded) {
+            loaded = true;
+            final Path jar;
+            try {
+                jar = Util.ownJar();
+            } catch (final IOException e) {
+                // Fine for a Paperclip run from the classes directory, the text files work just the same
+                return null;
+            }
+            try {
+                manifest = load(jar);
+            } catch (final IOException | RuntimeException e) {
+                System.err.println("Failed to read the bundle manifest, using the text files instead (" + e + ")");
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Opens the resource at {@code path} in our jar, from the offset the manifest gives for it if there is one.
+     *
+     * @return the stream, or {@code null} if there is no such resource
+     */
+    static InputStream resource(final String path) throws IOException {
+        final BundleManifest manifest = get();
+        if (manifest != null) {
+            final InputStream stream = manifest.open(path);
+            if (stream != null) {
+                return stream;
+            }
+        }
+        return BundleManifest.class.getResourceAsStream(path);
+    }
+
+    /**
+     * @return the manifest of {@code jarFile}, or {@code null} if it has none or it was made for a different jar
+     */
+    static BundleManifest load(final Path jarFile) throws IOException {
+        try (final FileChannel channel = FileChannel.open(jarFile, READ)) {
+            final long size = channel.size();
+            if (size < END_SIZE + COMMENT_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            final ByteBuffer tail = ByteBuffer.allocate(END_SIZE + COMMENT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (tail.hasRemaining()) {
+                if (channel.read(tail, size - tail.capacity() + tail.position()) < 0) {
+                    return null;
+                }
+            }
+            if (tail.getInt(0) != 0x06054b50 || Short.toUnsignedInt(tail.getShort(20)) != COMMENT_SIZE || tail.getInt(END_SIZE) != MAGIC) {
+                return null;
+            }
+            final int offset = tail.getInt(END_SIZE + 4);
+            final int length = tail.getInt(END_SIZE + 8);
+            if (offset < 0 || length < 0 || (long) offset + length > size) {
+                return null;
+            }
+
+            // The mapping stays valid after the channel is closed
+            final ByteBuffer jar = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return decode(jar.slice(offset, length), jar);
+        }
+    }
+
+    /**
+     * Reads a manifest from {@code data}. {@code jar} is the jar it was found in, or {@code null} if there is none and
+     * the resources in the manifest can't be opened.
+     *
+     * @return the manifest, or {@code null} if it was made for a different jar than {@code jar}
+     */
+    static BundleManifest decode(final ByteBuffer data, final ByteBuffer jar) throws IOException {
+        final ByteBuffer in = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            final var layout = new Layout(in.getLong(), in.getLong(), in.getLong(), in.getInt());
+            if (jar != null && !layout.matches(jar)) {
+                return null;
+            }
+
+            final String mainClass = in.get() != 0 ? readString(in) : null;
+            final DownloadContext downloadContext;
+            if (in.get() != 0) {
+                downloadContext = new DownloadContext(readHash(in), URI.create(readString(in)).toURL(), readString(in));
+            } else {
+                downloadContext = null;
+            }
+
+            final PatchEntry[] patches = new PatchEntry[in.getInt()];
+            for (int i = 0; i < patches.length; i++) {
+                patches[i] = new PatchEntry(
+                    readString(in),
+                    readHash(in),
+                    readHash(in),
+                    readHash(in),
+                    readString(in),
+                    readString(in),
+                    readString(in),
+                    PatchEntry.Format.values()[in.get()]
+                );
+            }
+            final FileEntry[] versions = readFileEntries(in);
+            final FileEntry[] libraries = readFileEntries(in);
+
+            final int resourceCount = in.getInt();
+            final var resources = new HashMap<String, Resource>(resourceCount * 2);
+            for (int i = 0; i < resourceCount; i++) {
+                final String name = readString(in);
+                final var resource = new Resource(in.get(), in.getLong(), in.getLong(), in.getLong());
+                if (resource.offset() < 0 || resource.compressedSize() < 0 || resource.size() < 0) {
+                    throw new ZipException("Resource " + name + " has a negative offset or size");
+                }
+                // The data of every entry comes before the central directory
+                if (jar != null && resource.offset() + resource.compressedSize() > layout.directoryOffset()) {
+                    throw new ZipException("Resource " + name + " is outside of the jar");
+                }
+                resources.put(name, resource);
+            }
+
+            return new BundleManifest(data, jar, mainClass, downloadContext, patches, versions, libraries, resources);
+        } catch (final RuntimeException | MalformedURLException e) {
+            throw new IOException("Malformed bundle manifest", e);
+        }
+    }
+
+    /**
+     * The raw manifest, which identifies the contents of the bundle as well as the text files it was made from.
+     */
+    ByteBuffer data() {
+        return this.data.duplicate();
+    }
+
+    String mainClass() {
+        return this.mainClass;
+    }
+
+    DownloadContext downloadContext() {
+        return this.downloadContext;
+    }
+
+    PatchEntry[] patches() {
+        return this.patches.clone();
+    }
+
+    /**
+     * @return the entries of {@code versions.list}, or {@code null} if the bundle has none
+     */
+    FileEntry[] versions() {
+        return this.versions == null ? null : this.versions.clone();
+    }
+
+    /**
+     * @return the entries of {@code libraries.list}, or {@code null} if the bundle has none
+     */
+    FileEntry[] libraries() {
+        return this.libraries == null ? null : this.libraries.clone();
+    }
+
+    /**
+     * @return where the resource at {@code path} is in our jar, or {@code null} if the manifest doesn't list it
+     */
+    Resource find(final String path) {
+        return this.jar == null ? null : this.resources.get(path.startsWith("/") ? path.substring(1) : path);
+    }
+
+    /**
+     * The raw, possibly compressed, data of {@code resource}, from the mapping of our jar.
+     */
+    ByteBuffer data(final Resource resource) {
+        return this.jar.slice((int) resource.offset(), (int) resource.compressedSize());
+    }
+
+    private InputStream open(final String path) {
+        final Resource resource = this.find(path);
+        if (resource == null) {
+            return null;
+        }
+
+        final ByteBuffer data = this.data(resource);
+        return resource.method() == ZipIndex.STORED ? new BufferStream(data) : new InflatingStream(data);
+    }
+
+    /**
+     * Adds a manifest made from the text files in {@code jarFile} to it, replacing the file.
+     */
+    static void add(final Path jarFile) throws IOException {
+        // Read rather than mapped, a mapping would keep the file from being replaced on Windows
+        final byte[] bytes = Files.readAllBytes(jarFile);
+        final ZipIndex jar = ZipIndex.read(ByteBuffer.wrap(bytes));
+        if (jar.entry(ENTRY_NAME) != null) {
+            throw new ZipException(jarFile + " already has a bundle manifest");
+        }
+
+        final String mainClass = readText(jar, "META-INF/main-class");
+        final String downloadContext = readText(jar, "META-INF/download-context");
+        final String patchList = readText(jar, "META-INF/patches.list");
+        final String versionList = readText(jar, "META-INF/versions.list");
+        final String libraryList = readText(jar, "META-INF/libraries.list");
+
+        final PatchEntry[] patches = patchList == null ? new PatchEntry[0] : PatchEntry.parse(new BufferedReader(new StringReader(patchList)));
+        final FileEntry[] versions = versionList == null ? null : FileEntry.parse(new BufferedReader(new StringReader(versionList)));
+        final FileEntry[] libraries = libraryList == null ? null : FileEntry.parse(new BufferedReader(new StringReader(libraryList)));
+
+        final var resources = new HashMap<String, Resource>();
+        addResources(jar, resources, "META-INF/versions/", versions);
+        addResources(jar, resources, "META-INF/libraries/", libraries);
+        for (final PatchEntry patch : patches) {
+            addResource(jar, resources, "META-INF/" + Util.endingSlash(patch.location()) + patch.patchPath());
+        }
+        // Upgrades are still read from their own list, only their patches are found through the manifest
+        final String upgradeList = readText(jar, "META-INF/upgrades.list");
+        if (upgradeList != null) {
+            for (final PatchEntry upgrade : PatchEntry.parse(new BufferedReader(new StringReader(upgradeList)))) {
+                addResource(jar, resources, "META-INF/" + Util.endingSlash(upgrade.location()) + upgrade.patchPath());
+            }
+        }
+
+        final ByteBuffer end = jar.endRecord();
+        final int entryCount = Short.toUnsignedInt(end.getShort(10));
+        final long directorySize = Integer.toUnsignedLong(end.getInt(12));
+        final long directoryOffset = Integer.toUnsignedLong(end.getInt(16));
+        final byte[] name = ENTRY_NAME.getBytes(StandardCharsets.UTF_8);
+        final long dataOffset = directoryOffset + 30 + name.length;
+
+        // The layout of the jar is part of the manifest, but doesn't change the length of it
+        final int length = encode(new Layout(0, 0, 0, 0), mainClass, downloadContext, patches, versions, libraries, resources).length;
+        final long jarSize = dataOffset + length + directorySize + CENTRAL_SIZE + name.length + END_SIZE + COMMENT_SIZE;
+        if (jarSize > Integer.MAX_VALUE || entryCount + 1 >= 0xFFFF) {
+            throw new ZipException("Jar is too large for a bundle manifest");
+        }
+        // The central records of the other entries are copied as they are, only moved along by the manifest
+        final var directoryCrc = new CRC32();
+        directoryCrc.update(bytes, (int) directoryOffset, (int) directorySize);
+        final var layout = new Layout(jarSize, dataOffset + length, directorySize + CENTRAL_SIZE + name.length, (int) directoryCrc.getValue());
+        final byte[] data = encode(layout, mainClass, downloadContext, patches, versions, libraries, resources);
+        final var crc = new CRC32();
+        crc.update(data);
+
+        final ByteBuffer local = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(0x04034b50)
+            .putShort((short) 10)
+            .putShort((short) 0)
+            .putShort((short) ZipIndex.STORED)
+            .putShort((short) 0)
+            .putShort(DOS_DATE)
+            .putInt((int) crc.getValue())
+            .putInt(data.length)
+            .putInt(data.length)
+            .putShort((short) name.length)
+            .putShort((short) 0)
+            .put(name)
+            .flip();
+        final ByteBuffer central = ByteBuffer.allocate(CENTRAL_SIZE + name.length).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(0x02014b50)
+            .putShort((short) 20)
+            .putShort((short) 10)
+            .putShort((short) 0)
+            .putShort((short) ZipIndex.STORED)
+            .putShort((short) 0)
+            .putShort(DOS_DATE)
+            .putInt((int) crc.getValue())
+            .putInt(data.length)
+            .putInt(data.length)
+            .putShort((short) name.length)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putInt(0)
+            .putInt((int) directoryOffset)
+            .put(name)
+            .flip();
+        final ByteBuffer newEnd = ByteBuffer.allocate(END_SIZE + COMMENT_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(0x06054b50)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) (entryCount + 1))
+            .putShort((short) (entryCount + 1))
+            .putInt((int) (directorySize + central.remaining()))
+            .putInt((int) (dataOffset + data.length))
+            .putShort((short) COMMENT_SIZE)
+            .putInt(MAGIC)
+            .putInt((int) dataOffset)
+            .putInt(data.length)
+            .flip();
+
+        final Path tempFile = Util.createTempFile(jarFile);
+        try {
+            try (final OutputStream out = Files.newOutputStream(tempFile, WRITE, TRUNCATE_EXISTING)) {
+                out.write(bytes, 0, (int) directoryOffset);
+                out.write(local.array());
+                out.write(data);
+                out.write(bytes, (int) directoryOffset, (int) directorySize);
+                out.write(central.array());
+                out.write(newEnd.array());
+            }
+            // The jar is a build artifact, it has to keep whatever permissions it was given
+            if (Files.getFileAttributeView(jarFile, PosixFileAttributeView.class) != null) {
+                Files.setPosixFilePermissions(tempFile, Files.getPosixFilePermissions(jarFile));
+            }
+            Util.moveIntoPlace(tempFile, jarFile);
+        } finally {
+            Util.deleteQuietly(tempFile);
+        }
+    }
+
+    static byte[] encode(
+        final Layout layout,
+        final String mainClass,
+        final String downloadContext,
+        final PatchEntry[] patches,
+        final FileEntry[] versions,
+        final FileEntry[] libraries,
+        final Map<String, Resource> resources
+    ) throws IOException {
+        final var bytes = new ByteArrayOutputStream();
+        final var out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(layout.size());
+        out.writeLong(layout.directoryOffset());
+        out.writeLong(layout.directorySize());
+        out.writeInt(layout.directoryCrc());
+
+        out.writeBoolean(mainClass != null);
+        if (mainClass != null) {
+            writeString(out, mainClass);
+        }
+        final DownloadContext context = DownloadContext.parseLine(downloadContext);
+        out.writeBoolean(context != null);
+        if (context != null) {
+            writeHash(out, context.hash());
+            writeString(out, context.url().toString());
+            writeString(out, context.fileName());
+        }
+
+        out.writeInt(patches.length);
+        for (final PatchEntry patch : patches) {
+            writeString(out, patch.location());
+            writeHash(out, patch.originalHash());
+            writeHash(out, patch.patchHash());
+            writeHash(out, patch.outputHash());
+            writeString(out, patch.originalPath());
+            writeString(out, patch.patchPath());
+            writeString(out, patch.outputPath());
+            out.writeByte(patch.format().ordinal());
+        }
+        writeFileEntries(out, versions);
+        writeFileEntries(out, libraries);
+
+        out.writeInt(resources.size());
+        for (final Map.Entry<String, Resource> entry : resources.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeByte(entry.getValue().method());
+            out.writeLong(entry.getValue().offset());
+            out.writeLong(entry.getValue().compressedSize());
+            out.writeLong(entry.getValue().size());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void addResources(final ZipIndex jar, final Map<String, Resource> resources, final String dir, final FileEntry[] entries) throws IOException {
+        if (entries != null) {
+            for (final FileEntry entry : entries) {
+                addResource(jar, resources, dir + entry.path());
+            }
+        }
+    }
+
+    private static void addResource(final ZipIndex jar, final Map<String, Resource> resources, final String name) throws IOException {
+        // Files only found in the original jar, or compressed in some other way, are left to the text lookup
+        final ZipIndex.Entry entry = jar.entry(name);
+        if (entry != null && (entry.method() == ZipIndex.STORED || entry.method() == ZipIndex.DEFLATED)) {
+            resources.put(name, new Resource(entry.method(), jar.dataStart(entry), entry.compressedSize(), entry.size()));
+        }
+    }
+
+    private static String readText(final ZipIndex jar, final String name) throws IOException {
+        final ZipIndex.Entry entry = jar.entry(name);
+        return entry == null ? null : new String(jar.read(entry), StandardCharsets.UTF_8);
+    }
+
+    private static FileEntry[] readFileEntries(final ByteBuffer in) {
+        final int count = in.getInt();
+        if (count < 0) {
+            return null;
+        }
+        final FileEntry[] entries = new FileEntry[count];
+        for (int i = 0; i < count; i++) {
+            entries[i] = new FileEntry(readHash(in), readString(in), readString(in));
+        }
+        return entries;
+    }
+
+    private static void writeFileEntries(final DataOutputStream out, final FileEntry[] entries) throws IOException {
+        if (entries == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(entries.length);
+        for (final FileEntry entry : entries) {
+            writeHash(out, entry.hash());
+            writeString(out, entry.id());
+            writeString(out, entry.path());
+        }
+    }
+
+    private static byte[] readHash(final ByteBuffer in) {
+        final byte[] hash = new byte[HASH_LENGTH];
+        in.get(hash);
+        return hash;
+    }
+
+    private static void writeHash(final DataOutputStream out, final byte[] hash) throws IOException {
+        if (hash.length != HASH_LENGTH) {
+            throw new IOException("Not a SHA-256 hash: " + Util.toHex(hash));
+        }
+        out.write(hash);
+    }
+
+    private static String readString(final ByteBuffer in) {
+        final byte[] bytes = new byte[Short.toUnsignedInt(in.getShort())];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("String too long for the bundle manifest: " + value.substring(0, 64) + "...");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java -cp <paperclip jar> " + BundleManifest.class.getName() + " <paperclip jar>");
+            System.exit(1);
+        }
+        add(Path.of(args[0]));
+    }
+
+    /**
+     * Where a file is stored in our jar: the offset of its data, not of its local header.
+     */
+    record Resource(int method, long offset, long compressedSize, long size) {
+    }
+
+    /**
+     * The jar a manifest was made for: its size, where its central directory is, and the CRC of the central directory
+     * without the record of the manifest itself, which holds the CRC of the manifest.
+     */
+    record Layout(long size, long directoryOffset, long directorySize, int directoryCrc) {
+
+        boolean matches(final ByteBuffer jar) {
+            if (this.size != jar.limit() || this.directoryOffset < 0 || this.directorySize < CENTRAL_SIZE) {
+                return false;
+            }
+            // Our end record is followed by the comment saying where the manifest is
+            final ByteBuffer end = jar.slice(jar.limit() - END_SIZE - COMMENT_SIZE, END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (end.getInt(0) != 0x06054b50
+                || Integer.toUnsignedLong(end.getInt(12)) != this.directorySize
+                || Integer.toUnsignedLong(end.getInt(16)) != this.directoryOffset
+                || this.directoryOffset + this.directorySize > jar.limit() - END_SIZE - COMMENT_SIZE) {
+                return false;
+            }
+
+            final int length = (int) this.directorySize - CENTRAL_SIZE - ENTRY_NAME.length();
+            if (length < 0) {
+                return false;
+            }
+            final var crc = new CRC32();
+            crc.update(jar.slice((int) this.directoryOffset, length));
+            return (int) crc.getValue() == this.directoryCrc;
+        }
+    }
+
+    private static final class BufferStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? Byte.toUnsignedInt(this.buffer.get()) : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            final int read = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+
+    private static final class InflatingStream extends InputStream {
+        private final Inflater inflater = new Inflater(true);
+
+        private InflatingStream(final ByteBuffer data) {
+            this.inflater.setInput(data);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return this.read(single, 0, 1) < 0 ? -1 : Byte.toUnsignedInt(single[0]);
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            try {
+                while (true) {
+                    final int inflated = this.inflater.inflate(bytes, offset, length);
+                    if (inflated > 0) {
+                        return inflated;
+                    }
+                    if (this.inflater.finished()) {
+                        return -1;
+                    }
+                    // All of the data was given up front, asking for more means it is cut short
+                    if (this.inflater.needsInput() || this.inflater.needsDictionary()) {
+                        throw new ZipException("Truncated data in bundle resource");
+                    }
+                }
+            } catch (final DataFormatException e) {
+                throw new ZipException("Invalid data in bundle resource: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+            this.inflater.end();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package io.papermc.paperclip;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Dynamic class data sharing archives of the server classes, enabled with {@code paperclip.cds}. Running with
+ * {@code paperclip.patchonly} as well trains an archive: a second JVM loads and links every class in the versions jars
+ * and dumps them with {@code -XX:ArchiveClassesAtExit}. Later starts which find an archive for their classpath relaunch
+ * the JVM with {@code -XX:SharedArchiveFile}, so those classes are mapped from the archive instead of being parsed and
+ * verified again.
+ *
+ * <p>Archives are named by a hash of the JVM and our own jar, followed by the classpath key. The relaunch is decided
+ * before anything is extracted or patched, so only the first part can be checked then, and the new JVM prints a note if
+ * the classpath has changed since the archive was trained. A different Java install or Paperclip jar simply finds no
+ * archive. The JVM checks the rest itself, an archive it can't use, for example one trained with a very different heap
+ * size, only costs the relaunch.</p>
+ *
+ * <p>The first JVM waits for the relaunched one for as long as the server runs, with whatever heap it was given. So
+ * Paperclip should be started with a small heap, and the heap options of the server passed in
+ * {@code paperclip.cdsJvmArgs}, which the new JVM gets after the options of the first one. A first JVM started with
+ * {@code -XX:+AlwaysPreTouch} and no {@code paperclip.cdsJvmArgs} doesn't relaunch, as its whole heap would stay in
+ * memory next to the server's.</p>
+ */
+final class CdsArchive {
+
+    static final boolean ENABLED = Boolean.getBoolean("paperclip.cds");
+
+    private static final String EXTENSION = ".jsa";
+    private static final List<String> JVM_ARGS = parseArgs(System.getProperty("paperclip.cdsJvmArgs", ""));
+
+    private CdsArchive() {
+    }
+
+    private static List<String> parseArgs(final String args) {
+        return args.isBlank() ? List.of() : List.of(args.trim().split("\\s+"));
+    }
+
+    private static Path dir(final Path repoDir) {
+        return repoDir.resolve("cache").resolve("cds");
+    }
+
+    /**
+     * Where the archive for the classpath identified by {@code classpathKey} is kept.
+     */
+    static Path file(final Path repoDir, final byte[] classpathKey) {
+        return dir(repoDir).resolve(jvmKey() + "-" + Util.toHex(classpathKey) + EXTENSION);
+    }
+
+    // Identifies what the archive depends on besides the classpath
+    private static String jvmKey() {
+        final MessageDigest digest = Util.sha256Digest();
+        for (final String property : List.of("java.home", "java.vm.version", "java.class.path")) {
+            digest.update(System.getProperty(property, "").getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        // The JVM won't use an archive if a jar it was made with has changed, as it would after updating Paperclip
+        for (final String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            try {
+                final Path file = Path.of(entry);
+                if (Files.isRegularFile(file)) {
+                    digest.update((Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (final IOException | InvalidPathException ignored) {
+                // Left to the JVM to check
+            }
+        }
+        return Util.toHex(digest.digest()).substring(0, 16);
+    }
+
+    // Only one archive is kept, whichever classpath it was trained for
+    private static Path find(final Path repoDir) {
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(dir(repoDir), jvmKey() + "-*" + EXTENSION)) {
+            for (final Path file : files) {
+                return file;
+            }
+        } catch (final IOException ignored) {
+            // No archive yet
+        }
+        return null;
+    }
+
+    /**
+     * Whether this JVM is the training run, which dumps its classes when it exits.
+     */
+    static boolean isTraining() {
+        return hasOption("-XX:ArchiveClassesAtExit=");
+    }
+
+    /**
+     * Runs Paperclip again in a new JVM using the archive in {@code repoDir} and exits with its exit code, if there is
+     * an archive and this JVM wasn't given archive options of its own. Otherwise returns and lets this JVM start the
+     * server. Called before any other work, which the new JVM would only do again.
+     */
+    static void relaunch(final Path repoDir, final String[] args) {
+        if (Boolean.getBoolean("paperclip.patchonly") || hasOption("-XX:SharedArchiveFile=")
+            || hasOption("-XX:ArchiveClassesAtExit=") || hasOption("-Xshare:off")) {
+            return;
+        }
+        final Path archive = find(repoDir);
+        if (archive == null) {
+            return;
+        }
+        if (hasOption("-XX:+AlwaysPreTouch") && JVM_ARGS.isEmpty()) {
+            System.err.println("Not relaunching with the class data sharing archive, this JVM's pre-touched heap would stay in "
+                + "memory next to the server's. Start Paperclip with a small heap and pass the server's heap options in "
+                + "paperclip.cdsJvmArgs instead");
+            return;
+        }
+
+        final int exitCode;
+        try {
+            exitCode = run(List.of("-XX:SharedArchiveFile=" + archive.toAbsolutePath(), "-Xshare:auto"), JVM_ARGS, args);
+        } catch (final IOException e) {
+            System.err.println("Failed to relaunch with " + archive + ", starting without it (" + e + ")");
+            return;
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Points out that the archive this JVM was relaunched with was trained for another classpath than
+     * {@code archive}'s, in which case the JVM can use little of it, if anything.
+     */
+    static void checkArchive(final Path archive) {
+        final String option = "-XX:SharedArchiveFile=";
+        for (final String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!argument.startsWith(option)) {
+                continue;
+            }
+            final Path used = Path.of(argument.substring(option.length()));
+            if (used.getParent() != null && used.getParent().equals(archive.toAbsolutePath().getParent())
+                && !used.getFileName().equals(archive.getFileName())) {
+                System.out.println("The class data sharing archive was trained for an older classpath, run with "
+                    + "paperclip.patchonly to train it again");
+            }
+        }
+    }
+
+    /**
+     * Trains the archive {@code archive} in a new JVM. Failing to train only means the server starts without one.
+     */
+    static void train(final Path archive, final String[] args) {
+        if (hasOption("-Xshare:off")) {
+            System.err.println("Not training a class data sharing archive, sharing is turned off");
+            return;
+        }
+
+        try {
+            final Path tempFile = Util.createTempFile(archive);
+            try {
+                final int exitCode = run(List.of("-XX:ArchiveClassesAtExit=" + tempFile.toAbsolutePath(), "-Xlog:cds=error"), List.of(), args);
+                if (exitCode != 0 || Files.size(tempFile) == 0) {
+                    System.err.println("Failed to train a class data sharing archive, the training run exited with " + exitCode);
+                    return;
+                }
+                removeOthers(archive);
+                Util.moveIntoPlace(tempFile, archive);
+            } finally {
+                Util.deleteQuietly(tempFile);
+            }
+        } catch (final IOException e) {
+            System.err.println("Failed to train a class data sharing archive");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The training run itself: loads and links every class in {@code jars} through {@code classLoader}, without
+     * initializing them, so the JVM archives them when it exits.
+     */
+    static void loadClasses(final ClassLoader classLoader, final Collection<URL> jars) {
+        int loaded = 0;
+        for (final URL url : jars) {
+            final ZipIndex jar;
+            try {
+                jar = JarClassLoader.openJar(url);
+            } catch (final IOException e) {
+                System.err.println("Skipping " + url + " in the training run (" + e + ")");
+                continue;
+            }
+
+            for (final String name : jar.names()) {
+                if (!name.endsWith(".class") || name.startsWith("META-INF/") || name.endsWith("module-info.class")
+                    || name.endsWith("package-info.class")) {
+                    continue;
+                }
+                try {
+                    final Class<?> clazz = Class.forName(name.substring(0, name.length() - 6).replace('/', '.'), false, classLoader);
+                    // Only linked classes are archived, and asking for the constructors links without initializing
+                    clazz.getDeclaredConstructors();
+                    loaded++;
+                } catch (final ClassNotFoundException | LinkageError e) {
+                    // Classes depending on optional libraries can't be linked, they are left out of the archive
+                }
+            }
+        }
+        System.out.println("Loaded " + loaded + " classes for the class data sharing archive");
+    }
+
+    // Archives for older classpaths or other JVMs are never used again, only one is kept
+    private static void removeOthers(final Path archive) throws IOException {
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(archive.getParent(), "*" + EXTENSION)) {
+            for (final Path file : files) {
+                if (!file.getFileName().equals(archive.getFileName())) {
+                    Util.deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs Paperclip again in a new JVM with the same options, {@code options} before them and {@code overrides} after
+     * them, with our standard streams, and waits for it to exit. Stopping this JVM stops the new one as well.
+     */
+    private static int run(final List<String> options, final List<String> overrides, final String[] args) throws IOException {
+        final var command = new ArrayList<String>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options);
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        // Later options win, this is how the new JVM gets a heap of its own
+        command.addAll(overrides);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Paperclip.class.getName());
+        command.addAll(List.of(args));
+
+        final Process process = new ProcessBuilder(command).inheritIO().start();
+        // Forward a stop signal so the server can shut down properly
+        final Thread stopChild = new Thread(() -> {
+            process.destroy();
+            waitFor(process);
+        }, "Paperclip-Stop");
+        Runtime.getRuntime().addShutdownHook(stopChild);
+
+        final int exitCode = waitFor(process);
+        try {
+            Runtime.getRuntime().removeShutdownHook(stopChild);
+        } catch (final IllegalStateException ignored) {
+            // Already shutting down, the hook finds the process stopped
+        }
+        return exitCode;
+    }
+
+    private static int waitFor(final Process process) {
+        while (true) {
+            try {
+                return process.waitFor();
+            } catch (final InterruptedException ignored) {
+                // Keep waiting, the server has to exit first
+            }
+        }
+    }
+
+    private static boolean hasOption(final String prefix) {
+        for (final String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (option.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
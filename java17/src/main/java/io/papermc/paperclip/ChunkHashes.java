@@ -0,0 +1,217 @@
+package io.papermc.paperclip;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Hashes of fixed size chunks of the larger files in the bundle, an optional extension to the list files read from
+ * {@code META-INF/chunks.list}. Each line lists the chunks of the file with one root hash, the SHA-256 of the whole file
+ * that {@code versions.list}, {@code libraries.list}, {@code patches.list} or {@code download-context} already name it
+ * by:
+ * <pre>{@code <root hash>\t<size>\t<chunk size>\t<chunk hash>,<chunk hash>,...}</pre>
+ * Each chunk hash is the SHA-256 of that chunk, only the last chunk may be shorter than the chunk size.
+ *
+ * <p>The chunk hashes come from our own jar just like the root hashes, so a file matching all of them is trusted the
+ * same as one matching the root hash. Unlike the root hash they can be checked on several threads at once, on the
+ * executor setup shares, and a file with only a few bad chunks can be repaired by rewriting just those.
+ * Files without chunk hashes are checked against their root hash as before.</p>
+ */
+final class ChunkHashes {
+
+    private static final String FILE_NAME = "/META-INF/chunks.list";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, Chunks> files;
+
+    private ChunkHashes(final Map<String, Chunks> files) {
+        this.files = files;
+    }
+
+    static ChunkHashes load() {
+        final InputStream stream = ChunkHashes.class.getResourceAsStream(FILE_NAME);
+        if (stream == null) {
+            return new ChunkHashes(Map.of());
+        }
+
+        final var files = new HashMap<String, Chunks>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] parts = line.split("\t");
+                if (parts.length != 4) {
+                    throw new IllegalStateException("Invalid chunk hash line: " + line);
+                }
+                files.put(parts[0], Chunks.parse(Long.parseLong(parts[1]), Integer.parseInt(parts[2]), parts[3]));
+            }
+        } catch (final IOException e) {
+            throw Util.fail("Failed to read chunks.list file", e);
+        }
+        return new ChunkHashes(files);
+    }
+
+    /**
+     * @return the chunks of the file with the root hash {@code hash}, or {@code null} if it isn't split into chunks
+     */
+    Chunks find(final byte[] hash) {
+        return this.files.get(Util.toHex(hash));
+    }
+
+    /**
+     * Where the correct data for a file being repaired comes from.
+     */
+    @FunctionalInterface
+    interface Source {
+        /**
+         * Writes the data of the file for each of {@code ranges} into {@code file}, at the same position. The ranges
+         * are in order and don't overlap.
+         */
+        void write(FileChannel file, List<Range> ranges) throws IOException;
+    }
+
+    /**
+     * The bytes from {@code start} up to {@code end} of a file.
+     */
+    record Range(long start, long end) {
+    }
+
+    record Chunks(long size, int chunkSize, byte[][] hashes) {
+
+        private static Chunks parse(final long size, final int chunkSize, final String hashes) {
+            final String[] parts = hashes.split(",");
+            if (chunkSize <= 0 || size < 0 || parts.length != Math.max(1, (size + chunkSize - 1) / chunkSize)) {
+                throw new IllegalStateException("Chunk hashes don't match the size of the file: " + size + "\t" + chunkSize);
+            }
+            final byte[][] result = new byte[parts.length][];
+            for (int i = 0; i < parts.length; i++) {
+                result[i] = Util.fromHex(parts[i]);
+            }
+            return new Chunks(size, chunkSize, result);
+        }
+
+        int count() {
+            return this.hashes.length;
+        }
+
+        /**
+         * Checks every chunk of {@code file}. A chunk the file is too short for fails, and so does the last chunk if the
+         * file is too long.
+         *
+         * @param executor where to check the chunks, or {@code null} to check them one after another
+         * @return the indexes of the chunks which don't match their hash, none if the whole file is valid
+         */
+        BitSet failing(final Path file, final ExecutorService executor) throws IOException {
+            final var all = new BitSet(this.count());
+            all.set(0, this.count());
+            try (final FileChannel channel = FileChannel.open(file, READ)) {
+                return this.failing(channel, all, executor);
+            }
+        }
+
+        /**
+         * Rewrites the {@code failing} chunks of {@code file} in place with data from {@code source}, and sets the file
+         * to the right size. Only the bytes of those chunks are written, the rest of the file is left as it is.
+         *
+         * @return whether every rewritten chunk matches its hash now
+         */
+        boolean repair(final Path file, final BitSet failing, final Source source, final ExecutorService executor) throws IOException {
+            try (final FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+                source.write(channel, this.ranges(failing));
+                if (channel.size() > this.size) {
+                    channel.truncate(this.size);
+                }
+                return this.failing(channel, failing, executor).isEmpty();
+            }
+        }
+
+        /**
+         * @return how many bytes the {@code failing} chunks cover
+         */
+        long length(final BitSet failing) {
+            long length = 0;
+            for (int i = failing.nextSetBit(0); i >= 0; i = failing.nextSetBit(i + 1)) {
+                length += this.end(i) - this.start(i);
+            }
+            return length;
+        }
+
+        private long start(final int chunk) {
+            return (long) chunk * this.chunkSize;
+        }
+
+        private long end(final int chunk) {
+            return Math.min(this.size, this.start(chunk) + this.chunkSize);
+        }
+
+        // Neighbouring chunks are fetched as one range
+        private List<Range> ranges(final BitSet chunks) {
+            final var ranges = new ArrayList<Range>();
+            int first = chunks.nextSetBit(0);
+            while (first >= 0) {
+                final int last = chunks.nextClearBit(first) - 1;
+                ranges.add(new Range(this.start(first), this.end(last)));
+                first = chunks.nextSetBit(last + 1);
+            }
+            return ranges;
+        }
+
+        private BitSet failing(final FileChannel channel, final BitSet chunks, final ExecutorService executor) throws IOException {
+            final long actualSize = channel.size();
+            final var failing = new BitSet(this.count());
+            final var tasks = new ArrayList<Util.IOTask<Void>>(chunks.cardinality());
+            for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+                final int chunk = i;
+                final boolean lastTooLong = chunk == this.count() - 1 && actualSize > this.size;
+                tasks.add(() -> {
+                    if (lastTooLong || this.end(chunk) > actualSize || !this.matches(channel, chunk)) {
+                        synchronized (failing) {
+                            failing.set(chunk);
+                        }
+                    }
+                    return null;
+                });
+            }
+
+            Util.invokeAll(tasks.size() > 1 ? executor : null, tasks);
+            return failing;
+        }
+
+        private boolean matches(final FileChannel channel, final int chunk) throws IOException {
+            final MessageDigest digest = Util.sha256Digest();
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = this.start(chunk);
+            final long end = this.end(chunk);
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+                // Positional reads, so every thread can read its own chunk from the same channel
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    return false;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+            return Arrays.equals(this.hashes[chunk], digest.digest());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package io.papermc.paperclip;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the classes the server is going to need on a few background threads while the server starts, enabled with
+ * {@code paperclip.preload}. Which classes those are comes from a profile of an earlier start: the first start records
+ * every class {@link JarClassLoader} defines until the server has been loading nothing for a while, and saves them in
+ * the order they were loaded. The profile is saved with the classpath key and only used for the same classpath.
+ *
+ * <p>Classes are loaded and linked but never initialized, so the server still runs every static initializer itself,
+ * in its own order. Preloading stops once every class in the profile is loaded, or once the server has been running
+ * for as long as the recorded start took, as anything left by then isn't needed early after all.</p>
+ */
+final class ClassPreloader {
+
+    static final boolean ENABLED = Boolean.getBoolean("paperclip.preload");
+
+    // How long nothing may be loaded before the server counts as started
+    private static final long QUIET_MILLIS = 5_000;
+    private static final long MAX_RECORD_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private ClassPreloader() {
+    }
+
+    /**
+     * Starts preloading the classes in the profile saved in {@code profileFile} for {@code key}, or recording one if
+     * there is none yet.
+     */
+    static void start(final ClassLoader classLoader, final Path profileFile, final byte[] key) {
+        final Profile profile = load(profileFile, key);
+        if (profile != null) {
+            preload(classLoader, profile);
+        } else if (classLoader instanceof final JarClassLoader jarClassLoader) {
+            record(jarClassLoader, profileFile, key);
+        }
+    }
+
+    private static void preload(final ClassLoader classLoader, final Profile profile) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(profile.duration());
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable task = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < profile.classes().size() && System.nanoTime() < deadline) {
+                try {
+                    // Asking for the constructors links the class, which is where it is verified
+                    Class.forName(profile.classes().get(i), false, classLoader).getDeclaredConstructors();
+                } catch (final ClassNotFoundException | LinkageError | SecurityException ignored) {
+                    // The server gets the same error when it loads the class itself
+                }
+            }
+        };
+
+        // The server main thread needs a core as well
+        final int defaultThreads = Math.min(4, Runtime.getRuntime().availableProcessors() - 1);
+        final int threads = Math.max(1, Integer.getInteger("paperclip.preloadThreads", defaultThreads));
+        final ExecutorService executor = Util.newExecutor("Paperclip-Preload", threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(task);
+        }
+        executor.shutdown();
+    }
+
+    private static void record(final JarClassLoader classLoader, final Path profileFile, final byte[] key) {
+        final Queue<String> defined = new ConcurrentLinkedQueue<>();
+        classLoader.recordClasses(defined);
+
+        final Thread recorder = new Thread(() -> {
+            final long start = System.nanoTime();
+            final var classes = new ArrayList<String>();
+            long lastDefined = start;
+            while (true) {
+                try {
+                    Thread.sleep(1_000);
+                } catch (final InterruptedException e) {
+                    break;
+                }
+
+                final long now = System.nanoTime();
+                String name;
+                while ((name = defined.poll()) != null) {
+                    classes.add(name);
+                    lastDefined = now;
+                }
+                final long quiet = TimeUnit.NANOSECONDS.toMillis(now - lastDefined);
+                final long elapsed = TimeUnit.NANOSECONDS.toMillis(now - start);
+                if ((quiet >= QUIET_MILLIS && !classes.isEmpty()) || elapsed >= MAX_RECORD_MILLIS) {
+                    break;
+                }
+            }
+
+            classLoader.recordClasses(null);
+            final long duration = TimeUnit.NANOSECONDS.toMillis(lastDefined - start);
+            save(profileFile, key, new Profile(duration, classes));
+        }, "Paperclip-Profile");
+        recorder.setDaemon(true);
+        recorder.start();
+    }
+
+    /**
+     * The saved profile, or {@code null} if there is none for {@code key}.
+     */
+    private static Profile load(final Path file, final byte[] key) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try (final BufferedReader reader = Files.newBufferedReader(file)) {
+            if (!Util.toHex(key).equals(reader.readLine())) {
+                return null;
+            }
+
+            final long duration = Long.parseLong(reader.readLine());
+            final var classes = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                classes.add(line);
+            }
+            return new Profile(duration, classes);
+        } catch (final IOException | RuntimeException e) {
+            // Only costs recording it again
+            return null;
+        }
+    }
+
+    private static void save(final Path file, final byte[] key, final Profile profile) {
+        try {
+            final Path tempFile = Util.createTempFile(file);
+            try {
+                try (final BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
+                    writer.write(Util.toHex(key));
+                    writer.newLine();
+                    writer.write(Long.toString(profile.duration()));
+                    writer.newLine();
+                    for (final String name : profile.classes()) {
+                        if (name.indexOf('\n') < 0 && name.indexOf('\r') < 0) {
+                            writer.write(name);
+                            writer.newLine();
+                        }
+                    }
+                }
+                Util.moveIntoPlace(tempFile, file);
+            } finally {
+                Util.deleteQuietly(tempFile);
+            }
+        } catch (final IOException e) {
+            System.err.println("Failed to save " + file + ", the classes will be recorded again on the next start");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The classes a start loaded, in order, and how long it took from creating the class loader to the last of them.
+     */
+    private record Profile(long duration, List<String> classes) {
+    }
+}
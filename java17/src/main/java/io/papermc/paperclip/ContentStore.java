@@ -0,0 +1,185 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * A directory of files named by their SHA-256 hash, shared by every Paperclip instance on the host that points
+ * {@code paperclip.storeDir} at it. The hash is the only thing that identifies an entry, so entries are verified
+ * before they are used.
+ *
+ * <p>{@code paperclip.storeMode} controls what goes through the store:</p>
+ * <ul>
+ *     <li>{@code download} (default): only the original jar, which is copied out of the store instead of being
+ *     downloaded again</li>
+ *     <li>{@code link}: also every extracted and patched file, which the repo dir hardlinks to (or copies, if the
+ *     store is on another file system)</li>
+ *     <li>{@code direct}: also every extracted and patched file, which the classpath then points at directly, nothing
+ *     is written to the repo dir for them</li>
+ * </ul>
+ */
+final class ContentStore {
+
+    enum Mode {
+        DOWNLOAD,
+        LINK,
+        DIRECT
+    }
+
+    private final Path root;
+    private final Mode mode;
+
+    private ContentStore(final Path root, final Mode mode) {
+        this.root = root;
+        this.mode = mode;
+    }
+
+    /**
+     * @return the configured store, or {@code null} if {@code paperclip.storeDir} isn't set
+     */
+    static ContentStore fromProperties() {
+        final String dir = System.getProperty("paperclip.storeDir");
+        if (dir == null || dir.isBlank()) {
+            return null;
+        }
+
+        final String mode = System.getProperty("paperclip.storeMode", "download");
+        try {
+            return new ContentStore(Path.of(dir), Mode.valueOf(mode.toUpperCase(Locale.ROOT)));
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown paperclip.storeMode " + mode + ", expected download, link or direct");
+        }
+    }
+
+    /**
+     * @return whether extracted and patched files go through the store as well
+     */
+    boolean sharesEntries() {
+        return this.mode != Mode.DOWNLOAD;
+    }
+
+    boolean isDirect() {
+        return this.mode == Mode.DIRECT;
+    }
+
+    Path resolve(final byte[] hash) {
+        final String hex = Util.toHex(hash);
+        return this.root.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    /**
+     * Locks the entry for {@code hash} against every thread and process using this store, so only one of them
+     * creates it.
+     */
+    EntryLock lock(final byte[] hash) throws IOException {
+        return EntryLock.acquire(this.root.resolve("locks").resolve(Util.toHex(hash) + ".lock"));
+    }
+
+    /**
+     * @return the stored file with the given hash, or {@code null} if the store has no valid file for it
+     */
+    Path find(final byte[] hash, final ValidationIndex index) {
+        final Path stored = this.resolve(hash);
+        if (Files.isRegularFile(stored) && index.isFileValid(stored, hash)) {
+            return stored;
+        }
+        return null;
+    }
+
+    /**
+     * Copies the stored file with the given hash to {@code target}.
+     *
+     * @return {@code false} if the store has no valid file for the hash
+     */
+    boolean copyTo(final byte[] hash, final Path target) throws IOException {
+        final Path stored = this.resolve(hash);
+        if (!Files.isRegularFile(stored)) {
+            return false;
+        }
+
+        try (final InputStream in = Files.newInputStream(stored)) {
+            if (Util.copyVerified(in, target, hash)) {
+                return true;
+            }
+        }
+
+        // Don't let anyone else pick up a corrupted entry either
+        System.err.println("Removing corrupted entry " + stored + " from the shared store");
+        Util.deleteQuietly(stored);
+        return false;
+    }
+
+    /**
+     * Adds {@code file}, which is already known to match {@code hash}, to the store. Failing to do so only costs the
+     * other instances a download, so it is reported but doesn't stop startup.
+     */
+    void add(final Path file, final byte[] hash) {
+        final Path stored = this.resolve(hash);
+        if (Files.exists(stored)) {
+            return;
+        }
+
+        // Concurrent adds of the same hash each write their own temporary file and atomically replace one another
+        // with identical content
+        try (final InputStream in = Files.newInputStream(file)) {
+            if (!Util.copyVerified(in, stored, hash)) {
+                System.err.println("Not adding " + file + " to the shared store, it changed while being copied");
+            }
+        } catch (final IOException e) {
+            System.err.println("Failed to add " + file + " to the shared store at " + this.root);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Moves {@code file}, which is already known to match {@code hash}, into the store and returns the path to use
+     * for it from now on: {@code file} hardlinked to the store entry, or the store entry itself in direct mode.
+     */
+    Path share(final Path file, final byte[] hash, final ValidationIndex index) throws IOException {
+        final Path stored = this.resolve(hash);
+        place(file, stored);
+        index.record(stored, hash);
+
+        if (this.isDirect()) {
+            Util.deleteQuietly(file);
+            return stored;
+        }
+        return file;
+    }
+
+    /**
+     * Returns the path to use for a store entry that should be available at {@code target}: the store entry itself in
+     * direct mode, otherwise {@code target} after hardlinking it to the store entry.
+     */
+    Path use(final Path stored, final Path target, final byte[] hash, final ValidationIndex index) throws IOException {
+        if (this.isDirect()) {
+            return stored;
+        }
+
+        place(stored, target);
+        index.record(target, hash);
+        return target;
+    }
+
+    /**
+     * Atomically makes {@code target} a hardlink of {@code existing}, or a copy of it if hardlinks aren't possible.
+     */
+    private static void place(final Path existing, final Path target) throws IOException {
+        final Path tempFile = Util.createTempFile(target);
+        try {
+            Files.delete(tempFile);
+            try {
+                Files.createLink(tempFile, existing);
+            } catch (final IOException | UnsupportedOperationException e) {
+                // Most likely the store is on a different file system
+                Files.copy(existing, tempFile);
+            }
+            Util.moveIntoPlace(tempFile, target);
+        } finally {
+            Util.deleteQuietly(tempFile);
+        }
+    }
+}
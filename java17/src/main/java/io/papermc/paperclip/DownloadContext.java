@@ -1,18 +1,18 @@
 package io.papermc.paperclip;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
-import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 
 record DownloadContext(byte[] hash, URL url, String fileName) {
 
@@ -38,32 +38,185 @@ record DownloadContext(byte[] hash, URL url, String fileName) {
         }
     }
 
-    public void download(final Path outputDir) throws IOException {
+    @SuppressWarnings("try")
+    public void download(final Path outputDir, final ValidationIndex index, final ContentStore store) throws IOException {
         final Path outputFile = this.getOutputFile(outputDir);
-        if (Files.exists(outputFile) && Util.isFileValid(outputFile, this.hash)) {
-            return;
+        try (final Timings.Span span = Timings.file("download", outputFile)) {
+            if (Files.exists(outputFile) && index.isFileValid(outputFile, this.hash)) {
+                span.reused();
+                return;
+            }
+
+            // Other processes sharing the repo dir would otherwise write the same part file
+            try (final EntryLock ignored = index.lock(outputFile)) {
+                // Whoever held the lock before us may have just downloaded it, and a few bad chunks are fetched again
+                if (Files.exists(outputFile) && index.isFileValid(outputFile, this.hash, this::downloadRanges)) {
+                    span.reused();
+                    return;
+                }
+                this.fetch(outputFile, index, store, span);
+            }
         }
+    }
 
-        if (!Files.isDirectory(outputFile.getParent())) {
-            Files.createDirectories(outputFile.getParent());
+    private void fetch(final Path outputFile, final ValidationIndex index, final ContentStore store, final Timings.Span span) throws IOException {
+        // Another instance on this host may already have downloaded it
+        if (store != null && store.copyTo(this.hash, outputFile)) {
+            span.reused();
+            index.record(outputFile, this.hash);
+            return;
         }
-        Files.deleteIfExists(outputFile);
 
         System.out.println("Downloading " + this.fileName);
 
-        try (
-            final ReadableByteChannel source = Channels.newChannel(this.url.openStream());
-            final FileChannel fileChannel = FileChannel.open(outputFile, CREATE, WRITE, TRUNCATE_EXISTING)
-        ) {
-            fileChannel.transferFrom(source, 0, Long.MAX_VALUE);
-        } catch (final IOException e) {
-            System.err.println("Failed to download " + this.fileName);
-            e.printStackTrace();
-            System.exit(1);
+        // Hash the data as it is downloaded, and only move it into place once it is known to be good
+        final boolean valid;
+        final List<URL> urls = this.downloadUrls();
+        if (urls.size() > 1 && Boolean.getBoolean("paperclip.download.raceMirrors")) {
+            valid = this.downloadRacing(urls, outputFile, span);
+        } else {
+            valid = this.downloadInOrder(urls, outputFile, span);
         }
 
-        if (!Util.isFileValid(outputFile, this.hash)) {
+        if (!valid) {
             throw new IllegalStateException("Hash check failed for downloaded file " + this.fileName);
         }
+        span.written(Files.size(outputFile));
+        index.record(outputFile, this.hash);
+
+        if (store != null) {
+            store.add(outputFile, this.hash);
+        }
+    }
+
+    /**
+     * The mirrors from {@code paperclip.download.mirrors} in the order they were given, followed by the URL from the
+     * bundle. Mirrors are separated by commas and may contain {@code {file}} and {@code {sha256}} placeholders, a
+     * mirror without placeholders is treated as a directory containing the file.
+     */
+    private List<URL> downloadUrls() {
+        final var urls = new ArrayList<URL>();
+
+        final String mirrors = System.getProperty("paperclip.download.mirrors");
+        if (mirrors != null) {
+            for (final String mirror : mirrors.split(",")) {
+                if (mirror.isBlank()) {
+                    continue;
+                }
+
+                final String location;
+                if (mirror.contains("{file}") || mirror.contains("{sha256}")) {
+                    location = mirror.trim().replace("{file}", this.fileName).replace("{sha256}", Util.toHex(this.hash));
+                } else {
+                    location = Util.endingSlash(mirror.trim()) + this.fileName;
+                }
+
+                try {
+                    urls.add(URI.create(location).toURL());
+                } catch (final MalformedURLException | IllegalArgumentException e) {
+                    throw new IllegalStateException("Unable to parse mirror URL " + location, e);
+                }
+            }
+        }
+
+        urls.add(this.url);
+        return urls;
+    }
+
+    private void downloadRanges(final FileChannel file, final List<ChunkHashes.Range> ranges) throws IOException {
+        IOException failure = null;
+        for (final URL url : this.downloadUrls()) {
+            try {
+                new Downloader(url, this.fileName).downloadRanges(file, ranges);
+                return;
+            } catch (final IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        throw failure;
+    }
+
+    private boolean downloadInOrder(final List<URL> urls, final Path outputFile, final Timings.Span span) throws IOException {
+        for (int i = 0; i < urls.size(); i++) {
+            final URL url = urls.get(i);
+            final boolean last = i == urls.size() - 1;
+            final Downloader downloader = new Downloader(url, this.fileName);
+            try {
+                // All sources serve the same file, so one may resume the part file another one left behind
+                if (downloader.download(outputFile, this.hash)) {
+                    return true;
+                }
+                if (last) {
+                    return false;
+                }
+                System.err.println("Hash check failed for " + this.fileName + " from " + url + ", trying the next source");
+            } catch (final IOException e) {
+                if (last) {
+                    throw e;
+                }
+                System.err.println("Failed to download " + this.fileName + " from " + url + " (" + e + "), trying the next source");
+            } finally {
+                span.read(downloader.received());
+            }
+        }
+        return false;
+    }
+
+    private boolean downloadRacing(final List<URL> urls, final Path outputFile, final Timings.Span span) throws IOException {
+        final ExecutorService executor = Util.newExecutor("Paperclip-Mirror", urls.size());
+        final var completion = new ExecutorCompletionService<Integer>(executor);
+        final var downloaders = new ArrayList<Downloader>(urls.size());
+        final var targets = new ArrayList<Path>(urls.size());
+
+        for (int i = 0; i < urls.size(); i++) {
+            final int source = i;
+            final Downloader downloader = new Downloader(urls.get(i), this.fileName);
+            final Path target = outputFile.resolveSibling(outputFile.getFileName() + ".source-" + i);
+            downloaders.add(downloader);
+            targets.add(target);
+            completion.submit(() -> downloader.download(target, this.hash) ? source : -1);
+        }
+
+        IOException failure = null;
+        try {
+            for (int i = 0; i < urls.size(); i++) {
+                try {
+                    final int winner = completion.take().get();
+                    if (winner >= 0) {
+                        System.out.println("Downloaded " + this.fileName + " from " + urls.get(winner));
+                        Util.moveIntoPlace(targets.get(winner), outputFile);
+                        return true;
+                    }
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof IOException io) {
+                        System.err.println("Failed to download " + this.fileName + " (" + io + ")");
+                        failure = io;
+                    } else {
+                        throw Util.sneakyThrow(e.getCause());
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + this.fileName);
+        } finally {
+            for (final Downloader downloader : downloaders) {
+                downloader.cancel();
+                span.read(downloader.received());
+            }
+            executor.shutdownNow();
+            for (final Path target : targets) {
+                Util.deleteQuietly(target);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        return false;
     }
 }
@@ -0,0 +1,400 @@
+package io.papermc.paperclip;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Downloads a single file with bounded retries. Sequential downloads are written to a {@code .part} file next to the
+ * target which is resumed with an HTTP range request after an interruption, including on the next start. If
+ * {@code paperclip.download.connections} is more than one and the server advertises range support, the file is instead
+ * fetched as that many ranges in parallel.
+ *
+ * <p>Supported system properties:</p>
+ * <ul>
+ *     <li>{@code paperclip.download.retries}: attempts after the first one failed, default 5</li>
+ *     <li>{@code paperclip.download.timeout}: connect and stall timeout in seconds, default 30</li>
+ *     <li>{@code paperclip.download.connections}: parallel range requests, default 1</li>
+ * </ul>
+ */
+final class Downloader {
+
+    private static final int RETRIES = Math.max(0, Integer.getInteger("paperclip.download.retries", 5));
+    private static final int TIMEOUT = Math.max(1, Integer.getInteger("paperclip.download.timeout", 30)) * 1000;
+    private static final int CONNECTIONS = Math.max(1, Integer.getInteger("paperclip.download.connections", 1));
+    // Splitting small files just costs extra requests
+    private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+    private static final long MAX_BACKOFF = 30_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final URL url;
+    private final String name;
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicInteger reportedPercent = new AtomicInteger();
+    private volatile long total = -1;
+    // How much of the part file has been written and hashed, which is where a retry resumes
+    private long partSize = 0;
+    private volatile boolean cancelled = false;
+
+    Downloader(final URL url, final String name) {
+        this.url = url;
+        this.name = name;
+    }
+
+    /**
+     * Downloads the file to {@code target}, which is only created if the downloaded data matches {@code hash}.
+     *
+     * @return whether the downloaded data matched {@code hash}
+     */
+    boolean download(final Path target, final byte[] hash) throws IOException {
+        if (!Files.isDirectory(target.getParent())) {
+            Files.createDirectories(target.getParent());
+        }
+
+        if (CONNECTIONS > 1 && this.isHttp()) {
+            final long length = this.probeRangeSupport();
+            if (length >= MIN_CHUNK_SIZE * 2) {
+                return this.downloadChunked(target, hash, length);
+            }
+        }
+        return this.downloadResumable(target, hash);
+    }
+
+    /**
+     * Fetches each of {@code ranges} with a range request and writes it into {@code file} at the same position, to
+     * repair the bad chunks of an earlier download.
+     */
+    void downloadRanges(final FileChannel file, final List<ChunkHashes.Range> ranges) throws IOException {
+        if (!this.isHttp()) {
+            throw new IOException("Range requests are not supported for " + this.url);
+        }
+        for (final ChunkHashes.Range range : ranges) {
+            this.fetchRange(file, range.start(), range.end());
+        }
+    }
+
+    /**
+     * Makes a running {@link #download(Path, byte[])} fail as soon as it notices, and delete what it wrote so far.
+     */
+    void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * @return how many bytes were received so far, over all attempts and connections
+     */
+    long received() {
+        return this.received.get();
+    }
+
+    private void checkCancelled() throws IOException {
+        if (this.cancelled) {
+            throw new IOException("Download of " + this.name + " from " + this.url + " was cancelled");
+        }
+    }
+
+    private boolean shouldRetry(final IOException e, final int attempt) {
+        // Missing files won't show up by asking again
+        return !this.cancelled && !(e instanceof FileNotFoundException) && attempt <= RETRIES;
+    }
+
+    private boolean isHttp() {
+        return this.url.getProtocol().equals("http") || this.url.getProtocol().equals("https");
+    }
+
+    private boolean downloadResumable(final Path target, final byte[] hash) throws IOException {
+        final Path partFile = target.resolveSibling(target.getFileName() + ".part");
+        final MessageDigest digest = Util.sha256Digest();
+
+        // Continue from whatever a previous attempt left behind, the data already there still has to be hashed
+        long position = 0;
+        if (Files.isRegularFile(partFile)) {
+            position = Util.updateDigest(digest, partFile);
+            if (position > 0) {
+                System.out.println("Resuming download of " + this.name + " from " + Util.formatSize(position));
+            }
+        }
+
+        this.partSize = position;
+        int attempt = 0;
+        while (true) {
+            try {
+                position = this.transfer(partFile, digest, position);
+                break;
+            } catch (final IOException e) {
+                position = this.partSize;
+                if (this.cancelled) {
+                    Util.deleteQuietly(partFile);
+                }
+                if (!this.shouldRetry(e, ++attempt)) {
+                    throw e;
+                }
+                System.err.println("Download of " + this.name + " interrupted (" + e + "), retrying from " + Util.formatSize(position));
+                backoff(attempt);
+            }
+        }
+
+        if (this.cancelled || !Arrays.equals(hash, digest.digest())) {
+            // Whatever is in the partial file is no good, don't resume from it next time
+            Util.deleteQuietly(partFile);
+            return false;
+        }
+        Util.moveIntoPlace(partFile, target);
+        return true;
+    }
+
+    /**
+     * Appends the data from {@code position} onwards to {@code partFile}. The digest only ever sees bytes that made it
+     * into the file, so when this fails the file and the digest still match and the next attempt can resume.
+     *
+     * @return the size of the part file after the transfer
+     */
+    private long transfer(final Path partFile, final MessageDigest digest, final long position) throws IOException {
+        final URLConnection connection = this.open();
+        long start = position;
+        if (start > 0 && this.isHttp()) {
+            connection.setRequestProperty("Range", "bytes=" + start + "-");
+        }
+
+        if (connection instanceof HttpURLConnection http) {
+            final int code = http.getResponseCode();
+            if (start > 0 && code == 416) {
+                // Nothing left to fetch, the hash check decides whether what we have is right
+                http.disconnect();
+                return start;
+            }
+            if (code == 206) {
+                final long[] range = parseContentRange(http.getHeaderField("Content-Range"));
+                if (range[0] != start) {
+                    throw new IOException("Server returned range starting at " + range[0] + ", requested " + start);
+                }
+                this.total = range[1];
+            } else if (code == 200) {
+                // The server ignored the range request, start over
+                start = 0;
+                this.total = http.getContentLengthLong();
+            } else {
+                throw this.unexpectedResponse(code);
+            }
+        } else {
+            // Only HTTP supports resuming
+            start = 0;
+            this.total = connection.getContentLengthLong();
+        }
+
+        if (start == 0) {
+            digest.reset();
+        }
+        this.partSize = start;
+        this.downloaded.set(start);
+
+        try (
+            final InputStream in = connection.getInputStream();
+            final FileChannel out = FileChannel.open(partFile, CREATE, WRITE)
+        ) {
+            // Drop anything past the point we resume from
+            out.truncate(start);
+            out.position(start);
+
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long written = start;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                this.checkCancelled();
+                final ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while (data.hasRemaining()) {
+                    out.write(data);
+                }
+                digest.update(buffer, 0, read);
+                written += read;
+                this.partSize = written;
+                this.progress(read);
+            }
+            // A connection that drops halfway through the body just looks like the end of the stream
+            if (this.total > 0 && written < this.total) {
+                throw new IOException("Connection closed early, received " + written + " of " + this.total + " bytes");
+            }
+            return written;
+        }
+    }
+
+    private boolean downloadChunked(final Path target, final byte[] hash, final long length) throws IOException {
+        final Path chunkFile = target.resolveSibling(target.getFileName() + ".chunks");
+        final long chunkSize = Math.max(MIN_CHUNK_SIZE, (length + CONNECTIONS - 1) / CONNECTIONS);
+        final int chunks = (int) ((length + chunkSize - 1) / chunkSize);
+        this.total = length;
+
+        System.out.println("Downloading " + this.name + " in " + chunks + " parallel ranges");
+
+        final ExecutorService executor = Util.newExecutor("Paperclip-Download", chunks);
+        try (final FileChannel out = FileChannel.open(chunkFile, CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+            final var tasks = new ArrayList<Util.IOTask<Void>>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                final long start = i * chunkSize;
+                final long end = Math.min(length, start + chunkSize);
+                tasks.add(() -> {
+                    this.fetchRange(out, start, end);
+                    return null;
+                });
+            }
+            Util.invokeAll(executor, tasks);
+        } catch (final IOException | RuntimeException e) {
+            Util.deleteQuietly(chunkFile);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The ranges arrive out of order, so this is the one case where the file is hashed after it was written
+        try {
+            if (this.cancelled || !Arrays.equals(hash, Util.hashFile(chunkFile))) {
+                return false;
+            }
+            Util.moveIntoPlace(chunkFile, target);
+            return true;
+        } finally {
+            Util.deleteQuietly(chunkFile);
+        }
+    }
+
+    private void fetchRange(final FileChannel out, final long start, final long end) throws IOException {
+        long position = start;
+        int attempt = 0;
+        while (position < end) {
+            try {
+                final HttpURLConnection connection = (HttpURLConnection) this.open();
+                connection.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+                final int code = connection.getResponseCode();
+                if (code != 206) {
+                    connection.disconnect();
+                    throw this.unexpectedResponse(code);
+                }
+                if (parseContentRange(connection.getHeaderField("Content-Range"))[0] != position) {
+                    connection.disconnect();
+                    throw new IOException("Server did not honor range request for " + this.url);
+                }
+
+                try (final InputStream in = connection.getInputStream()) {
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while (position < end && (read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position))) != -1) {
+                        this.checkCancelled();
+                        final ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                        while (data.hasRemaining()) {
+                            position += out.write(data, position);
+                        }
+                        this.progress(read);
+                    }
+                }
+                if (position < end) {
+                    throw new IOException("Connection closed early");
+                }
+            } catch (final IOException e) {
+                if (!this.shouldRetry(e, ++attempt)) {
+                    throw e;
+                }
+                System.err.println("Range " + start + "-" + end + " of " + this.name + " interrupted (" + e + "), retrying");
+                backoff(attempt);
+            }
+        }
+    }
+
+    /**
+     * @return the content length if the server accepts byte ranges, otherwise {@code -1}
+     */
+    private long probeRangeSupport() {
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) this.open();
+            connection.setRequestMethod("HEAD");
+            try {
+                if (connection.getResponseCode() != 200 || !"bytes".equals(connection.getHeaderField("Accept-Ranges"))) {
+                    return -1;
+                }
+                return connection.getContentLengthLong();
+            } finally {
+                connection.disconnect();
+            }
+        } catch (final IOException e) {
+            // Just fall back to a single connection
+            return -1;
+        }
+    }
+
+    private URLConnection open() throws IOException {
+        final URLConnection connection = this.url.openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        // A read blocking for this long means the transfer stalled
+        connection.setReadTimeout(TIMEOUT);
+        return connection;
+    }
+
+    private void progress(final int read) {
+        this.received.addAndGet(read);
+        final long done = this.downloaded.addAndGet(read);
+        final long total = this.total;
+        if (total <= 0) {
+            return;
+        }
+
+        // Report every 10%, whichever thread gets there first prints it
+        final int percent = (int) (done * 10 / total) * 10;
+        final int reported = this.reportedPercent.get();
+        if (percent > reported && this.reportedPercent.compareAndSet(reported, percent)) {
+            System.out.println("Downloading " + this.name + ": " + percent + "% of " + Util.formatSize(total));
+        }
+    }
+
+    private IOException unexpectedResponse(final int code) {
+        if (code == 404 || code == 410) {
+            return new FileNotFoundException(this.url.toString());
+        }
+        return new IOException("Unexpected response " + code + " for " + this.url);
+    }
+
+    private static long[] parseContentRange(final String header) throws IOException {
+        // bytes <start>-<end>/<total>
+        if (header == null || !header.startsWith("bytes ")) {
+            throw new IOException("Invalid Content-Range: " + header);
+        }
+        try {
+            final int dash = header.indexOf('-');
+            final int slash = header.indexOf('/');
+            final long start = Long.parseLong(header.substring(6, dash).trim());
+            final String total = header.substring(slash + 1).trim();
+            return new long[] {start, total.equals("*") ? -1 : Long.parseLong(total)};
+        } catch (final RuntimeException e) {
+            throw new IOException("Invalid Content-Range: " + header, e);
+        }
+    }
+
+    private static void backoff(final int attempt) throws IOException {
+        final long delay = Math.min(MAX_BACKOFF, 1000L << Math.min(attempt - 1, 5));
+        try {
+            Thread.sleep(delay);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the download");
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Extracts an entry of our own jar, or of the original jar, straight from the jar file rather than through a resource
+ * stream. The data of a stored entry is copied with {@link FileChannel#transferTo}, which lets the kernel copy it
+ * between the two files without it passing through the heap. A deflated entry is inflated from the mapped jar into a
+ * direct buffer, with an {@link Inflater} and buffer kept per thread rather than created for every entry. Either way
+ * the data is hashed on the way and only moved into place once it matches, the same as {@link Util#copyVerified}.
+ *
+ * <p>{@code paperclip.streamExtract} turns this off, every entry is then read through a stream as before.</p>
+ */
+final class EntryExtractor {
+
+    static final boolean ENABLED = !Boolean.getBoolean("paperclip.streamExtract");
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<ByteBuffer> buffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private EntryExtractor() {}
+
+    /**
+     * Finds {@code path} in our jar, or else in {@code originalJar}, the same places a stream would be opened from.
+     *
+     * @return where the entry is, or {@code null} if it can't be read directly and has to be read through a stream
+     */
+    static Source find(final String path, final OriginalJar originalJar) {
+        if (!ENABLED) {
+            return null;
+        }
+        final String name = path.startsWith("/") ? path.substring(1) : path;
+        try {
+            final BundleManifest manifest = BundleManifest.get();
+            if (manifest != null) {
+                final BundleManifest.Resource resource = manifest.find(name);
+                if (resource != null) {
+                    return new Source(Util.ownJar(), manifest.data(resource), resource.offset(), resource.method(), resource.size());
+                }
+            }
+
+            final Source own = find(Util.ownJarIndex(), Util.ownJar(), name);
+            if (own != null) {
+                return own;
+            }
+        } catch (final IOException ignored) {
+            // Not running from a jar, the resource stream still works
+        }
+
+        // An entry of our own jar that can't be read directly is still streamed from there, looking in the original jar
+        // would only wait for it to download
+        if (originalJar != null && EntryExtractor.class.getResource("/" + name) == null) {
+            try {
+                return find(originalJar.index(), originalJar.file(), name);
+            } catch (final IOException ignored) {
+            }
+        }
+        return null;
+    }
+
+    private static Source find(final ZipIndex zip, final Path file, final String name) throws IOException {
+        final ZipIndex.Entry entry = zip.entry(name);
+        if (entry == null || (entry.method() != ZipIndex.STORED && entry.method() != ZipIndex.DEFLATED)) {
+            return null;
+        }
+        return new Source(file, zip.data(entry), zip.dataStart(entry), entry.method(), entry.size());
+    }
+
+    /**
+     * An entry found by {@link #find}: its raw data mapped from {@code jar}, and where that data starts in the file.
+     */
+    record Source(Path jar, ByteBuffer data, long offset, int method, long size) {
+
+        /**
+         * Extracts this entry into a temporary file next to {@code target}, and only moves it into place if it has the
+         * right size and hash. Either a complete, verified file ends up at {@code target}, or nothing is changed.
+         *
+         * @return whether the extracted data matched {@code hash}
+         */
+        boolean copyVerified(final Path target, final byte[] hash) throws IOException {
+            final Path tempFile = Util.createTempFile(target);
+            try {
+                final byte[] actualHash;
+                try (final FileChannel out = FileChannel.open(tempFile, WRITE, TRUNCATE_EXISTING)) {
+                    actualHash = this.method == ZipIndex.STORED ? this.transfer(out) : this.inflate(out);
+                }
+                if (!Arrays.equals(hash, actualHash)) {
+                    return false;
+                }
+                Util.moveIntoPlace(tempFile, target);
+                return true;
+            } finally {
+                Util.deleteQuietly(tempFile);
+            }
+        }
+
+        private byte[] transfer(final FileChannel out) throws IOException {
+            // Hashing reads the mapping, the copy itself is left to the kernel
+            final MessageDigest digest = Util.sha256Digest();
+            digest.update(this.data.duplicate());
+
+            final long length = this.data.remaining();
+            try (final FileChannel in = FileChannel.open(this.jar, READ)) {
+                long position = 0;
+                while (position < length) {
+                    final long transferred = in.transferTo(this.offset + position, length - position, out);
+                    if (transferred <= 0) {
+                        throw new ZipException("Truncated data in " + this.jar);
+                    }
+                    position += transferred;
+                }
+            }
+            return digest.digest();
+        }
+
+        private byte[] inflate(final FileChannel out) throws IOException {
+            final MessageDigest digest = Util.sha256Digest();
+            final Inflater inflater = EntryExtractor.inflater.get();
+            final ByteBuffer buffer = EntryExtractor.buffer.get();
+            inflater.reset();
+            inflater.setInput(this.data.duplicate());
+
+            long written = 0;
+            try {
+                while (!inflater.finished()) {
+                    buffer.clear();
+                    final int inflated = inflater.inflate(buffer);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new ZipException("Truncated data in " + this.jar);
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.rewind();
+                    while (buffer.hasRemaining()) {
+                        written += out.write(buffer);
+                    }
+                }
+            } catch (final DataFormatException e) {
+                throw new ZipException("Invalid data in " + this.jar + ": " + e.getMessage());
+            } finally {
+                // Don't hold on to the mapping until the next entry
+                inflater.reset();
+            }
+
+            if (written != this.size) {
+                throw new ZipException("Wrong size of entry in " + this.jar + ", expected " + this.size + " but got " + written);
+            }
+            return digest.digest();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package io.papermc.paperclip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An exclusive lock on a single entry, held against other threads of this process as well as, through a lock file,
+ * against other processes. Unlike most locks it may be released from a different thread than the one which acquired
+ * it, so it can be held across asynchronous stages.
+ *
+ * <p>Lock files are kept in a directory of their own rather than next to the entries, and left in place once released,
+ * deleting them would let two processes lock different files for the same entry.</p>
+ */
+final class EntryLock implements Closeable {
+
+    // File locks are held per process, so threads of the same process need to be kept apart separately
+    private static final Map<Path, Semaphore> localLocks = new ConcurrentHashMap<>();
+
+    private final Semaphore local;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private EntryLock(final Semaphore local, final FileChannel channel, final FileLock lock) {
+        this.local = local;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Locks the output file {@code file}, using a lock file in {@code lockDir} named after the hash of its path.
+     */
+    static EntryLock forFile(final Path lockDir, final Path file) throws IOException {
+        final byte[] path = file.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+        return acquire(lockDir.resolve(Util.toHex(Util.sha256Digest().digest(path)) + ".lock"));
+    }
+
+    static EntryLock acquire(final Path lockFile) throws IOException {
+        final Path key = lockFile.toAbsolutePath().normalize();
+        final Semaphore local = localLocks.computeIfAbsent(key, k -> new Semaphore(1));
+        try {
+            local.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for lock on " + key);
+        }
+
+        FileChannel channel = null;
+        try {
+            if (!Files.isDirectory(key.getParent())) {
+                Files.createDirectories(key.getParent());
+            }
+            channel = FileChannel.open(key, CREATE, WRITE);
+            return new EntryLock(local, channel, channel.lock());
+        } catch (final IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            local.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.released.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.lock.release();
+            this.channel.close();
+        } finally {
+            this.local.release();
+        }
+    }
+}
@@ -4,17 +4,12 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.Map;
-
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
-import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.List;
 
 record FileEntry(byte[] hash, String id, String path) {
 
@@ -47,62 +42,227 @@ record FileEntry(byte[] hash, String id, String path) {
         }
     }
 
-    void extractFile(
-        final Map<String, URL> urls,
+    /**
+     * Extracts this entry into {@code outputDir} and returns the URL to put on the classpath for it, or {@code null} if
+     * the file will instead be created by one of the given patches. If {@code store} is given the file is taken from,
+     * or added to, the shared store. With {@link NestedJars} enabled, files stored in our own jar are not extracted at
+     * all, and with {@link MemoryFiles#EXTRACT} they are extracted into memory rather than the repo dir. This method is
+     * safe to call concurrently for different entries.
+     */
+    URL extractFile(
         final PatchEntry[] patches,
         final String targetName,
-        final Path originalRootDir,
+        final OriginalJar originalJar,
         final String baseDir,
-        final Path outputDir
+        final Path outputDir,
+        final ValidationIndex index,
+        final ContentStore store
     ) throws IOException {
         for (final PatchEntry patch : patches) {
             if (patch.location().equals(targetName) && patch.outputPath().equals(this.path)) {
                 // This file will be created from a patch
-                return;
+                return null;
+            }
+        }
+
+        if (NestedJars.ENABLED) {
+            // Read the jar in place from our own jar rather than extracting it
+            final URL nested = NestedJars.find(Util.endingSlash(baseDir) + this.path, this.hash, index);
+            if (nested != null) {
+                return nested;
             }
         }
 
         final Path outputFile = outputDir.resolve(this.path);
-        if (Files.exists(outputFile) && Util.isFileValid(outputFile, this.hash)) {
-            urls.put(this.path, outputFile.toUri().toURL());
-            return;
+        try (final Timings.Span span = Timings.file("extract", outputFile)) {
+            if (MemoryFiles.EXTRACT) {
+                return this.extractToMemory(originalJar, baseDir, targetName, outputFile, index, span);
+            }
+            if (store != null) {
+                return this.extractShared(originalJar, baseDir, outputFile, index, store, span).toUri().toURL();
+            }
+            this.extract(originalJar, baseDir, outputFile, index, span);
         }
+        return outputFile.toUri().toURL();
+    }
 
+    /**
+     * @return whether this file is in our own jar, so extracting it never needs the original jar
+     */
+    boolean isEmbedded(final String baseDir) {
         final String filePath = Util.endingSlash(baseDir) + this.path;
-        InputStream fileStream = FileEntry.class.getResourceAsStream(filePath);
-        if (fileStream == null) {
-            // This file is not in our jar, but may be in the original
-            if (originalRootDir == null) {
-                // no original jar was provided (we are not running in patcher mode)
-                // This is an invalid situation
-                throw new IllegalStateException(this.path + " not found in our jar, and no original jar provided");
+        final BundleManifest manifest = BundleManifest.get();
+        if (manifest != null && manifest.find(filePath) != null) {
+            return true;
+        }
+        return FileEntry.class.getResource(filePath) != null;
+    }
+
+    @SuppressWarnings("try")
+    private void extract(
+        final OriginalJar originalJar,
+        final String baseDir,
+        final Path outputFile,
+        final ValidationIndex index,
+        final Timings.Span span
+    ) throws IOException {
+        if (Files.exists(outputFile) && index.isFileValid(outputFile, this.hash)) {
+            span.reused();
+            return;
+        }
+
+        // Other processes sharing the repo dir may be extracting the same file
+        try (final EntryLock ignored = index.lock(outputFile)) {
+            // Whoever held the lock before us may have just extracted it, and a few bad chunks are extracted again
+            final ChunkHashes.Source source = (file, ranges) -> this.extractRanges(originalJar, baseDir, file, ranges);
+            if (Files.exists(outputFile) && index.isFileValid(outputFile, this.hash, source)) {
+                span.reused();
+                return;
+            }
+
+            // Hash the data as it is copied, and only move it into place once it is known to be good
+            this.copy(originalJar, baseDir, outputFile, span);
+            index.record(outputFile, this.hash);
+        }
+    }
+
+    private URL extractToMemory(
+        final OriginalJar originalJar,
+        final String baseDir,
+        final String targetName,
+        final Path outputFile,
+        final ValidationIndex index,
+        final Timings.Span span
+    ) throws IOException {
+        // Left over from a start that had to write it to disk
+        if (Files.exists(outputFile) && index.isFileValid(outputFile, this.hash)) {
+            span.reused();
+            return outputFile.toUri().toURL();
+        }
+
+        final var memory = new MemoryFiles.Output(Util.endingSlash(targetName) + this.path, outputFile, -1);
+        try {
+            final byte[] actualHash;
+            try (final InputStream stream = this.openSource(originalJar, baseDir); memory) {
+                actualHash = Util.copyHashed(stream, memory);
+            }
+            if (!Arrays.equals(this.hash, actualHash)) {
+                throw new IllegalStateException("Hash check failed for extract filed " + outputFile);
+            }
+            span.read(memory.size());
+            final URL kept = memory.inMemory() ? memory.keep() : null;
+            if (kept != null) {
+                return kept;
+            }
+
+            span.written(memory.size());
+            Util.moveIntoPlace(memory.toDisk(), outputFile);
+            index.record(outputFile, this.hash);
+            return outputFile.toUri().toURL();
+        } finally {
+            memory.discard();
+        }
+    }
+
+    @SuppressWarnings("try")
+    private Path extractShared(
+        final OriginalJar originalJar,
+        final String baseDir,
+        final Path outputFile,
+        final ValidationIndex index,
+        final ContentStore store,
+        final Timings.Span span
+    ) throws IOException {
+        if (!store.isDirect() && Files.exists(outputFile) && index.isFileValid(outputFile, this.hash)) {
+            span.reused();
+            return outputFile;
+        }
+
+        Path stored = store.find(this.hash, index);
+        if (stored == null) {
+            try (final EntryLock ignored = store.lock(this.hash)) {
+                // Whoever held the lock before us may have just stored it
+                stored = store.find(this.hash, index);
+                if (stored == null) {
+                    stored = store.resolve(this.hash);
+                    this.copy(originalJar, baseDir, stored, span);
+                    index.record(stored, this.hash);
+                } else {
+                    span.reused();
+                }
             }
+        } else {
+            span.reused();
+        }
+
+        return store.use(stored, outputFile, this.hash, index);
+    }
 
-            final Path originalFile = originalRootDir.resolve(filePath);
-            if (Files.notExists(originalFile)) {
-                throw new IllegalStateException(this.path + " not found in our jar or in the original jar");
+    private void copy(final OriginalJar originalJar, final String baseDir, final Path target, final Timings.Span span) throws IOException {
+        // Straight from the jar file if we can, see EntryExtractor
+        final EntryExtractor.Source source = EntryExtractor.find(Util.endingSlash(baseDir) + this.path, originalJar);
+        final boolean valid;
+        if (source != null) {
+            valid = source.copyVerified(target, this.hash);
+        } else {
+            try (final InputStream stream = this.openSource(originalJar, baseDir)) {
+                valid = Util.copyVerified(stream, target, this.hash);
             }
+        }
+        if (!valid) {
+            throw new IllegalStateException("Hash check failed for extract filed " + target);
+        }
+        final long size = Files.size(target);
+        span.read(size);
+        span.written(size);
+    }
 
-            fileStream = Files.newInputStream(originalFile);
+    private void extractRanges(
+        final OriginalJar originalJar,
+        final String baseDir,
+        final FileChannel file,
+        final List<ChunkHashes.Range> ranges
+    ) throws IOException {
+        try (final InputStream stream = this.openSource(originalJar, baseDir)) {
+            final byte[] buffer = new byte[64 * 1024];
+            long position = 0;
+            for (final ChunkHashes.Range range : ranges) {
+                // The source is usually compressed, so the good chunks still have to be read, just not written
+                stream.skipNBytes(range.start() - position);
+                position = range.start();
+                while (position < range.end()) {
+                    final int read = stream.readNBytes(buffer, 0, (int) Math.min(buffer.length, range.end() - position));
+                    if (read == 0) {
+                        throw new IOException("Source of " + this.path + " ended early");
+                    }
+                    final ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                    while (data.hasRemaining()) {
+                        position += file.write(data, position);
+                    }
+                }
+            }
         }
+    }
 
-        if (!Files.isDirectory(outputFile.getParent())) {
-            Files.createDirectories(outputFile.getParent());
+    private InputStream openSource(final OriginalJar originalJar, final String baseDir) throws IOException {
+        final String filePath = Util.endingSlash(baseDir) + this.path;
+        final InputStream fileStream = BundleManifest.resource(filePath);
+        if (fileStream != null) {
+            return fileStream;
         }
-        Files.deleteIfExists(outputFile);
 
-        try (
-            final InputStream stream = fileStream;
-            final ReadableByteChannel inputChannel = Channels.newChannel(stream);
-            final FileChannel outputChannel = FileChannel.open(outputFile, CREATE, WRITE, TRUNCATE_EXISTING)
-        ) {
-            outputChannel.transferFrom(inputChannel, 0, Long.MAX_VALUE);
+        // This file is not in our jar, but may be in the original
+        if (originalJar == null) {
+            // no original jar was provided (we are not running in patcher mode)
+            // This is an invalid situation
+            throw new IllegalStateException(this.path + " not found in our jar, and no original jar provided");
         }
 
-        if (!Util.isFileValid(outputFile, this.hash)) {
-            throw new IllegalStateException("Hash check failed for extract filed " + outputFile);
+        final Path originalFile = originalJar.rootDir().resolve(filePath);
+        if (Files.notExists(originalFile)) {
+            throw new IllegalStateException(this.path + " not found in our jar or in the original jar");
         }
 
-        urls.put(this.path, outputFile.toUri().toURL());
+        return Files.newInputStream(originalFile);
     }
 }
@@ -0,0 +1,423 @@
+package io.papermc.paperclip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The versions and libraries merged into as few jars as the zip format without Zip64 allows, usually one, so a class
+ * loader has a handful of jars to search and keep open instead of one for every library. Enabled with
+ * {@code paperclip.flattenClasspath}. The merged jars are kept under {@code cache/flat} in the repo dir, named after
+ * the classpath key, and reused by every start until a version or library changes.
+ *
+ * <p>Entries are copied without being inflated again. The first jar on the classpath to have an entry wins, the same
+ * as a class loader searching the jars in order, so the versions still win over the libraries. A multi-release jar is
+ * merged as it is read on the running release, and signature files are left out. Service files are merged into one.
+ * A jar which loses another resource with different contents, or names more jars in a Class-Path attribute, stays on
+ * the classpath after the merged jars as well, so {@link ClassLoader#getResources} still finds every copy.</p>
+ *
+ * <p>Classes loaded from the merged jars have those as their code source, and their packages take their attributes
+ * from the manifest of the versions jar.</p>
+ */
+final class FlatClasspath {
+
+    static final boolean ENABLED = Boolean.getBoolean("paperclip.flattenClasspath");
+
+    private static final String EXTENSION = ".jar";
+    private static final String LIST_EXTENSION = ".list";
+    private static final String SERVICES = "META-INF/services/";
+    private static final String VERSIONS = "META-INF/versions/";
+
+    private FlatClasspath() {
+    }
+
+    /**
+     * @return the classpath to use instead of {@code urls}, or {@code urls} itself if they can't be merged
+     */
+    static URL[] flatten(final URL[] urls, final Path repoDir, final byte[] classpathKey) {
+        final Path list = repoDir.resolve("cache").resolve("flat").resolve(Util.toHex(classpathKey) + LIST_EXTENSION);
+        try {
+            if (Files.isRegularFile(list)) {
+                try {
+                    return read(list, urls);
+                } catch (final IOException e) {
+                    System.err.println("Merging the classpath again, " + list + " can't be used (" + e + ")");
+                }
+            }
+
+            System.out.println("Merging " + urls.length + " jars on the classpath");
+            Files.createDirectories(list.getParent());
+            removeOthers(list);
+            write(urls, list);
+            return read(list, urls);
+        } catch (final IOException e) {
+            System.err.println("Unable to merge the classpath, using the jars as they are (" + e + ")");
+            return urls;
+        }
+    }
+
+    /*
+     * The list names the classpath in order, a merged jar by its file name next to the list and a jar that stays on
+     * the classpath by its position in the original classpath:
+     *   jar <file name>
+     *   keep <position>
+     */
+    private static URL[] read(final Path list, final URL[] urls) throws IOException {
+        final var result = new ArrayList<URL>();
+        for (final String line : Files.readAllLines(list, StandardCharsets.UTF_8)) {
+            final String[] parts = line.split("\t");
+            if (parts.length != 2) {
+                throw new IOException("Invalid line: " + line);
+            }
+            switch (parts[0]) {
+                case "jar" -> {
+                    final Path jar = list.resolveSibling(parts[1]);
+                    if (!Files.isRegularFile(jar)) {
+                        throw new IOException(jar + " is missing");
+                    }
+                    result.add(jar.toUri().toURL());
+                }
+                case "keep" -> {
+                    final int index = Integer.parseInt(parts[1]);
+                    if (index < 0 || index >= urls.length) {
+                        throw new IOException("Invalid line: " + line);
+                    }
+                    result.add(urls[index]);
+                }
+                default -> throw new IOException("Invalid line: " + line);
+            }
+        }
+        return result.toArray(new URL[0]);
+    }
+
+    private static void write(final URL[] urls, final Path list) throws IOException {
+        final var winners = new LinkedHashMap<String, Source>();
+        final var services = new LinkedHashMap<String, List<Source>>();
+        final var kept = new BitSet(urls.length);
+
+        for (int i = 0; i < urls.length; i++) {
+            final ZipIndex jar = JarClassLoader.openJar(urls[i]);
+            final ZipIndex.Entry manifestEntry = jar.entry(JarFile.MANIFEST_NAME);
+            if (manifestEntry != null) {
+                final Attributes attributes = new Manifest(new ByteArrayInputStream(jar.read(manifestEntry))).getMainAttributes();
+                if (Boolean.parseBoolean(attributes.getValue(Attributes.Name.MULTI_RELEASE))) {
+                    jar.applyVersions(Runtime.version().feature());
+                }
+                // JarClassLoader follows these for file URLs only
+                if (attributes.getValue(Attributes.Name.CLASS_PATH) != null && urls[i].getProtocol().equals("file")) {
+                    kept.set(i);
+                }
+            }
+
+            for (final String name : jar.names()) {
+                if (name.startsWith(VERSIONS) || isSignature(name)) {
+                    continue;
+                }
+                final var source = new Source(jar, jar.entry(name));
+                if (name.startsWith(SERVICES) && !source.entry().isDirectory()) {
+                    services.computeIfAbsent(name, k -> new ArrayList<>()).add(source);
+                    continue;
+                }
+                final Source winner = winners.putIfAbsent(name, source);
+                if (winner != null && isResource(name) && !winner.sameContents(source)) {
+                    kept.set(i);
+                }
+            }
+        }
+
+        final String prefix = list.getFileName().toString().replace(LIST_EXTENSION, "");
+        final var writer = new Writer(list.getParent(), prefix);
+        try {
+            // Tools reading the jar as a stream expect the manifest first
+            final Source manifest = winners.remove(JarFile.MANIFEST_NAME);
+            if (manifest != null) {
+                writer.copy(JarFile.MANIFEST_NAME, manifest);
+            }
+            for (final Map.Entry<String, Source> entry : winners.entrySet()) {
+                writer.copy(entry.getKey(), entry.getValue());
+            }
+            for (final Map.Entry<String, List<Source>> entry : services.entrySet()) {
+                writer.store(entry.getKey(), mergeServices(entry.getValue()), entry.getValue().get(0).centralRecord());
+            }
+
+            final var lines = new StringBuilder();
+            for (final Path part : writer.finish()) {
+                lines.append("jar\t").append(part.getFileName()).append('\n');
+            }
+            for (int i = kept.nextSetBit(0); i >= 0; i = kept.nextSetBit(i + 1)) {
+                lines.append("keep\t").append(i).append('\n');
+            }
+            // The list is written last, so it only exists once every jar it names does
+            final Path tempFile = Util.createTempFile(list);
+            try {
+                Files.writeString(tempFile, lines, StandardCharsets.UTF_8);
+                Util.moveIntoPlace(tempFile, list);
+            } finally {
+                Util.deleteQuietly(tempFile);
+            }
+        } finally {
+            writer.discard();
+        }
+    }
+
+    private static boolean isSignature(final String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0) {
+            return false;
+        }
+        final String fileName = name.substring("META-INF/".length());
+        return fileName.startsWith("SIG-") || fileName.endsWith(".SF") || fileName.endsWith(".RSA")
+            || fileName.endsWith(".DSA") || fileName.endsWith(".EC");
+    }
+
+    // Whether losing this entry to an earlier jar can hide something from getResources, classes are only loaded once
+    // and what is directly in META-INF, like the manifest or a license, describes the jar it came from
+    private static boolean isResource(final String name) {
+        return !name.endsWith("/") && !name.endsWith(".class")
+            && !(name.startsWith("META-INF/") && name.indexOf('/', "META-INF/".length()) < 0);
+    }
+
+    private static byte[] mergeServices(final List<Source> sources) throws IOException {
+        final var out = new ByteArrayOutputStream();
+        for (final Source source : sources) {
+            final byte[] data = source.jar().read(source.entry());
+            out.writeBytes(data);
+            if (data.length > 0 && data[data.length - 1] != '\n') {
+                out.write('\n');
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void removeOthers(final Path list) throws IOException {
+        final String prefix = list.getFileName().toString().replace(LIST_EXTENSION, "");
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(list.getParent())) {
+            for (final Path file : files) {
+                if (!file.getFileName().toString().startsWith(prefix)) {
+                    Util.deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    private record Source(ZipIndex jar, ZipIndex.Entry entry) {
+        ByteBuffer centralRecord() {
+            return this.jar.centralRecord(this.entry);
+        }
+
+        boolean sameContents(final Source other) {
+            return this.entry.size() == other.entry.size() && this.centralRecord().getInt(16) == other.centralRecord().getInt(16);
+        }
+    }
+
+    /**
+     * Writes entries into temporary files next to where the merged jars go, starting the next jar whenever one is
+     * full, and moves them all into place once every entry is written.
+     */
+    private static final class Writer {
+        private static final int LOCAL_SIGNATURE = 0x04034b50;
+        private static final int CENTRAL_SIGNATURE = 0x02014b50;
+        private static final int END_SIGNATURE = 0x06054b50;
+        private static final int DESCRIPTOR_FLAG = 1 << 3;
+        private static final int UTF8_FLAG = 1 << 11;
+        private static final int MAX_ENTRIES = 0xFFFE;
+        // ZipIndex maps a jar as a single buffer
+        private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+        private final Path dir;
+        private final String prefix;
+        private final List<Path> tempFiles = new ArrayList<>();
+        private FileChannel channel;
+        private ByteArrayOutputStream centralDirectory;
+        private int count;
+        private long offset;
+
+        Writer(final Path dir, final String prefix) {
+            this.dir = dir;
+            this.prefix = prefix;
+        }
+
+        private Path target(final int part) {
+            return this.dir.resolve(this.prefix + "-" + part + EXTENSION);
+        }
+
+        void copy(final String name, final Source source) throws IOException {
+            final ZipIndex.Entry entry = source.entry();
+            this.add(name.getBytes(StandardCharsets.UTF_8), source.centralRecord(), entry.method(), entry.compressedSize(),
+                entry.size(), source.jar().data(entry));
+        }
+
+        // A stored entry, keeping the time and attributes of the entry in template
+        void store(final String name, final byte[] data, final ByteBuffer template) throws IOException {
+            final var crc = new CRC32();
+            crc.update(data);
+            final ByteBuffer central = copyOf(template);
+            central.putInt(16, (int) crc.getValue());
+            this.add(name.getBytes(StandardCharsets.UTF_8), central, ZipIndex.STORED, data.length, data.length, ByteBuffer.wrap(data));
+        }
+
+        /*
+         * The local header is made from the central directory record, so a data descriptor is never needed and the
+         * name can differ from the one the entry had, as for the unversioned name of a versioned entry.
+         */
+        private void add(
+            final byte[] name,
+            final ByteBuffer template,
+            final int method,
+            final long compressedSize,
+            final long size,
+            final ByteBuffer data
+        ) throws IOException {
+            if (compressedSize >= 0xFFFFFFFFL || size >= 0xFFFFFFFFL) {
+                throw new ZipException(new String(name, StandardCharsets.UTF_8) + " is too large, Zip64 is not supported");
+            }
+            final long length = 30 + name.length + compressedSize;
+            if (this.channel == null || this.count == MAX_ENTRIES
+                || this.offset + length + this.centralDirectory.size() + 46 + name.length + 22 > MAX_SIZE) {
+                this.next();
+            }
+
+            final int flags = (Short.toUnsignedInt(template.getShort(8)) & ~DESCRIPTOR_FLAG) | UTF8_FLAG;
+            final ByteBuffer local = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(LOCAL_SIGNATURE)
+                .putShort(template.getShort(6))
+                .putShort((short) flags)
+                .putShort((short) method)
+                .putShort(template.getShort(12))
+                .putShort(template.getShort(14))
+                .putInt(template.getInt(16))
+                .putInt((int) compressedSize)
+                .putInt((int) size)
+                .putShort((short) name.length)
+                .putShort((short) 0)
+                .put(name)
+                .flip();
+            final ByteBuffer central = ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(CENTRAL_SIGNATURE)
+                .putShort(template.getShort(4))
+                .putShort(template.getShort(6))
+                .putShort((short) flags)
+                .putShort((short) method)
+                .putShort(template.getShort(12))
+                .putShort(template.getShort(14))
+                .putInt(template.getInt(16))
+                .putInt((int) compressedSize)
+                .putInt((int) size)
+                .putShort((short) name.length)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort(template.getShort(36))
+                .putInt(template.getInt(38))
+                .putInt((int) this.offset)
+                .put(name)
+                .flip();
+
+            this.offset += writeFully(this.channel, local);
+            this.offset += writeFully(this.channel, data.duplicate());
+            this.centralDirectory.writeBytes(central.array());
+            this.count++;
+        }
+
+        private void next() throws IOException {
+            this.closeJar();
+            final Path tempFile = Util.createTempFile(this.target(this.tempFiles.size()));
+            this.tempFiles.add(tempFile);
+            this.channel = FileChannel.open(tempFile, WRITE, TRUNCATE_EXISTING);
+            this.centralDirectory = new ByteArrayOutputStream();
+            this.count = 0;
+            this.offset = 0;
+        }
+
+        private void closeJar() throws IOException {
+            if (this.channel == null) {
+                return;
+            }
+            try (final FileChannel channel = this.channel) {
+                this.channel = null;
+                final byte[] directory = this.centralDirectory.toByteArray();
+                final ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(END_SIGNATURE)
+                    .putShort((short) 0)
+                    .putShort((short) 0)
+                    .putShort((short) this.count)
+                    .putShort((short) this.count)
+                    .putInt(directory.length)
+                    .putInt((int) this.offset)
+                    .putShort((short) 0)
+                    .flip();
+                writeFully(channel, ByteBuffer.wrap(directory));
+                writeFully(channel, end);
+            }
+        }
+
+        /**
+         * Completes the last jar and moves every jar into place.
+         *
+         * @return the merged jars, in order
+         */
+        List<Path> finish() throws IOException {
+            if (this.channel == null) {
+                // An empty jar still stands in for the classpath
+                this.next();
+            }
+            this.closeJar();
+            final var parts = new ArrayList<Path>(this.tempFiles.size());
+            for (int i = 0; i < this.tempFiles.size(); i++) {
+                final Path target = this.target(i);
+                Util.moveIntoPlace(this.tempFiles.get(i), target);
+                parts.add(target);
+            }
+            return parts;
+        }
+
+        /**
+         * Deletes whatever temporary files are left, after {@link #finish()} or in its place.
+         */
+        void discard() {
+            if (this.channel != null) {
+                try {
+                    this.channel.close();
+                } catch (final IOException ignored) {
+                }
+            }
+            for (final Path tempFile : this.tempFiles) {
+                Util.deleteQuietly(tempFile);
+            }
+        }
+
+        private static ByteBuffer copyOf(final ByteBuffer buffer) {
+            final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+            copy.put(buffer.duplicate()).flip();
+            return copy;
+        }
+
+        private static long writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+            final int length = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return length;
+        }
+    }
+}
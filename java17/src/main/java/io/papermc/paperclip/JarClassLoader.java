@@ -0,0 +1,364 @@
+package io.papermc.paperclip;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipFile;
+
+/**
+ * Loads classes and resources from jars read through a {@link ZipIndex}, so jars nested in our own jar (see
+ * {@link NestedJars}) can be on the classpath next to regular files. A {@link PackageIndex} maps each directory to the
+ * jars with entries in it, so a lookup goes straight to the jars that can answer it instead of asking every jar in
+ * turn, and a jar is only opened once something is loaded from it. Jars are still searched in the order given, like a
+ * {@link URLClassLoader}, so the versions keep coming before the libraries, and {@link #getURLs()} still lists all of
+ * them. Jars a {@link ZipIndex} can't read, such as Zip64 archives, are read through a {@link JarFile} instead.
+ * Signatures in signed jars are not checked, which is why this loader is only used when asked for or needed.
+ */
+final class JarClassLoader extends URLClassLoader {
+
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private final List<Jar> jars;
+    private final PackageIndex packages;
+    private volatile Queue<String> recorded;
+
+    JarClassLoader(final URL[] urls, final ClassLoader parent) {
+        this(urls, parent, null, null);
+    }
+
+    /**
+     * Creates a loader which reuses the package index saved in {@code indexFile} if it was saved for the same
+     * {@code key}, and otherwise indexes every jar and saves the result there. {@code key} must change whenever any
+     * jar on the classpath does, a hash of the hashes of every jar is a good choice.
+     */
+    JarClassLoader(final URL[] urls, final ClassLoader parent, final Path indexFile, final byte[] key) {
+        super(urls, parent);
+
+        this.jars = new ArrayList<>(urls.length);
+        for (final URL url : urls) {
+            this.jars.add(new Jar(url, true));
+        }
+
+        final PackageIndex saved = indexFile == null ? null : PackageIndex.load(indexFile, key, this.jars.size());
+        if (saved != null) {
+            this.packages = saved;
+            return;
+        }
+
+        final boolean expanded = this.openAll();
+        final var names = new ArrayList<Collection<String>>(this.jars.size());
+        for (final Jar jar : this.jars) {
+            names.add(jar.names());
+        }
+        this.packages = PackageIndex.build(names);
+
+        // Jars added through Class-Path attributes aren't covered by the key, so that index is never reused
+        if (indexFile != null && !expanded) {
+            this.packages.save(indexFile, key);
+        }
+    }
+
+    /**
+     * Opens every jar, adding the jars named in their Class-Path attributes right after the jar naming them, the way
+     * URLClassLoader searches them.
+     *
+     * @return whether any jars were added
+     */
+    private boolean openAll() {
+        final var seen = new HashSet<String>();
+        for (final Jar jar : this.jars) {
+            seen.add(jar.url.toString());
+        }
+
+        boolean expanded = false;
+        final var pending = new ArrayDeque<>(this.jars);
+        this.jars.clear();
+        while (!pending.isEmpty()) {
+            final Jar jar = pending.poll();
+            this.jars.add(jar);
+
+            final List<URL> classPath = jar.classPath();
+            for (int i = classPath.size() - 1; i >= 0; i--) {
+                if (seen.add(classPath.get(i).toString())) {
+                    pending.addFirst(new Jar(classPath.get(i), false));
+                    expanded = true;
+                }
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * Reads the jar at {@code url}, which is either a file or a jar in our own jar.
+     */
+    static ZipIndex openJar(final URL url) throws IOException {
+        if (url.getProtocol().equals(NestedJars.PROTOCOL)) {
+            return NestedJars.open(url);
+        }
+        if (!url.getProtocol().equals("file")) {
+            throw new IOException("Unsupported classpath URL " + url);
+        }
+        try {
+            return ZipIndex.map(Path.of(url.toURI()));
+        } catch (final URISyntaxException e) {
+            throw new IOException("Invalid classpath URL " + url, e);
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(final String name) throws ClassNotFoundException {
+        final String path = name.replace('.', '/').concat(".class");
+        for (final int i : this.packages.jars(path)) {
+            final Jar jar = this.jars.get(i);
+            final byte[] bytes;
+            try {
+                bytes = jar.read(path);
+            } catch (final IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+            if (bytes != null) {
+                final Class<?> clazz = this.defineClass(name, jar, bytes);
+                final Queue<String> recorded = this.recorded;
+                if (recorded != null) {
+                    recorded.add(name);
+                }
+                return clazz;
+            }
+        }
+        throw new ClassNotFoundException(name);
+    }
+
+    /**
+     * Adds the name of every class defined from now on to {@code recorded}, or stops doing so if it is {@code null}.
+     */
+    void recordClasses(final Queue<String> recorded) {
+        this.recorded = recorded;
+    }
+
+    private Class<?> defineClass(final String name, final Jar jar, final byte[] bytes) {
+        final int lastDot = name.lastIndexOf('.');
+        if (lastDot > 0) {
+            this.definePackage(name.substring(0, lastDot), jar);
+        }
+        return this.defineClass(name, bytes, 0, bytes.length, jar.codeSource);
+    }
+
+    private void definePackage(final String packageName, final Jar jar) {
+        if (this.getDefinedPackage(packageName) != null) {
+            return;
+        }
+        try {
+            final Manifest manifest = jar.manifest();
+            if (manifest != null) {
+                this.definePackage(packageName, manifest, jar.url);
+            } else {
+                this.definePackage(packageName, null, null, null, null, null, null, null);
+            }
+        } catch (final IllegalArgumentException e) {
+            // Another thread defined it first
+        }
+    }
+
+    @Override
+    public URL findResource(final String name) {
+        for (final int i : this.packages.jars(name)) {
+            final URL url = this.jars.get(i).resource(name);
+            if (url != null) {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(final String name) {
+        final var urls = new ArrayList<URL>();
+        for (final int i : this.packages.jars(name)) {
+            final URL url = this.jars.get(i).resource(name);
+            if (url != null) {
+                urls.add(url);
+            }
+        }
+        return Collections.enumeration(urls);
+    }
+
+    private static final class Jar {
+        private final URL url;
+        private final CodeSource codeSource;
+        // Whether this jar was given to the loader, rather than found through a Class-Path attribute
+        private final boolean explicit;
+        private ZipIndex index;
+        // Only set if the jar couldn't be read through a ZipIndex
+        private JarFile jarFile;
+        private Manifest manifest;
+        private boolean opened = false;
+
+        private Jar(final URL url, final boolean explicit) {
+            this.url = url;
+            this.codeSource = new CodeSource(url, (CodeSigner[]) null);
+            this.explicit = explicit;
+        }
+
+        private synchronized void ensureOpen() {
+            if (!this.opened) {
+                this.opened = true;
+                try {
+                    this.open();
+                } catch (final IOException e) {
+                    this.index = null;
+                    this.jarFile = null;
+                    this.manifest = null;
+                    // URLClassLoader ignores jars it can't open as well, missing Class-Path entries are common enough
+                    // to not be worth a warning
+                    if (this.explicit) {
+                        System.err.println("Skipping unreadable classpath entry " + this.url + " (" + e + ")");
+                    }
+                }
+            }
+        }
+
+        synchronized Manifest manifest() {
+            this.ensureOpen();
+            return this.manifest;
+        }
+
+        /**
+         * The names entries of this jar can be found by, empty if it can't be read.
+         */
+        synchronized Collection<String> names() {
+            this.ensureOpen();
+            if (this.index != null) {
+                return this.index.names();
+            }
+            if (this.jarFile != null) {
+                // The versioned entries are found by their unversioned names as well
+                final var names = new HashSet<String>();
+                this.jarFile.stream().forEach(entry -> names.add(entry.getName()));
+                this.jarFile.versionedStream().forEach(entry -> names.add(entry.getName()));
+                return names;
+            }
+            return Set.of();
+        }
+
+        /**
+         * The contents of the entry {@code name} in this jar, or {@code null} if there is none.
+         */
+        byte[] read(final String name) throws IOException {
+            this.ensureOpen();
+            if (this.index != null) {
+                final ZipIndex.Entry entry = this.index.entry(name);
+                return entry == null ? null : this.index.read(entry);
+            }
+            if (this.jarFile != null) {
+                final JarEntry entry = this.jarFile.getJarEntry(name);
+                if (entry == null) {
+                    return null;
+                }
+                try (final InputStream in = this.jarFile.getInputStream(entry)) {
+                    return in.readAllBytes();
+                }
+            }
+            return null;
+        }
+
+        private void open() throws IOException {
+            try {
+                this.index = openJar(this.url);
+            } catch (final IOException e) {
+                if (!this.url.getProtocol().equals("file")) {
+                    throw e;
+                }
+                try {
+                    // Opened for the running release, so multi-release jars are read the way URLClassLoader reads them
+                    this.jarFile = new JarFile(new File(this.url.toURI()), false, ZipFile.OPEN_READ, Runtime.version());
+                } catch (final IOException | URISyntaxException | IllegalArgumentException fallback) {
+                    e.addSuppressed(fallback);
+                    throw e;
+                }
+                this.manifest = this.jarFile.getManifest();
+                return;
+            }
+            final ZipIndex.Entry manifestEntry = this.index.entry(JarFile.MANIFEST_NAME);
+            if (manifestEntry != null) {
+                this.manifest = new Manifest(new ByteArrayInputStream(this.index.read(manifestEntry)));
+                if (Boolean.parseBoolean(this.manifest.getMainAttributes().getValue(Attributes.Name.MULTI_RELEASE))) {
+                    this.index.applyVersions(Runtime.version().feature());
+                }
+            }
+        }
+
+        List<URL> classPath() {
+            final Manifest manifest = this.manifest();
+            if (manifest == null || !this.url.getProtocol().equals("file")) {
+                return List.of();
+            }
+            final String classPath = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+            if (classPath == null) {
+                return List.of();
+            }
+
+            final var urls = new ArrayList<URL>();
+            for (final String path : classPath.trim().split("\\s+")) {
+                try {
+                    urls.add(new URL(this.url, path));
+                } catch (final MalformedURLException e) {
+                    // Ignored, as by URLClassLoader
+                }
+            }
+            return urls;
+        }
+
+        /**
+         * The URL of the entry {@code name} in this jar, or {@code null} if there is none. In a multi-release jar this
+         * points at the versioned entry actually used.
+         */
+        URL resource(final String name) {
+            this.ensureOpen();
+            final String entryName;
+            if (this.index != null) {
+                final ZipIndex.Entry entry = this.index.entry(name);
+                entryName = entry == null ? null : entry.name();
+            } else if (this.jarFile != null) {
+                final JarEntry entry = this.jarFile.getJarEntry(name);
+                entryName = entry == null ? null : entry.getRealName();
+            } else {
+                entryName = null;
+            }
+            if (entryName == null) {
+                return null;
+            }
+
+            try {
+                if (this.url.getProtocol().equals(NestedJars.PROTOCOL)) {
+                    return NestedJars.url(this.url.getPath().substring(1), entryName);
+                }
+                return new URL("jar:" + this.url + "!/" + entryName);
+            } catch (final MalformedURLException e) {
+                throw new IllegalStateException("Invalid resource name " + entryName, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package io.papermc.paperclip;
+
+import io.sigpipe.jbsdiff.InvalidHeaderException;
+import io.sigpipe.jbsdiff.Patch;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+import org.apache.commons.compress.compressors.CompressorException;
+
+/**
+ * Applies patches made entry by entry rather than over the whole jar, the {@code entries} format in
+ * {@code patches.list}. Such a patch is itself a zip. Its {@value #INDEX_NAME} entry lists the entries of the output
+ * jar in order, one per line, as {@code <operation>\t<name>}:
+ * <ul>
+ *     <li>{@code copy}: the entry of the same name in the original jar, copied as it is without recompressing it</li>
+ *     <li>{@code add}: the entry of the same name in the patch, copied as it is</li>
+ *     <li>{@code patch}: the entry of the same name in the original jar, with the bsdiff patch stored under that name
+ *     in the patch applied to its contents</li>
+ * </ul>
+ * Entries of the original jar which aren't listed are left out. Patched entries are stored uncompressed, so the
+ * output doesn't depend on the zlib version the JVM uses and can be checked against a hash. Entries are patched in
+ * parallel, each one in memory, and written out in order as they are done.
+ */
+final class JarPatcher {
+
+    static final String INDEX_NAME = "paperclip-entries.list";
+
+    // How many entries may be patched ahead of the one being written
+    private static final int WINDOW = 256;
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int UTF8_FLAG = 1 << 11;
+
+    private JarPatcher() {}
+
+    /**
+     * Writes the patched jar to {@code out}, patching the entries coming up on {@code executor} while earlier ones are
+     * written. This may run on {@code executor} itself.
+     */
+    static void patch(final Path oldFile, final Path patchFile, final OutputStream out, final Executor executor) throws IOException {
+        final ZipIndex oldJar = ZipIndex.map(oldFile);
+        final ZipIndex patch = ZipIndex.map(patchFile);
+        final List<Operation> operations = readIndex(patch);
+        write(oldJar, patch, operations, executor, out);
+    }
+
+    private static List<Operation> readIndex(final ZipIndex patch) throws IOException {
+        final ZipIndex.Entry index = patch.entry(INDEX_NAME);
+        if (index == null) {
+            throw new ZipException("Patch has no " + INDEX_NAME);
+        }
+
+        final var operations = new ArrayList<Operation>();
+        for (final String line : new String(patch.read(index), StandardCharsets.UTF_8).split("\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+            final int tab = line.indexOf('\t');
+            if (tab < 0) {
+                throw new ZipException("Invalid patch index line: " + line);
+            }
+            final Action action = switch (line.substring(0, tab)) {
+                case "copy" -> Action.COPY;
+                case "add" -> Action.ADD;
+                case "patch" -> Action.PATCH;
+                default -> throw new ZipException("Unknown patch operation: " + line);
+            };
+            operations.add(new Operation(action, line.substring(tab + 1)));
+        }
+        if (operations.size() >= 0xFFFF) {
+            throw new ZipException("Too many entries in patch, Zip64 is not supported");
+        }
+        return operations;
+    }
+
+    private static void write(
+        final ZipIndex oldJar,
+        final ZipIndex patch,
+        final List<Operation> operations,
+        final Executor executor,
+        final OutputStream out
+    ) throws IOException {
+        final WritableByteChannel channel = Channels.newChannel(out);
+        final var centralDirectory = new ByteArrayOutputStream();
+        final var patched = new ArrayList<FutureTask<byte[]>>(operations.size());
+        long offset = 0;
+        int submitted = 0;
+
+        for (int i = 0; i < operations.size(); i++) {
+            // Keep the threads busy with the entries coming up while this one is written
+            for (; submitted < operations.size() && submitted <= i + WINDOW; submitted++) {
+                final Operation operation = operations.get(submitted);
+                if (operation.action() == Action.PATCH) {
+                    final var task = new FutureTask<>(() -> patchEntry(oldJar, patch, operation.name()));
+                    patched.add(task);
+                    executor.execute(task);
+                } else {
+                    patched.add(null);
+                }
+            }
+
+            final Operation operation = operations.get(i);
+            final long start = offset;
+            if (start > 0xFFFFFFFFL) {
+                throw new ZipException("Patched jar is too large, Zip64 is not supported");
+            }
+            final ByteBuffer central;
+            switch (operation.action()) {
+                case COPY, ADD -> {
+                    final ZipIndex source = operation.action() == Action.COPY ? oldJar : patch;
+                    final ZipIndex.Entry entry = find(source, operation);
+                    central = copy(source.centralRecord(entry));
+                    offset += writeFully(channel, source.rawEntry(entry));
+                }
+                case PATCH -> {
+                    final byte[] data = Util.await(patched.set(i, null));
+                    final ByteBuffer template = oldJar.centralRecord(find(oldJar, operation));
+                    final byte[] name = operation.name().getBytes(StandardCharsets.UTF_8);
+                    central = storedCentralRecord(template, name, data);
+                    offset += writeFully(channel, storedLocalHeader(central, name));
+                    offset += writeFully(channel, ByteBuffer.wrap(data));
+                }
+                default -> throw new IllegalStateException();
+            }
+            // The entry starts wherever it ends up in this jar
+            central.putInt(42, (int) start);
+            centralDirectory.writeBytes(central.array());
+        }
+
+        final byte[] directory = centralDirectory.toByteArray();
+        if (offset > 0xFFFFFFFFL) {
+            throw new ZipException("Patched jar is too large, Zip64 is not supported");
+        }
+        final ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(END_SIGNATURE)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) operations.size())
+            .putShort((short) operations.size())
+            .putInt(directory.length)
+            .putInt((int) offset)
+            .putShort((short) 0)
+            .flip();
+        writeFully(channel, ByteBuffer.wrap(directory));
+        writeFully(channel, end);
+    }
+
+    private static byte[] patchEntry(final ZipIndex oldJar, final ZipIndex patch, final String name) {
+        try {
+            final byte[] original = oldJar.read(find(oldJar, name));
+            final byte[] diff = patch.read(find(patch, name));
+            final var out = new ByteArrayOutputStream(original.length + original.length / 8);
+            Patch.patch(original, diff, out);
+            return out.toByteArray();
+        } catch (final CompressorException | InvalidHeaderException e) {
+            throw new UncheckedIOException(new IOException("Failed to patch " + name, e));
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ZipIndex.Entry find(final ZipIndex zip, final Operation operation) throws ZipException {
+        return find(zip, operation.name());
+    }
+
+    private static ZipIndex.Entry find(final ZipIndex zip, final String name) throws ZipException {
+        final ZipIndex.Entry entry = zip.entry(name);
+        if (entry == null) {
+            throw new ZipException("Entry to patch not found: " + name);
+        }
+        return entry;
+    }
+
+    // A central directory record for the patched data, keeping the time of the original entry
+    private static ByteBuffer storedCentralRecord(final ByteBuffer template, final byte[] name, final byte[] data) {
+        final var crc = new CRC32();
+        crc.update(data);
+        return ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(CENTRAL_SIGNATURE)
+            .putShort((short) 20)
+            .putShort((short) 10)
+            .putShort((short) UTF8_FLAG)
+            .putShort((short) ZipIndex.STORED)
+            .putShort(template.getShort(12))
+            .putShort(template.getShort(14))
+            .putInt((int) crc.getValue())
+            .putInt(data.length)
+            .putInt(data.length)
+            .putShort((short) name.length)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putInt(0)
+            .putInt(0)
+            .put(name)
+            .flip();
+    }
+
+    private static ByteBuffer storedLocalHeader(final ByteBuffer central, final byte[] name) {
+        return ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(LOCAL_SIGNATURE)
+            .putShort((short) 10)
+            .putShort((short) UTF8_FLAG)
+            .putShort((short) ZipIndex.STORED)
+            .putShort(central.getShort(12))
+            .putShort(central.getShort(14))
+            .putInt(central.getInt(16))
+            .putInt(central.getInt(20))
+            .putInt(central.getInt(24))
+            .putShort((short) name.length)
+            .putShort((short) 0)
+            .put(name)
+            .flip();
+    }
+
+    private static ByteBuffer copy(final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+
+    private static long writeFully(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+        final int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return length;
+    }
+
+    private enum Action {
+        COPY,
+        ADD,
+        PATCH
+    }
+
+    private record Operation(Action action, String name) {
+    }
+}
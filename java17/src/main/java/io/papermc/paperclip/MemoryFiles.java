@@ -0,0 +1,315 @@
+package io.papermc.paperclip;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Patched jars kept in memory instead of being written to the repo dir, for servers that are thrown away after a single
+ * run. Enabled by setting {@code paperclip.memoryBudget} to how many MiB, or with a {@code g} suffix GiB, these jars may
+ * take up in total, with {@code paperclip.memoryExtract} extracted libraries are kept in memory as well. The jars are
+ * written straight into buffers outside the heap and put on the classpath through {@link NestedJars} URLs, so the heap
+ * never holds a copy of them. A jar that would go over the budget is written to the repo dir as usual instead. The
+ * budget is ignored with {@code paperclip.patchonly}, which is only run to write the patched jars to the repo dir.
+ *
+ * <p>Nothing kept in memory outlives the process, so every start patches again, unless a valid file from an earlier
+ * start is already in the repo dir. The downloaded original jar and the inputs a patch stages while it runs are still
+ * written to the repo dir, which can be put on a tmpfs when the root filesystem is read-only. Code that opens the jar
+ * it was loaded from as a file, rather than through its class loader, won't find a jar kept in memory.</p>
+ */
+final class MemoryFiles {
+
+    static final long BUDGET = budget();
+    static final boolean ENABLED = BUDGET > 0;
+    static final boolean EXTRACT = ENABLED && Boolean.getBoolean("paperclip.memoryExtract");
+
+    private static final int INITIAL_CAPACITY = 256 * 1024;
+    private static final String PREFIX = "memory/";
+
+    private static final Budget shared = new Budget(BUDGET);
+    private static final AtomicInteger count = new AtomicInteger();
+    private static final AtomicInteger spilled = new AtomicInteger();
+
+    private MemoryFiles() {
+    }
+
+    private static long budget() {
+        final String value = System.getProperty("paperclip.memoryBudget");
+        if (value == null) {
+            return 0;
+        }
+        final long budget = parseBudget(value);
+        if (budget < 0) {
+            System.err.println("Ignoring paperclip.memoryBudget=" + value + ", it should be a number of MiB such as 512, or of GiB such as 2g");
+            return 0;
+        }
+        if (budget > 0 && Boolean.getBoolean("paperclip.patchonly")) {
+            System.out.println("Ignoring paperclip.memoryBudget, paperclip.patchonly writes every file to the repo dir");
+            return 0;
+        }
+        return budget;
+    }
+
+    /**
+     * @return the budget in bytes given by {@code value}, a number of MiB optionally followed by {@code m}, or a number
+     *     of GiB followed by {@code g}, or -1 if it is neither
+     */
+    static long parseBudget(final String value) {
+        String number = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1024 * 1024;
+        if (number.endsWith("m")) {
+            number = number.substring(0, number.length() - 1);
+        } else if (number.endsWith("g")) {
+            number = number.substring(0, number.length() - 1);
+            unit *= 1024;
+        }
+        try {
+            final long amount = Long.parseLong(number);
+            return amount < 0 ? -1 : Math.multiplyExact(amount, unit);
+        } catch (final NumberFormatException | ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Prints how much memory the files kept in memory take up, if there are any.
+     */
+    static void report() {
+        if (ENABLED && count.get() > 0) {
+            System.out.println("Keeping " + count.get() + " files in memory, " + Util.formatSize(shared.used()) + " of the "
+                + Util.formatSize(BUDGET) + " budget" + (spilled.get() > 0 ? ", " + spilled.get() + " more were written to disk" : ""));
+        }
+    }
+
+    /**
+     * How much of {@code limit} bytes the buffers of the files in memory take up.
+     */
+    static final class Budget {
+        private final long limit;
+        private final AtomicLong used = new AtomicLong();
+
+        Budget(final long limit) {
+            this.limit = limit;
+        }
+
+        long limit() {
+            return this.limit;
+        }
+
+        long used() {
+            return this.used.get();
+        }
+
+        private boolean reserve(final long bytes) {
+            long current;
+            do {
+                current = this.used.get();
+                if (current + bytes > this.limit) {
+                    return false;
+                }
+            } while (!this.used.compareAndSet(current, current + bytes));
+            return true;
+        }
+
+        private void release(final long bytes) {
+            this.used.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * Collects a file in a buffer outside the heap while there is room for it in the budget. Once there isn't,
+     * everything written so far goes to a temporary file next to {@code target}, and so does the rest.
+     *
+     * <p>The buffer starts out at the expected size, when it is known, and otherwise doubles as it fills up. Growing it
+     * takes up the old and the new buffer for a moment, both of which count towards the budget. The budget counts the
+     * capacity of the buffer rather than the size of the file, until {@link #close()} trims off what is left over.</p>
+     */
+    static final class Output extends OutputStream {
+        // Leaves room for the array header, like the JDK's own growable buffers
+        private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+        private final String name;
+        private final Path target;
+        private final long expectedSize;
+        private final Budget budget;
+        private long size = 0;
+        private long reserved = 0;
+        private Path tempFile;
+        private OutputStream file;
+        private ByteBuffer data;
+        private boolean closed = false;
+        private boolean kept = false;
+
+        /**
+         * @param name where the file will be found among the other files in memory, relative to the repo dir
+         * @param target where the file goes if it ends up on disk
+         * @param expectedSize how large the file is going to be, or {@code -1} if that isn't known up front
+         */
+        Output(final String name, final Path target, final long expectedSize) {
+            this(name, target, expectedSize, shared);
+        }
+
+        /**
+         * @param budget what the buffer counts towards, rather than the budget shared by every file
+         */
+        Output(final String name, final Path target, final long expectedSize, final Budget budget) {
+            this.name = name;
+            this.target = target;
+            this.expectedSize = expectedSize;
+            this.budget = budget;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (this.file == null && (this.data == null || this.data.remaining() < length)) {
+                this.grow(this.size + length);
+            }
+            if (this.file != null) {
+                this.file.write(bytes, offset, length);
+            } else {
+                this.data.put(bytes, offset, length);
+            }
+            this.size += length;
+        }
+
+        // Either there is room for a buffer of at least `needed` bytes, or the file goes to disk from here on
+        private void grow(final long needed) throws IOException {
+            long capacity = this.data == null
+                ? (this.expectedSize >= needed ? this.expectedSize : Math.max(needed, INITIAL_CAPACITY))
+                : Math.max(needed, (long) this.data.capacity() * 2);
+            if (capacity > MAX_CAPACITY) {
+                capacity = Math.max(needed, MAX_CAPACITY);
+            }
+
+            if (capacity <= MAX_CAPACITY && this.budget.reserve(capacity)) {
+                final ByteBuffer grown = ByteBuffer.allocateDirect((int) capacity);
+                if (this.data != null) {
+                    grown.put(this.data.flip());
+                }
+                this.data = grown;
+                this.budget.release(this.reserved);
+                this.reserved = capacity;
+                return;
+            }
+
+            if (spilled.getAndIncrement() == 0) {
+                System.out.println("The memory budget of " + Util.formatSize(this.budget.limit()) + " is used up, writing " + this.target
+                    + " and any further files to disk instead");
+            }
+            this.tempFile = Util.createTempFile(this.target);
+            final FileChannel channel = FileChannel.open(this.tempFile, WRITE, TRUNCATE_EXISTING);
+            this.file = new BufferedOutputStream(Channels.newOutputStream(channel));
+            if (this.data != null) {
+                final ByteBuffer written = this.data.flip();
+                while (written.hasRemaining()) {
+                    channel.write(written);
+                }
+                this.data = null;
+            }
+            this.budget.release(this.reserved);
+            this.reserved = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (this.file != null) {
+                this.file.close();
+                return;
+            }
+            if (this.data == null) {
+                this.data = ByteBuffer.allocateDirect(0);
+            }
+
+            // Hands back what the last doubling left over, if there is room for the copy that takes
+            final int capacity = this.data.capacity();
+            if (capacity - this.size > capacity / 4 && this.budget.reserve(this.size)) {
+                final ByteBuffer trimmed = ByteBuffer.allocateDirect((int) this.size);
+                trimmed.put(this.data.flip());
+                this.data = trimmed;
+                this.budget.release(this.reserved);
+                this.reserved = this.size;
+            }
+            this.data.flip();
+        }
+
+        long size() {
+            return this.size;
+        }
+
+        /**
+         * @return whether the data is still in memory, rather than in a temporary file because it didn't fit the budget
+         */
+        boolean inMemory() {
+            return this.tempFile == null;
+        }
+
+        /**
+         * Puts the file, once it is complete and verified, with the other files kept in memory.
+         *
+         * @return the URL to put on the classpath for it, or {@code null} if it isn't a jar that can be read from
+         * memory, in which case it has to go to {@link #toDisk() disk} after all
+         */
+        URL keep() {
+            try {
+                final URL url = NestedJars.add(PREFIX + this.name, this.data);
+                this.kept = true;
+                count.incrementAndGet();
+                return url;
+            } catch (final IOException e) {
+                System.err.println("Unable to read " + this.target + " from memory, writing it to disk instead (" + e + ")");
+                return null;
+            }
+        }
+
+        /**
+         * @return a temporary file next to the target with the data in it, written now if it was kept in memory so far
+         */
+        Path toDisk() throws IOException {
+            if (this.tempFile == null) {
+                this.tempFile = Util.createTempFile(this.target);
+                try (final FileChannel channel = FileChannel.open(this.tempFile, WRITE, TRUNCATE_EXISTING)) {
+                    final ByteBuffer data = this.data.duplicate();
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                }
+            }
+            return this.tempFile;
+        }
+
+        /**
+         * Frees whatever this file took up, unless it was kept.
+         */
+        void discard() {
+            if (this.kept) {
+                return;
+            }
+            this.data = null;
+            this.budget.release(this.reserved);
+            this.reserved = 0;
+            if (this.tempFile != null) {
+                Util.deleteQuietly(this.tempFile);
+            }
+        }
+    }
+}
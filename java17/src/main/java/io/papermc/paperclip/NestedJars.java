@@ -0,0 +1,185 @@
+package io.papermc.paperclip;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Jars stored uncompressed inside our own jar, read in place from a mapping of our jar instead of being extracted to
+ * the repo dir. Enabled with {@code paperclip.nestedJars}, entries that are compressed, or a Paperclip that isn't run
+ * from a jar, still fall back to extracting.
+ *
+ * <p>These jars are referred to by {@code paperclip:} URLs, {@code paperclip:/META-INF/libraries/a.jar} for a jar and
+ * {@code paperclip:/META-INF/libraries/a.jar!/a/B.class} for an entry in it. They only resolve within this process.
+ * Jars kept in memory by {@link MemoryFiles} are served the same way, whether or not this is enabled.</p>
+ */
+final class NestedJars {
+
+    static final String PROTOCOL = "paperclip";
+    static final boolean ENABLED = Boolean.getBoolean("paperclip.nestedJars");
+    private static final String SEPARATOR = "!/";
+
+    private static final URLStreamHandler handler = new Handler();
+    private static final Map<String, ZipIndex> jars = new ConcurrentHashMap<>();
+    // Whole jars that aren't part of our own jar
+    private static final Map<String, ByteBuffer> added = new ConcurrentHashMap<>();
+    private static ZipIndex outerJar;
+    private static Path outerJarFile;
+    private static boolean outerJarFailed = false;
+
+    private NestedJars() {
+    }
+
+    /**
+     * Returns the URL of the jar at {@code path} in our jar, or {@code null} if it can't be read in place and has to
+     * be extracted. The jar is checked against {@code hash} like an extracted one would be, see
+     * {@link ValidationIndex#isNestedValid}.
+     */
+    static URL find(final String path, final byte[] hash, final ValidationIndex index) {
+        final ZipIndex outer = outerJar();
+        if (outer == null) {
+            return null;
+        }
+
+        final String name = path.startsWith("/") ? path.substring(1) : path;
+        final ZipIndex.Entry entry = outer.entry(name);
+        if (entry == null || entry.method() != ZipIndex.STORED) {
+            return null;
+        }
+
+        try {
+            final ByteBuffer data = outer.data(entry);
+            if (!index.isNestedValid(outerJarFile, name, data, hash)) {
+                System.err.println(name + " in our jar does not match its hash, extracting it instead");
+                return null;
+            }
+            if (!jars.containsKey(name)) {
+                jars.putIfAbsent(name, ZipIndex.read(data));
+            }
+            return url(name, null);
+        } catch (final IOException e) {
+            System.err.println("Failed to read " + name + " in place, extracting it instead (" + e + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Makes {@code data}, a whole jar, available under {@code name} and returns its URL.
+     */
+    static URL add(final String name, final ByteBuffer data) throws IOException {
+        jars.put(name, ZipIndex.read(data));
+        added.put(name, data);
+        return url(name, null);
+    }
+
+    /**
+     * The jar the {@code paperclip:} URL {@code url} points to, or an entry in.
+     */
+    static ZipIndex open(final URL url) throws IOException {
+        final ZipIndex jar = jars.get(jarName(url));
+        if (jar == null) {
+            throw new FileNotFoundException(url.toString());
+        }
+        return jar;
+    }
+
+    static URL url(final String jarName, final String entryName) throws MalformedURLException {
+        final String path = "/" + jarName + (entryName == null ? "" : SEPARATOR + entryName);
+        return new URL(PROTOCOL, null, -1, path, handler);
+    }
+
+    private static String jarName(final URL url) {
+        final String path = url.getPath().substring(1);
+        final int separator = path.indexOf(SEPARATOR);
+        return separator < 0 ? path : path.substring(0, separator);
+    }
+
+    private static synchronized ZipIndex outerJar() {
+        if (outerJar != null || outerJarFailed) {
+            return outerJar;
+        }
+
+        try {
+            outerJarFile = Util.ownJar();
+            outerJar = Util.ownJarIndex();
+        } catch (final IOException | RuntimeException e) {
+            System.err.println("Unable to read jars in place, extracting them instead (" + e + ")");
+            outerJarFailed = true;
+        }
+        return outerJar;
+    }
+
+    private static final class Handler extends URLStreamHandler {
+        @Override
+        protected URLConnection openConnection(final URL url) {
+            return new Connection(url);
+        }
+    }
+
+    private static final class Connection extends URLConnection {
+        private ZipIndex jar;
+        private ZipIndex.Entry entry;
+        private ByteBuffer data;
+
+        private Connection(final URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (this.connected) {
+                return;
+            }
+
+            final String path = this.url.getPath();
+            final int separator = path.indexOf(SEPARATOR);
+            if (separator < 0 && added.containsKey(path.substring(1))) {
+                this.data = added.get(path.substring(1));
+                this.connected = true;
+                return;
+            }
+            if (separator < 0) {
+                // The jar itself rather than an entry in it
+                this.jar = outerJar();
+                this.entry = this.jar == null ? null : this.jar.entry(path.substring(1));
+            } else {
+                this.jar = open(this.url);
+                this.entry = this.jar.entry(path.substring(separator + SEPARATOR.length()));
+            }
+            if (this.entry == null) {
+                throw new FileNotFoundException(this.url.toString());
+            }
+            this.connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            this.connect();
+            if (this.data != null) {
+                final byte[] bytes = new byte[this.data.remaining()];
+                this.data.duplicate().get(bytes);
+                return new ByteArrayInputStream(bytes);
+            }
+            return new ByteArrayInputStream(this.jar.read(this.entry));
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            try {
+                this.connect();
+                return this.data != null ? this.data.remaining() : this.entry.size();
+            } catch (final IOException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package io.papermc.paperclip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The downloaded original jar. It is only opened as a zip file system the first time an entry actually needs something
+ * from it, so a warm start where everything is already in place never opens it at all. The jar may still be
+ * downloading while entries from our own jar are extracted, anything that does need it waits for the download.
+ */
+final class OriginalJar implements Closeable {
+
+    private final CompletableFuture<Path> jar;
+    private FileSystem fileSystem;
+    private ZipIndex index;
+
+    OriginalJar(final Path jar) {
+        this(CompletableFuture.completedFuture(jar));
+    }
+
+    OriginalJar(final CompletableFuture<Path> jar) {
+        this.jar = jar;
+    }
+
+    synchronized Path rootDir() throws IOException {
+        if (this.fileSystem == null) {
+            this.fileSystem = FileSystems.newFileSystem(this.file());
+        }
+        return this.fileSystem.getPath("/");
+    }
+
+    /**
+     * The jar, once it has been downloaded.
+     */
+    Path file() throws IOException {
+        return Util.join(this.jar);
+    }
+
+    /**
+     * The central directory of the jar, for reading entries straight from it, see {@link EntryExtractor}.
+     */
+    synchronized ZipIndex index() throws IOException {
+        if (this.index == null) {
+            this.index = ZipIndex.map(this.file());
+        }
+        return this.index;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.fileSystem != null) {
+            this.fileSystem.close();
+            this.fileSystem = null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package io.papermc.paperclip;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Which jars of a classpath contain entries in which directory, so a class or resource is only looked up in the jars
+ * that can have it. The index is saved with a key derived from the hashes of every jar on the classpath and reused
+ * as long as the key matches, which lets {@link JarClassLoader} skip opening jars nothing is loaded from.
+ */
+final class PackageIndex {
+
+    private static final int[] NONE = new int[0];
+
+    private final Map<String, int[]> packages;
+
+    private PackageIndex(final Map<String, int[]> packages) {
+        this.packages = packages;
+    }
+
+    /**
+     * Builds the index from the entry names of each jar, in classpath order.
+     */
+    static PackageIndex build(final List<? extends Collection<String>> jarEntries) {
+        final var jars = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < jarEntries.size(); i++) {
+            for (final String name : jarEntries.get(i)) {
+                final List<Integer> list = jars.computeIfAbsent(packageOf(name), ignored -> new ArrayList<>(1));
+                if (list.isEmpty() || list.get(list.size() - 1) != i) {
+                    list.add(i);
+                }
+            }
+        }
+
+        final var packages = new HashMap<String, int[]>(jars.size() * 2);
+        for (final Map.Entry<String, List<Integer>> entry : jars.entrySet()) {
+            packages.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        return new PackageIndex(packages);
+    }
+
+    /**
+     * The saved index, or {@code null} if there is none for {@code key}.
+     */
+    static PackageIndex load(final Path file, final byte[] key, final int jarCount) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try (final BufferedReader reader = Files.newBufferedReader(file)) {
+            if (!Util.toHex(key).equals(reader.readLine())) {
+                return null;
+            }
+
+            final var packages = new HashMap<String, int[]>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int tab = line.indexOf('\t');
+                final int[] jars = Arrays.stream(line.substring(tab + 1).split(",")).mapToInt(Integer::parseInt).toArray();
+                for (final int jar : jars) {
+                    if (jar < 0 || jar >= jarCount) {
+                        return null;
+                    }
+                }
+                packages.put(line.substring(0, tab), jars);
+            }
+            return new PackageIndex(packages);
+        } catch (final IOException | RuntimeException e) {
+            // Only costs the time to build it again
+            return null;
+        }
+    }
+
+    void save(final Path file, final byte[] key) {
+        for (final String name : this.packages.keySet()) {
+            if (name.indexOf('\t') >= 0 || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+                // Can't be written in this format, so always index this classpath from scratch
+                return;
+            }
+        }
+
+        try {
+            final Path tempFile = Util.createTempFile(file);
+            try {
+                try (final BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
+                    writer.write(Util.toHex(key));
+                    writer.newLine();
+                    for (final Map.Entry<String, int[]> entry : new TreeMap<>(this.packages).entrySet()) {
+                        writer.write(entry.getKey());
+                        writer.write('\t');
+                        final int[] jars = entry.getValue();
+                        for (int i = 0; i < jars.length; i++) {
+                            if (i > 0) {
+                                writer.write(',');
+                            }
+                            writer.write(Integer.toString(jars[i]));
+                        }
+                        writer.newLine();
+                    }
+                }
+                Util.moveIntoPlace(tempFile, file);
+            } finally {
+                Util.deleteQuietly(tempFile);
+            }
+        } catch (final IOException e) {
+            System.err.println("Failed to save " + file + ", the classpath will be indexed again on the next start");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The positions of the jars with entries in the same directory as {@code name}, in classpath order.
+     */
+    int[] jars(final String name) {
+        return this.packages.getOrDefault(packageOf(name), NONE);
+    }
+
+    // Directory entries count towards their parent, so "a/b/" is found by looking in "a"
+    private static String packageOf(final String name) {
+        final int end = name.endsWith("/") ? name.length() - 1 : name.length();
+        final int slash = name.lastIndexOf('/', end - 1);
+        return slash < 0 ? "" : name.substring(0, slash);
+    }
+}
@@ -9,13 +9,19 @@ import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 public final class Paperclip {
 
@@ -25,10 +31,25 @@ public final class Paperclip {
             System.exit(1);
         }
 
-        final URL[] classpathUrls = setupClasspath();
+        // Before any setup, which the relaunched JVM does itself. It would have to patch into memory all over again.
+        final boolean cds = CdsArchive.ENABLED && !MemoryFiles.ENABLED;
+        if (cds) {
+            CdsArchive.relaunch(repoDir(), args);
+        }
+
+        final URL[] classpathUrls = setupClasspath(args);
+        final byte[] classpathKey = classpathKey(classpathUrls);
+        if (cds) {
+            CdsArchive.checkArchive(CdsArchive.file(repoDir(), classpathKey));
+        }
 
+        // Covers everything from creating the class loader up to the server main method being called
+        final Timings.Span handoff = Timings.phase("classloader");
         final ClassLoader parentClassLoader = Paperclip.class.getClassLoader().getParent();
-        final URLClassLoader classLoader = new URLClassLoader(classpathUrls, parentClassLoader);
+        final URLClassLoader classLoader = createClassLoader(classpathUrls, parentClassLoader, classpathKey);
+        if (ClassPreloader.ENABLED) {
+            ClassPreloader.start(classLoader, repoDir().resolve("cache").resolve("preload.profile"), classpathKey);
+        }
 
         final String mainClassName = findMainClass();
         System.out.println("Starting " + mainClassName);
@@ -39,6 +60,8 @@ public final class Paperclip {
                 final MethodHandle mainHandle = MethodHandles.lookup()
                     .findStatic(mainClass, "main", MethodType.methodType(void.class, String[].class))
                     .asFixedArity();
+                handoff.close();
+                Timings.writeSummary();
                 mainHandle.invoke((Object) args);
             } catch (final Throwable t) {
                 throw Util.sneakyThrow(t);
@@ -48,8 +71,57 @@ public final class Paperclip {
         runThread.start();
     }
 
-    private static URL[] setupClasspath() {
-        final var repoDir = Path.of(System.getProperty("bundlerRepoDir", ""));
+    private static Path repoDir() {
+        return Path.of(System.getProperty("bundlerRepoDir", ""));
+    }
+
+    private static URLClassLoader createClassLoader(final URL[] urls, final ClassLoader parent, final byte[] classpathKey) {
+        // Jars read in place from our own jar, or kept in memory, can't be opened by a plain URLClassLoader, and only the
+        // indexed loader records the classes to preload
+        final boolean indexed = Boolean.getBoolean("paperclip.indexedClassLoader");
+        if (!indexed && !NestedJars.ENABLED && !MemoryFiles.ENABLED && !ClassPreloader.ENABLED) {
+            return new URLClassLoader(urls, parent);
+        }
+
+        final Path indexFile = repoDir().resolve("cache").resolve("classpath.index");
+        return new JarClassLoader(urls, parent, indexFile, classpathKey);
+    }
+
+    /**
+     * Identifies the exact contents of the classpath. Every jar on it has been checked against a hash from one of the
+     * list files, so hashing those lists, or the bundle manifest made from them, along with where each jar ended up is
+     * enough.
+     */
+    private static byte[] classpathKey(final URL[] urls) {
+        final MessageDigest digest = Util.sha256Digest();
+        // Multi-release jars are indexed differently on each release
+        digest.update(Integer.toString(Runtime.version().feature()).getBytes(StandardCharsets.UTF_8));
+        final BundleManifest manifest = BundleManifest.get();
+        if (manifest != null) {
+            // Made from the list files, and read instead of them
+            digest.update(manifest.data());
+        } else {
+            for (final String list : List.of("versions.list", "libraries.list", "patches.list")) {
+                try (final InputStream stream = Paperclip.class.getResourceAsStream("/META-INF/" + list)) {
+                    if (stream != null) {
+                        digest.update(stream.readAllBytes());
+                    }
+                } catch (final IOException e) {
+                    throw Util.fail("Failed to read " + list + " file", e);
+                }
+                digest.update((byte) 0);
+            }
+        }
+        for (final URL url : urls) {
+            digest.update(url.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return digest.digest();
+    }
+
+    @SuppressWarnings("try")
+    private static URL[] setupClasspath(final String[] args) {
+        final var repoDir = repoDir();
 
         final PatchEntry[] patches = findPatches();
         final DownloadContext downloadContext = findDownloadContext();
@@ -57,24 +129,30 @@ public final class Paperclip {
             throw new IllegalArgumentException("patches.list file found without a corresponding original-url file");
         }
 
-        final Path baseFile;
-        if (downloadContext != null) {
-            try {
-                downloadContext.download(repoDir);
-            } catch (final IOException e) {
-                throw Util.fail("Failed to download original jar", e);
-            }
-            baseFile = downloadContext.getOutputFile(repoDir);
-        } else {
-            baseFile = null;
-        }
+        // Only preparing the files, nothing would be left running to verify them in the background
+        final boolean patchOnly = Boolean.getBoolean("paperclip.patchonly");
+        // One pool for extracting, patching and verifying, rather than one per step or per file
+        final int threads = Util.threadCount("paperclip.threads");
+        final ExecutorService executor = threads > 1 ? Util.newExecutor("Paperclip-Worker", threads) : null;
+        final ValidationIndex index = ValidationIndex.load(repoDir, !patchOnly, executor);
+        final ContentStore store = ContentStore.fromProperties();
 
-        final Map<String, Map<String, URL>> classpathUrls = extractAndApplyPatches(baseFile, patches, repoDir);
+        // Entries in our own jar don't need the original jar, they are extracted while it downloads
+        final CompletableFuture<Path> baseFile = downloadContext == null ? null : startDownload(downloadContext, repoDir, index, store);
 
-        // Exit if user has set `paperclip.patchonly` system property to `true`
-        if (Boolean.getBoolean("paperclip.patchonly")) {
-            System.exit(0);
+        // Extracted and patched files only go through the store if it is configured to share them
+        final ContentStore entryStore = store != null && store.sharesEntries() ? store : null;
+        final Map<String, Map<String, URL>> classpathUrls;
+        try {
+            classpathUrls = extractAndApplyPatches(baseFile, patches, repoDir, index, entryStore, executor);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
         }
+        index.save();
+        index.verifyInBackground();
+        MemoryFiles.report();
 
         // Keep versions and libraries separate as the versions must come first
         // This is due to change we make to some library classes inside the versions jar
@@ -85,10 +163,46 @@ public final class Paperclip {
         final URL[] urls = new URL[versionUrls.size() + libraryUrls.size()];
         System.arraycopy(versionUrls.toArray(emptyArray), 0, urls, 0, versionUrls.size());
         System.arraycopy(libraryUrls.toArray(emptyArray), 0, urls, versionUrls.size(), libraryUrls.size());
-        return urls;
+
+        // Not with the jars in memory, the merged jars would go to disk
+        final URL[] classpath;
+        if (FlatClasspath.ENABLED && !MemoryFiles.ENABLED) {
+            try (final Timings.Span ignored = Timings.phase("flatten")) {
+                classpath = FlatClasspath.flatten(urls, repoDir, classpathKey(urls));
+            }
+        } else {
+            classpath = urls;
+        }
+
+        // Exit if user has set `paperclip.patchonly` system property to `true`
+        if (patchOnly) {
+            if (CdsArchive.ENABLED && !MemoryFiles.ENABLED) {
+                trainArchive(classpath, versionUrls, args);
+            }
+            Timings.writeSummary();
+            System.exit(0);
+        }
+
+        return classpath;
+    }
+
+    private static void trainArchive(final URL[] urls, final Collection<URL> versionUrls, final String[] args) {
+        final byte[] classpathKey = classpathKey(urls);
+        if (CdsArchive.isTraining()) {
+            // The server classes are what every start loads, most library classes are never used
+            final ClassLoader parentClassLoader = Paperclip.class.getClassLoader().getParent();
+            CdsArchive.loadClasses(createClassLoader(urls, parentClassLoader, classpathKey), versionUrls);
+        } else {
+            CdsArchive.train(CdsArchive.file(repoDir(), classpathKey), args);
+        }
     }
 
     private static PatchEntry[] findPatches() {
+        final BundleManifest manifest = BundleManifest.get();
+        if (manifest != null) {
+            return manifest.patches();
+        }
+
         final InputStream patchListStream = Paperclip.class.getResourceAsStream("/META-INF/patches.list");
         if (patchListStream == null) {
             return new PatchEntry[0];
@@ -101,7 +215,28 @@ public final class Paperclip {
         }
     }
 
+    /**
+     * Patches from the outputs of earlier builds, see {@link PatchEntry#applyPatch}.
+     */
+    private static PatchEntry[] findUpgrades() {
+        final InputStream upgradeListStream = Paperclip.class.getResourceAsStream("/META-INF/upgrades.list");
+        if (upgradeListStream == null) {
+            return new PatchEntry[0];
+        }
+
+        try (upgradeListStream) {
+            return PatchEntry.parse(new BufferedReader(new InputStreamReader(upgradeListStream)));
+        } catch (final IOException e) {
+            throw Util.fail("Failed to read upgrades.list file", e);
+        }
+    }
+
     private static DownloadContext findDownloadContext() {
+        final BundleManifest manifest = BundleManifest.get();
+        if (manifest != null) {
+            return manifest.downloadContext();
+        }
+
         final String line;
         try {
             line = Util.readResourceText("/META-INF/download-context");
@@ -113,10 +248,12 @@ public final class Paperclip {
     }
 
     private static FileEntry[] findVersionEntries() {
-        return findFileEntries("versions.list");
+        final BundleManifest manifest = BundleManifest.get();
+        return manifest != null ? manifest.versions() : findFileEntries("versions.list");
     }
     private static FileEntry[] findLibraryEntries() {
-        return findFileEntries("libraries.list");
+        final BundleManifest manifest = BundleManifest.get();
+        return manifest != null ? manifest.libraries() : findFileEntries("libraries.list");
     }
     private static FileEntry[] findFileEntries(final String fileName) {
         final InputStream libListStream = Paperclip.class.getResourceAsStream("/META-INF/" + fileName);
@@ -137,6 +274,11 @@ public final class Paperclip {
             return mainClassName;
         }
 
+        final BundleManifest manifest = BundleManifest.get();
+        if (manifest != null) {
+            return manifest.mainClass();
+        }
+
         try {
             return Util.readResourceText("/META-INF/main-class");
         } catch (final IOException e) {
@@ -144,53 +286,106 @@ public final class Paperclip {
         }
     }
 
-    private static Map<String, Map<String, URL>> extractAndApplyPatches(final Path originalJar, final PatchEntry[] patches, final Path repoDir) {
-        if (originalJar == null && patches.length > 0) {
+    private static CompletableFuture<Path> startDownload(
+        final DownloadContext downloadContext,
+        final Path repoDir,
+        final ValidationIndex index,
+        final ContentStore store
+    ) {
+        // Started here rather than on the download thread, so it can't become the current phase after extraction has
+        final Timings.Span phase = Timings.phase("download");
+        final Executor thread = task -> {
+            final var downloadThread = new Thread(task, "Paperclip-Download");
+            downloadThread.setDaemon(true);
+            downloadThread.start();
+        };
+        return CompletableFuture.supplyAsync(() -> {
+            try (phase) {
+                downloadContext.download(repoDir, index, store);
+            } catch (final IOException e) {
+                throw Util.fail("Failed to download original jar", e);
+            }
+            return downloadContext.getOutputFile(repoDir);
+        }, thread);
+    }
+
+    @SuppressWarnings("try")
+    private static Map<String, Map<String, URL>> extractAndApplyPatches(
+        final CompletableFuture<Path> originalJarFile,
+        final PatchEntry[] patches,
+        final Path repoDir,
+        final ValidationIndex index,
+        final ContentStore store,
+        final ExecutorService executor
+    ) {
+        if (originalJarFile == null && patches.length > 0) {
             throw new IllegalArgumentException("Patch data found without patch target");
         }
 
-        // First extract any non-patch files
-        final Map<String, Map<String, URL>> urls = extractFiles(patches, originalJar, repoDir);
+        // The original jar is shared by both steps, and is only opened if some entry actually needs it
+        try (final OriginalJar originalJar = originalJarFile == null ? null : new OriginalJar(originalJarFile)) {
+            // First extract any non-patch files
+            final Map<String, Map<String, URL>> urls;
+            try (final Timings.Span ignored = Timings.phase("extract")) {
+                urls = extractFiles(patches, originalJar, repoDir, index, store, executor);
+            }
 
-        // Next apply any patches that we have
-        applyPatches(urls, patches, originalJar, repoDir);
+            // Next apply any patches that we have
+            try (final Timings.Span ignored = Timings.phase("patch")) {
+                applyPatches(urls, patches, originalJar, repoDir, index, store, executor);
+            }
 
-        return urls;
+            // Nothing may have needed the original jar, it is still downloaded before the server starts
+            if (originalJar != null) {
+                awaitDownload(originalJar);
+            }
+            return urls;
+        } catch (final IOException e) {
+            throw Util.fail("Failed to close original jar", e);
+        }
     }
 
-    private static Map<String, Map<String, URL>> extractFiles(final PatchEntry[] patches, final Path originalJar, final Path repoDir) {
+    private static void awaitDownload(final OriginalJar originalJar) {
+        try {
+            originalJar.file();
+        } catch (final IOException e) {
+            throw Util.fail("Failed to download original jar", e);
+        }
+    }
+
+    private static Map<String, Map<String, URL>> extractFiles(
+        final PatchEntry[] patches,
+        final OriginalJar originalJar,
+        final Path repoDir,
+        final ValidationIndex index,
+        final ContentStore store,
+        final ExecutorService executor
+    ) {
         final var urls = new HashMap<String, Map<String, URL>>();
 
-        try {
-            final FileSystem originalJarFs;
-            if (originalJar == null) {
-                originalJarFs = null;
-            } else {
-                originalJarFs = FileSystems.newFileSystem(originalJar);
-            }
+        final FileEntry[] versionEntries = findVersionEntries();
+        final FileEntry[] libraryEntries = findLibraryEntries();
 
-            try {
-                final Path originalRootDir;
-                if (originalJarFs == null) {
-                    originalRootDir = null;
-                } else {
-                    originalRootDir = originalJarFs.getPath("/");
-                }
+        // The maps are always filled in entry order from a single thread, they are only synchronized to be safe to
+        // share with the worker threads
+        final Map<String, URL> versionsMap = Collections.synchronizedMap(new HashMap<>());
+        urls.putIfAbsent("versions", versionsMap);
+        final Map<String, URL> librariesMap = Collections.synchronizedMap(new HashMap<>());
+        urls.putIfAbsent("libraries", librariesMap);
 
-                final var versionsMap = new HashMap<String, URL>();
-                urls.putIfAbsent("versions", versionsMap);
-                final FileEntry[] versionEntries = findVersionEntries();
-                extractEntries(versionsMap, patches, originalRootDir, repoDir, versionEntries, "versions");
-
-                final FileEntry[] libraryEntries = findLibraryEntries();
-                final var librariesMap = new HashMap<String, URL>();
-                urls.putIfAbsent("libraries", librariesMap);
-                extractEntries(librariesMap, patches, originalRootDir, repoDir, libraryEntries, "libraries");
-            } finally {
-                if (originalJarFs != null) {
-                    originalJarFs.close();
-                }
-            }
+        try {
+            // Submit both lists before waiting on either so libraries don't wait for the versions to finish
+            final var versionTasks = extractTasks(patches, originalJar, repoDir, index, store, versionEntries, "versions");
+            final var libraryTasks = extractTasks(patches, originalJar, repoDir, index, store, libraryEntries, "libraries");
+            final var tasks = new ArrayList<Util.IOTask<URL>>(versionTasks);
+            tasks.addAll(libraryTasks);
+            final var embedded = new BitSet(tasks.size());
+            markEmbedded(embedded, 0, versionEntries, "versions");
+            markEmbedded(embedded, versionTasks.size(), libraryEntries, "libraries");
+            final List<URL> results = invokeEmbeddedFirst(executor, tasks, embedded);
+
+            putEntries(versionsMap, versionEntries, results.subList(0, versionTasks.size()));
+            putEntries(librariesMap, libraryEntries, results.subList(versionTasks.size(), results.size()));
         } catch (final IOException e) {
             throw Util.fail("Failed to extract jar files", e);
         }
@@ -198,31 +393,89 @@ public final class Paperclip {
         return urls;
     }
 
-    private static void extractEntries(
-        final Map<String, URL> urls,
+    private static List<Util.IOTask<URL>> extractTasks(
         final PatchEntry[] patches,
-        final Path originalRootDir,
+        final OriginalJar originalJar,
         final Path repoDir,
+        final ValidationIndex index,
+        final ContentStore store,
         final FileEntry[] entries,
         final String targetName
-    ) throws IOException {
+    ) {
         if (entries == null) {
-            return;
+            return List.of();
         }
 
         final String targetPath = "/META-INF/" + targetName;
         final Path targetDir = repoDir.resolve(targetName);
 
+        final var tasks = new ArrayList<Util.IOTask<URL>>(entries.length);
         for (final FileEntry entry : entries) {
-            entry.extractFile(urls, patches, targetName, originalRootDir, targetPath, targetDir);
+            tasks.add(() -> entry.extractFile(patches, targetName, originalJar, targetPath, targetDir, index, store));
+        }
+        return tasks;
+    }
+
+    private static void markEmbedded(final BitSet embedded, final int start, final FileEntry[] entries, final String targetName) {
+        if (entries == null) {
+            return;
+        }
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].isEmbedded("/META-INF/" + targetName)) {
+                embedded.set(start + i);
+            }
+        }
+    }
+
+    /**
+     * Runs the {@code embedded} tasks before the others, which may have to wait for the original jar to finish
+     * downloading, and returns the results in the same order as the tasks.
+     */
+    private static List<URL> invokeEmbeddedFirst(
+        final ExecutorService executor,
+        final List<Util.IOTask<URL>> tasks,
+        final BitSet embedded
+    ) throws IOException {
+        final int[] order = new int[tasks.size()];
+        int next = 0;
+        for (int i = embedded.nextSetBit(0); i >= 0 && i < tasks.size(); i = embedded.nextSetBit(i + 1)) {
+            order[next++] = i;
+        }
+        for (int i = embedded.nextClearBit(0); i < tasks.size(); i = embedded.nextClearBit(i + 1)) {
+            order[next++] = i;
+        }
+
+        final var ordered = new ArrayList<Util.IOTask<URL>>(tasks.size());
+        for (final int i : order) {
+            ordered.add(tasks.get(i));
+        }
+        final List<URL> results = Util.invokeAll(executor, ordered);
+
+        final var inOrder = new ArrayList<URL>(Collections.nCopies(tasks.size(), null));
+        for (int i = 0; i < order.length; i++) {
+            inOrder.set(order[i], results.get(i));
+        }
+        return inOrder;
+    }
+
+    private static void putEntries(final Map<String, URL> urls, final FileEntry[] entries, final List<URL> results) {
+        // Insert in the same order as the list files so the classpath doesn't depend on which thread finished first
+        for (int i = 0; i < results.size(); i++) {
+            final URL url = results.get(i);
+            if (url != null) {
+                urls.put(entries[i].path(), url);
+            }
         }
     }
 
     private static void applyPatches(
         final Map<String, Map<String, URL>> urls,
         final PatchEntry[] patches,
-        final Path originalJar,
-        final Path repoDir
+        final OriginalJar originalJar,
+        final Path repoDir,
+        final ValidationIndex index,
+        final ContentStore store,
+        final ExecutorService executor
     ) {
         if (patches.length == 0) {
             return;
@@ -231,11 +484,18 @@ public final class Paperclip {
             throw new IllegalStateException("Patches provided without patch target");
         }
 
-        try (final FileSystem originalFs = FileSystems.newFileSystem(originalJar)) {
-            final Path originalRootDir = originalFs.getPath("/");
-
+        try {
+            final PatchEntry[] upgrades = findUpgrades();
+            final var results = new ArrayList<CompletableFuture<URL>>(patches.length);
             for (final PatchEntry patch : patches) {
-                patch.applyPatch(urls, originalRootDir, repoDir);
+                results.add(patch.applyPatch(originalJar, upgrades, repoDir, index, store, executor == null ? Runnable::run : executor));
+            }
+
+            // For the classpath, use the patched file instead of the original, put in patch order so the result
+            // doesn't depend on which patch finished first
+            for (int i = 0; i < patches.length; i++) {
+                final URL url = Util.join(results.get(i));
+                urls.get(patches[i].location()).put(patches[i].originalPath(), url);
             }
         } catch (final IOException e) {
             throw Util.fail("Failed to apply patches", e);
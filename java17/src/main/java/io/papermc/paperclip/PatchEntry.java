@@ -16,14 +16,18 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.compress.compressors.CompressorException;
 
-import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
@@ -34,9 +38,13 @@ record PatchEntry(
     byte[] outputHash,
     String originalPath,
     String patchPath,
-    String outputPath
+    String outputPath,
+    Format format
 ) {
-    private static boolean announced = false;
+    // The old in-memory jbsdiff path, kept as a fallback and to compare against BsdiffPatcher
+    private static final boolean LEGACY_PATCHER = Boolean.getBoolean("paperclip.legacyPatcher");
+
+    private static final AtomicBoolean announced = new AtomicBoolean(false);
 
     static PatchEntry[] parse(final BufferedReader reader) throws IOException {
         var result = new PatchEntry[8];
@@ -70,8 +78,9 @@ record PatchEntry(
             return null;
         }
 
+        // The format column is optional, older bundles only have whole-jar patches
         final var parts = line.split("\t");
-        if (parts.length != 7) {
+        if (parts.length != 7 && parts.length != 8) {
             throw new IllegalStateException("Invalid patch data line: " + line);
         }
 
@@ -82,70 +91,365 @@ record PatchEntry(
             Util.fromHex(parts[3]),
             parts[4],
             parts[5],
-            parts[6]
+            parts[6],
+            parts.length == 8 ? Format.parse(parts[7]) : Format.BSDIFF
         );
     }
 
-    void applyPatch(final Map<String, Map<String, URL>> urls, final Path originalRootDir, final Path repoDir) throws IOException {
-        final Path inputDir = originalRootDir.resolve("META-INF").resolve(this.location);
+    /**
+     * Applies this patch and returns the URL of the patched file, which replaces {@link #originalPath()} on the
+     * classpath. Reading the original file and loading the patch data run as separate tasks on {@code executor}, and
+     * the output is hashed while it is written rather than read back afterwards. Neither file is ever held in memory
+     * as a whole, see {@link BsdiffPatcher}, or {@link JarPatcher} for patches in the {@code entries} format. If
+     * {@code store} is given the output is taken from, or added to, the shared store. Only one process sharing the
+     * repo dir, or the store, applies the patch at a time.
+     *
+     * <p>{@code upgrades} are patches from {@code upgrades.list}, in the same format as {@code patches.list}, except
+     * that the file they patch is the output of an earlier build in the repo dir rather than an entry of the original
+     * jar. If one of them leads to the same output and its input is still there, it is applied instead, and the
+     * original jar isn't read at all. If it fails the patch is applied from the original jar as usual.</p>
+     */
+    CompletableFuture<URL> applyPatch(
+        final OriginalJar originalJar,
+        final PatchEntry[] upgrades,
+        final Path repoDir,
+        final ValidationIndex index,
+        final ContentStore store,
+        final Executor executor
+    ) throws IOException {
         final Path targetDir = repoDir.resolve(this.location);
-
-        final Path inputFile = inputDir.resolve(this.originalPath);
         final Path outputFile = targetDir.resolve(this.outputPath);
 
-        // Short-cut if the patch is already applied
-        if (Files.exists(outputFile) && Util.isFileValid(outputFile, this.outputHash)) {
+        final Timings.Span span = Timings.file("patch", outputFile);
+        try {
+            // Short-cut if the patch is already applied
+            final URL applied = this.findApplied(outputFile, index, store);
+            if (applied != null) {
+                span.reused();
+                span.close();
+                return CompletableFuture.completedFuture(applied);
+            }
+            return this.applyLocked(originalJar, upgrades, targetDir, outputFile, index, store, executor, span)
+                .whenComplete((url, error) -> span.close());
+        } catch (final IOException | RuntimeException e) {
+            span.close();
+            throw e;
+        }
+    }
+
+    private CompletableFuture<URL> applyLocked(
+        final OriginalJar originalJar,
+        final PatchEntry[] upgrades,
+        final Path targetDir,
+        final Path outputFile,
+        final ValidationIndex index,
+        final ContentStore store,
+        final Executor executor,
+        final Timings.Span span
+    ) throws IOException {
+        // Make sure only one process sharing the repo dir, or the store, applies this patch
+        final EntryLock lock = store == null ? index.lock(outputFile) : store.lock(this.outputHash);
+        try {
+            // Whoever held the lock before us may have just applied it
+            final URL appliedNow = this.findApplied(outputFile, index, store);
+            if (appliedNow != null) {
+                span.reused();
+                lock.close();
+                return CompletableFuture.completedFuture(appliedNow);
+            }
+
+            CompletableFuture<URL> result = this.patch(originalJar, upgrades, targetDir, outputFile, index, store, executor, span);
+            if (store != null) {
+                result = result.thenApply(url -> {
+                    // A patched jar kept in memory isn't shared
+                    if (url.getProtocol().equals(NestedJars.PROTOCOL)) {
+                        return url;
+                    }
+                    try {
+                        return store.share(outputFile, this.outputHash, index).toUri().toURL();
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            return result.whenComplete((url, error) -> {
+                try {
+                    lock.close();
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (final IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the URL of the already patched file, or {@code null} if the patch still needs to be applied
+     */
+    private URL findApplied(final Path outputFile, final ValidationIndex index, final ContentStore store) throws IOException {
+        if ((store == null || !store.isDirect()) && Files.exists(outputFile) && index.isFileValid(outputFile, this.outputHash)) {
             // For the classpath, use the patched file instead of the original
-            urls.get(this.location).put(this.originalPath, outputFile.toUri().toURL());
-            return;
+            return outputFile.toUri().toURL();
         }
 
-        if (!announced) {
+        if (store != null) {
+            // Another instance may already have patched it
+            final Path stored = store.find(this.outputHash, index);
+            if (stored != null) {
+                return store.use(stored, outputFile, this.outputHash, index).toUri().toURL();
+            }
+        }
+        return null;
+    }
+
+    private CompletableFuture<URL> patch(
+        final OriginalJar originalJar,
+        final PatchEntry[] upgrades,
+        final Path targetDir,
+        final Path outputFile,
+        final ValidationIndex index,
+        final ContentStore store,
+        final Executor executor,
+        final Timings.Span span
+    ) throws IOException {
+        if (!announced.getAndSet(true)) {
             System.out.println("Applying patches");
-            announced = true;
         }
+        if (!Files.isDirectory(outputFile.getParent())) {
+            Files.createDirectories(outputFile.getParent());
+        }
+
+        for (final PatchEntry upgrade : upgrades) {
+            final Path previousFile = this.findPrevious(upgrade, targetDir, index, store);
+            if (previousFile == null) {
+                continue;
+            }
+            return upgrade.patchFrom(previousFile, outputFile, index, executor, span, false).exceptionallyCompose(e -> {
+                System.err.println("Failed to upgrade " + previousFile + ", patching the original jar instead (" + e + ")");
+                try {
+                    return this.patchOriginal(originalJar, outputFile, index, executor, span);
+                } catch (final IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+        return this.patchOriginal(originalJar, outputFile, index, executor, span);
+    }
+
+    /**
+     * @return the output of an earlier build {@code upgrade} can be applied to instead of this patch, or {@code null}
+     */
+    private Path findPrevious(final PatchEntry upgrade, final Path targetDir, final ValidationIndex index, final ContentStore store) {
+        if (!upgrade.location.equals(this.location) || !upgrade.outputPath.equals(this.outputPath)
+            || !Arrays.equals(upgrade.outputHash, this.outputHash)) {
+            return null;
+        }
+
+        // Usually the previous build wrote its output to the same place, which the store may have taken over
+        final Path previousFile = targetDir.resolve(upgrade.originalPath);
+        if (Files.exists(previousFile) && index.isFileValid(previousFile, upgrade.originalHash)) {
+            return previousFile;
+        }
+        return store == null ? null : store.find(upgrade.originalHash, index);
+    }
 
-        // Verify input file is correct
+    private CompletableFuture<URL> patchOriginal(
+        final OriginalJar originalJar,
+        final Path outputFile,
+        final ValidationIndex index,
+        final Executor executor,
+        final Timings.Span span
+    ) throws IOException {
+        final Path inputDir = originalJar.rootDir().resolve("META-INF").resolve(this.location);
+        final Path inputFile = inputDir.resolve(this.originalPath);
         if (Files.notExists(inputFile)) {
             throw new IllegalStateException("Input file not found: " + inputFile);
         }
-        if (!Util.isFileValid(inputFile, this.originalHash)) {
+        return this.patchFrom(inputFile, outputFile, index, executor, span, true);
+    }
+
+    /**
+     * @param fatal whether failing to patch stops Paperclip, rather than failing the returned future so the caller can
+     *              try another way
+     */
+    private CompletableFuture<URL> patchFrom(
+        final Path inputFile,
+        final Path outputFile,
+        final ValidationIndex index,
+        final Executor executor,
+        final Timings.Span span,
+        final boolean fatal
+    ) {
+
+        // Both inputs are staged next to the output while they are hashed, so the patch can read them without
+        // holding either one in memory
+        final CompletableFuture<Path> originalFile = CompletableFuture.supplyAsync(() -> this.stageOriginal(inputFile, outputFile), executor);
+        final CompletableFuture<Path> patchFile = CompletableFuture.supplyAsync(() -> this.stagePatch(outputFile), executor);
+        return originalFile.thenCombineAsync(
+            patchFile,
+            (original, patch) -> this.writeOutput(inputFile, outputFile, original, patch, index, executor, span, fatal),
+            executor
+        ).whenComplete((url, error) -> {
+            // If one input fails the other may still be running, wait for both before removing them
+            CompletableFuture.allOf(originalFile, patchFile).whenComplete((ignored, e) -> {
+                deleteStaged(originalFile);
+                deleteStaged(patchFile);
+            });
+        });
+    }
+
+    private Path stageOriginal(final Path inputFile, final Path outputFile) {
+        final byte[] hash;
+        final Path stagedFile;
+        try (final InputStream in = Files.newInputStream(inputFile)) {
+            stagedFile = Files.createTempFile(outputFile.getParent(), outputFile.getFileName().toString(), ".original");
+            hash = stage(in, stagedFile);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (!Arrays.equals(this.originalHash, hash)) {
+            Util.deleteQuietly(stagedFile);
             throw new IllegalStateException("Hash check of input file failed for " + inputFile);
         }
+        return stagedFile;
+    }
 
+    private Path stagePatch(final Path outputFile) {
         // Get and verity patch data is correct
         final String fullPatchPath = "/META-INF/" + Util.endingSlash(this.location) + this.patchPath;
-        final InputStream patchStream = PatchEntry.class.getResourceAsStream(fullPatchPath);
-        if (patchStream == null) {
-            throw new IllegalStateException("Patch file not found: " + fullPatchPath);
+        final byte[] hash;
+        final Path stagedFile;
+        try (final InputStream patchStream = BundleManifest.resource(fullPatchPath)) {
+            if (patchStream == null) {
+                throw new IllegalStateException("Patch file not found: " + fullPatchPath);
+            }
+            stagedFile = Files.createTempFile(outputFile.getParent(), outputFile.getFileName().toString(), ".patch");
+            hash = stage(patchStream, stagedFile);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
         }
-        final byte[] patchBytes = Util.readFully(patchStream);
-        if (!Util.isDataValid(patchBytes, this.patchHash)) {
+
+        if (!Arrays.equals(this.patchHash, hash)) {
+            Util.deleteQuietly(stagedFile);
             throw new IllegalStateException("Hash check of patch file failed for " + fullPatchPath);
         }
+        return stagedFile;
+    }
+
+    private static byte[] stage(final InputStream in, final Path stagedFile) throws IOException {
+        try (final OutputStream out = Files.newOutputStream(stagedFile, WRITE, TRUNCATE_EXISTING)) {
+            return Util.copyHashed(in, out);
+        } catch (final IOException e) {
+            Util.deleteQuietly(stagedFile);
+            throw e;
+        }
+    }
+
+    private static void deleteStaged(final CompletableFuture<Path> stagedFile) {
+        if (!stagedFile.isCompletedExceptionally()) {
+            Util.deleteQuietly(stagedFile.join());
+        }
+    }
 
-        final byte[] originalBytes = Util.readBytes(inputFile);
+    private URL writeOutput(
+        final Path inputFile,
+        final Path outputFile,
+        final Path originalFile,
+        final Path patchFile,
+        final ValidationIndex index,
+        final Executor executor,
+        final Timings.Span span,
+        final boolean fatal
+    ) {
+        final MessageDigest digest = Util.sha256Digest();
+        // In memory if there is room for it, see MemoryFiles
+        MemoryFiles.Output memory = null;
+        Path tempFile = null;
         try {
-            if (!Files.isDirectory(outputFile.getParent())) {
-                Files.createDirectories(outputFile.getParent());
+            span.read(Files.size(originalFile) + Files.size(patchFile));
+            if (MemoryFiles.ENABLED) {
+                // A bsdiff patch says how large its output is, so the buffer can be that size from the start
+                final long expectedSize = this.format == Format.BSDIFF ? BsdiffPatcher.outputLength(patchFile) : -1;
+                memory = new MemoryFiles.Output(Util.endingSlash(this.location) + this.outputPath, outputFile, expectedSize);
+            } else {
+                tempFile = Util.createTempFile(outputFile);
             }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try {
             try (
-                final OutputStream outStream =
-                    new BufferedOutputStream(Files.newOutputStream(outputFile, CREATE, WRITE, TRUNCATE_EXISTING))
+                final OutputStream outStream = new DigestOutputStream(
+                    memory != null ? memory : new BufferedOutputStream(Files.newOutputStream(tempFile, WRITE, TRUNCATE_EXISTING)),
+                    digest
+                )
             ) {
-                Patch.patch(originalBytes, patchBytes, outStream);
+                if (this.format == Format.ENTRIES) {
+                    JarPatcher.patch(originalFile, patchFile, outStream, executor);
+                } else if (LEGACY_PATCHER) {
+                    Patch.patch(Util.readBytes(originalFile), Util.readBytes(patchFile), outStream);
+                } else {
+                    BsdiffPatcher.patch(originalFile, patchFile, outStream);
+                }
             }
         } catch (final CompressorException | InvalidHeaderException | IOException e) {
             // Don't move this `catch` clause to the outer try-with-resources
             // the Util.fail method never returns, so `close()` would never get called
+            if (memory != null) {
+                memory.discard();
+            } else {
+                Util.deleteQuietly(tempFile);
+            }
+            if (!fatal) {
+                throw new UncheckedIOException(new IOException("Failed to patch " + inputFile, e));
+            }
             throw Util.fail("Failed to patch " + inputFile, e);
         }
 
-        if (!Util.isFileValid(outputFile, this.outputHash)) {
-            throw new IllegalStateException("Patch not applied correctly for " + this.outputPath);
+        try {
+            // Only a verified output is ever moved into place
+            if (!Arrays.equals(this.outputHash, digest.digest())) {
+                throw new IllegalStateException("Patch not applied correctly for " + this.outputPath);
+            }
+            if (memory != null) {
+                final URL kept = memory.inMemory() ? memory.keep() : null;
+                if (kept != null) {
+                    span.written(memory.size());
+                    return kept;
+                }
+                tempFile = memory.toDisk();
+            }
+            span.written(Files.size(tempFile));
+            Util.moveIntoPlace(tempFile, outputFile);
+            index.record(outputFile, this.outputHash);
+            return outputFile.toUri().toURL();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (memory != null) {
+                memory.discard();
+            } else {
+                Util.deleteQuietly(tempFile);
+            }
         }
+    }
+
+    enum Format {
+        // A bsdiff patch of the whole jar
+        BSDIFF,
+        // A patch for each entry of the jar, see JarPatcher
+        ENTRIES;
 
-        // For the classpath, use the patched file instead of the original
-        urls.get(this.location).put(this.originalPath, outputFile.toUri().toURL());
+        static Format parse(final String name) {
+            return switch (name) {
+                case "bsdiff" -> BSDIFF;
+                case "entries" -> ENTRIES;
+                default -> throw new IllegalStateException("Unknown patch format: " + name);
+            };
+        }
     }
 }
@@ -0,0 +1,95 @@
+package io.papermc.paperclip;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JDK Flight Recorder events emitted for {@link Timings}. This is the only class using {@code jdk.jfr}, and it is
+ * only loaded once {@link Timings} has found that module, so runtimes linked without it still start.
+ */
+final class TimingEvents {
+
+    private TimingEvents() {
+    }
+
+    /**
+     * @return the started event, for a phase or else for a file
+     */
+    static Object begin(final boolean phase) {
+        final Event event = phase ? new PhaseEvent() : new FileEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends and commits an event from {@link #begin}, {@code file} is {@code null} for a phase.
+     */
+    static void commit(
+        final Object started,
+        final String name,
+        final String file,
+        final boolean reused,
+        final long bytesRead,
+        final long bytesWritten
+    ) {
+        final Event event = (Event) started;
+        event.end();
+        if (event instanceof PhaseEvent phase) {
+            phase.phase = name;
+            phase.bytesRead = bytesRead;
+            phase.bytesWritten = bytesWritten;
+        } else if (event instanceof FileEvent fileEvent) {
+            fileEvent.action = name;
+            fileEvent.file = file;
+            fileEvent.reused = reused;
+            fileEvent.bytesRead = bytesRead;
+            fileEvent.bytesWritten = bytesWritten;
+        }
+        event.commit();
+    }
+
+    @Name("io.papermc.paperclip.Phase")
+    @Label("Paperclip Phase")
+    @Description("A phase of the Paperclip startup, with the bytes read and written by the files handled in it")
+    @Category("Paperclip")
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+    }
+
+    @Name("io.papermc.paperclip.File")
+    @Label("Paperclip File")
+    @Description("A file downloaded, extracted, patched or verified during the Paperclip startup")
+    @Category("Paperclip")
+    static final class FileEvent extends Event {
+        @Label("Action")
+        String action;
+
+        @Label("File")
+        String file;
+
+        @Label("Reused")
+        @Description("Whether the file was already in place")
+        boolean reused;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+    }
+}
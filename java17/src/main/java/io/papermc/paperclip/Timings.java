@@ -0,0 +1,186 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times each startup phase and the work done for each file, so a slow start can be attributed to downloading,
+ * extracting, hashing, patching or loading classes. Every span is emitted as a JDK Flight Recorder event if the runtime
+ * has the {@code jdk.jfr} module, start with {@code -XX:StartFlightRecording} to record them. If {@code paperclip.timings} names a file, a JSON summary of all
+ * spans is also written there just before the server main class is started.
+ */
+final class Timings {
+
+    private static final String SUMMARY_FILE = System.getProperty("paperclip.timings");
+    private static final long START = System.nanoTime();
+    // Runtimes linked without jdk.jfr can't load the event classes, so they are only touched if it is there
+    private static final boolean EVENTS = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    private static final Queue<Span> finished = new ConcurrentLinkedQueue<>();
+    // Phases run one after another, files finished during a phase are added to its totals. The download runs alongside
+    // the others, so a phase still running for the action of a file takes it instead
+    private static volatile Span currentPhase;
+    private static final Map<String, Span> runningPhases = new ConcurrentHashMap<>();
+
+    private Timings() {
+    }
+
+    static Span phase(final String name) {
+        final var span = new Span(name, null);
+        runningPhases.put(name, span);
+        currentPhase = span;
+        return span;
+    }
+
+    /**
+     * Starts timing {@code action} on {@code file}, which is one of {@code download}, {@code extract}, {@code patch},
+     * {@code verify} or {@code repair}.
+     */
+    static Span file(final String action, final Path file) {
+        return new Span(action, file.toString());
+    }
+
+    /**
+     * Writes the summary if {@code paperclip.timings} is set. Failing to write it never stops the server from starting.
+     */
+    static void writeSummary() {
+        if (SUMMARY_FILE == null) {
+            return;
+        }
+
+        final var phases = new ArrayList<Span>();
+        final var files = new ArrayList<Span>();
+        for (final Span span : finished) {
+            (span.file == null ? phases : files).add(span);
+        }
+
+        final var json = new StringBuilder();
+        json.append("{\n  \"totalMillis\": ").append(millis(System.nanoTime() - START)).append(",\n");
+        json.append("  \"phases\": [");
+        appendSpans(json, phases, "name");
+        json.append("],\n  \"files\": [");
+        appendSpans(json, files, "action");
+        json.append("]\n}\n");
+
+        try {
+            final Path file = Path.of(SUMMARY_FILE);
+            final Path tempFile = Util.createTempFile(file);
+            try {
+                Files.writeString(tempFile, json);
+                Util.moveIntoPlace(tempFile, file);
+            } finally {
+                Util.deleteQuietly(tempFile);
+            }
+        } catch (final IOException | RuntimeException e) {
+            System.err.println("Failed to write timings to " + SUMMARY_FILE);
+            e.printStackTrace();
+        }
+    }
+
+    private static void appendSpans(final StringBuilder json, final List<Span> spans, final String nameKey) {
+        for (int i = 0; i < spans.size(); i++) {
+            final Span span = spans.get(i);
+            json.append(i == 0 ? "\n" : ",\n").append("    {");
+            json.append('"').append(nameKey).append("\": ").append(quote(span.name));
+            if (span.file != null) {
+                json.append(", \"file\": ").append(quote(span.file));
+                json.append(", \"reused\": ").append(span.reused);
+            }
+            json.append(", \"millis\": ").append(millis(span.duration));
+            json.append(", \"bytesRead\": ").append(span.bytesRead.get());
+            json.append(", \"bytesWritten\": ").append(span.bytesWritten.get());
+            json.append('}');
+        }
+        if (!spans.isEmpty()) {
+            json.append("\n  ");
+        }
+    }
+
+    private static String millis(final long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+
+    private static String quote(final String value) {
+        final var quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    static final class Span implements AutoCloseable {
+        // The started TimingEvents event, null without jdk.jfr
+        private final Object event;
+        private final String name;
+        private final String file;
+        private final long start = System.nanoTime();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private volatile boolean reused = false;
+        private volatile long duration = -1;
+
+        private Span(final String name, final String file) {
+            this.event = EVENTS ? TimingEvents.begin(file == null) : null;
+            this.name = name;
+            this.file = file;
+        }
+
+        void read(final long bytes) {
+            this.bytesRead.addAndGet(bytes);
+        }
+
+        void written(final long bytes) {
+            this.bytesWritten.addAndGet(bytes);
+        }
+
+        /**
+         * Marks the file as already being in place, so no work was needed for it.
+         */
+        void reused() {
+            this.reused = true;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (this.duration >= 0) {
+                return;
+            }
+            this.duration = System.nanoTime() - this.start;
+
+            final long read = this.bytesRead.get();
+            final long written = this.bytesWritten.get();
+            if (this.file == null) {
+                runningPhases.remove(this.name, this);
+            } else {
+                final Span phase = runningPhases.getOrDefault(this.name, currentPhase);
+                if (phase != null && phase.duration < 0) {
+                    phase.read(read);
+                    phase.written(written);
+                }
+            }
+            if (this.event != null) {
+                TimingEvents.commit(this.event, this.name, this.file, this.reused, read, written);
+            }
+
+            if (SUMMARY_FILE != null) {
+                finished.add(this);
+            }
+        }
+    }
+}
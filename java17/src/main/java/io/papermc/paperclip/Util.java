@@ -3,19 +3,59 @@ package io.papermc.paperclip;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.CodeSource;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 class Util {
 
     private Util() {}
 
-    public static MessageDigest sha256Digest = getSha256Digest();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // One fixed size buffer per thread, hashing and copying never allocate anything proportional to the file size
+    private static final ThreadLocal<byte[]> transferBuffer = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    // For channel reads, which would otherwise go through a temporary direct buffer of the JDK's first
+    private static final ThreadLocal<ByteBuffer> directBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private static ZipIndex ownJarIndex;
+
+    // MessageDigest is not thread safe, give each worker its own instance
+    private static final ThreadLocal<MessageDigest> sha256Digest = ThreadLocal.withInitial(Util::getSha256Digest);
+
+    static MessageDigest sha256Digest() {
+        final MessageDigest digest = sha256Digest.get();
+        digest.reset();
+        return digest;
+    }
 
     private static MessageDigest getSha256Digest() {
         try {
@@ -27,7 +67,8 @@ class Util {
 
     static byte[] readBytes(final Path file) {
         try {
-            return readFully(Files.newInputStream(file));
+            // The size is known up front, so skip the buffer growing in readFully
+            return Files.readAllBytes(file);
         } catch (final IOException e) {
             throw fail("Failed to read all of the data from " + file.toAbsolutePath(), e);
         }
@@ -72,16 +113,49 @@ class Util {
     }
 
     static boolean isDataValid(final byte[] data, final byte[] hash) {
-        return Arrays.equals(hash, sha256Digest.digest(data));
+        return Arrays.equals(hash, sha256Digest().digest(data));
     }
     static boolean isFileValid(final Path file, final byte[] hash) {
         if (Files.exists(file)) {
-            final byte[] fileBytes = readBytes(file);
-            return isDataValid(fileBytes, hash);
+            try (final Timings.Span span = Timings.file("verify", file)) {
+                final MessageDigest digest = sha256Digest();
+                span.read(updateDigest(digest, file));
+                return Arrays.equals(hash, digest.digest());
+            } catch (final IOException e) {
+                throw fail("Failed to read all of the data from " + file.toAbsolutePath(), e);
+            }
         }
         return false;
     }
 
+    static byte[] hashFile(final Path file) throws IOException {
+        // Streamed rather than mapped, as a mapping would keep the file locked on Windows until the buffer is
+        // collected, and we delete and replace files right after checking them
+        final MessageDigest digest = sha256Digest();
+        updateDigest(digest, file);
+        return digest.digest();
+    }
+
+    /**
+     * Feeds the contents of {@code file} into {@code digest}.
+     *
+     * @return the number of bytes read
+     */
+    static long updateDigest(final MessageDigest digest, final Path file) throws IOException {
+        final ByteBuffer buffer = directBuffer.get().clear();
+        long size = 0;
+        try (final FileChannel channel = FileChannel.open(file, READ)) {
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+                size += read;
+            }
+        }
+        return size;
+    }
+
     static byte[] fromHex(final String s) {
         if (s.length() % 2 != 0) {
             throw new IllegalArgumentException("Length of hex " + s + " must be divisible by two");
@@ -100,6 +174,91 @@ class Util {
         }
     }
 
+    /**
+     * Copies {@code in} to {@code out} and returns the hash of the copied bytes. Neither stream is closed.
+     */
+    static byte[] copyHashed(final InputStream in, final OutputStream out) throws IOException {
+        final MessageDigest digest = sha256Digest();
+        final byte[] buffer = transferBuffer.get();
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            out.write(buffer, 0, read);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Copies {@code in} into a temporary file next to {@code target} while hashing it, and only moves it into place if
+     * the hash matches. Either a complete, verified file ends up at {@code target}, or nothing is changed.
+     *
+     * @return whether the copied data matched {@code hash}
+     */
+    static boolean copyVerified(final InputStream in, final Path target, final byte[] hash) throws IOException {
+        final Path tempFile = createTempFile(target);
+        try {
+            final byte[] actualHash;
+            try (final OutputStream out = Files.newOutputStream(tempFile, WRITE, TRUNCATE_EXISTING)) {
+                actualHash = copyHashed(in, out);
+            }
+            if (!Arrays.equals(hash, actualHash)) {
+                return false;
+            }
+            moveIntoPlace(tempFile, target);
+            return true;
+        } finally {
+            deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * Creates an empty file next to {@code target} to write it in before moving it into place. Unlike
+     * {@link Files#createTempFile}, which makes the file readable by its owner only, the file gets the permissions of
+     * any new file under the current umask, so repo dirs and stores shared between users keep working.
+     */
+    static Path createTempFile(final Path target) throws IOException {
+        final Path dir = target.toAbsolutePath().getParent();
+        if (!Files.isDirectory(dir)) {
+            Files.createDirectories(dir);
+        }
+        while (true) {
+            final String suffix = Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36);
+            try {
+                return Files.createFile(dir.resolve(target.getFileName() + "." + suffix + ".tmp"));
+            } catch (final FileAlreadyExistsException ignored) {
+                // Try another name
+            }
+        }
+    }
+
+    static void moveIntoPlace(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, REPLACE_EXISTING);
+        }
+    }
+
+    static void deleteQuietly(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException ignored) {
+        }
+    }
+
+    static String formatSize(final long bytes) {
+        return String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+
+    static String toHex(final byte[] bytes) {
+        final var builder = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
     private static int getHexValue(final char c) {
         final int i = Character.digit(c, 16);
         if (i < 0) {
@@ -108,6 +267,93 @@ class Util {
         return i;
     }
 
+    static int threadCount(final String property) {
+        final int threads = Integer.getInteger(property, Runtime.getRuntime().availableProcessors());
+        return Math.max(1, threads);
+    }
+
+    static ExecutorService newExecutor(final String name, final int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            final Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @FunctionalInterface
+    interface IOTask<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs every task and returns the results in the same order as the tasks. If {@code executor} is {@code null} the
+     * tasks are run one after another on the calling thread. A task running on {@code executor} may call this with the
+     * same executor, see {@link #await(FutureTask)}.
+     */
+    static <T> List<T> invokeAll(final ExecutorService executor, final List<IOTask<T>> tasks) throws IOException {
+        final var results = new ArrayList<T>(tasks.size());
+        if (executor == null) {
+            for (final IOTask<T> task : tasks) {
+                results.add(task.run());
+            }
+            return results;
+        }
+
+        final var futures = new ArrayList<FutureTask<T>>(tasks.size());
+        try {
+            for (final IOTask<T> task : tasks) {
+                final var future = new FutureTask<>(task::run);
+                futures.add(future);
+                executor.execute(future);
+            }
+            for (final FutureTask<T> future : futures) {
+                results.add(await(future));
+            }
+        } finally {
+            for (final Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Waits for {@code task}, which was handed to an executor, and runs it on the calling thread instead if no thread of
+     * the executor has started it yet. Tasks running on the one executor Paperclip shares between all its work can
+     * wait for tasks of their own this way, without every thread ending up waiting for tasks no thread is left to run.
+     */
+    static <T> T await(final FutureTask<T> task) throws IOException {
+        // Does nothing if the task was started already
+        task.run();
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for tasks", e);
+        } catch (final ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    static <T> T join(final CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    private static IOException rethrow(final Throwable cause) throws IOException {
+        if (cause instanceof UncheckedIOException unchecked) {
+            throw unchecked.getCause();
+        }
+        if (cause instanceof IOException io) {
+            throw io;
+        }
+        throw sneakyThrow(cause);
+    }
+
     static RuntimeException fail(final String message, final Throwable err) {
         System.err.println(message);
         if (err != null) {
@@ -122,6 +368,32 @@ class Util {
         throw (X) ex;
     }
 
+    /**
+     * The Paperclip jar we are running from.
+     */
+    static Path ownJar() throws IOException {
+        try {
+            final CodeSource source = Util.class.getProtectionDomain().getCodeSource();
+            final Path jar = Path.of(source.getLocation().toURI());
+            if (!Files.isRegularFile(jar)) {
+                throw new IOException("Not running from a jar");
+            }
+            return jar;
+        } catch (final URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Unable to locate our own jar", e);
+        }
+    }
+
+    /**
+     * The central directory of {@link #ownJar()}, read the first time it is asked for.
+     */
+    static synchronized ZipIndex ownJarIndex() throws IOException {
+        if (ownJarIndex == null) {
+            ownJarIndex = ZipIndex.map(ownJar());
+        }
+        return ownJarIndex;
+    }
+
     static String endingSlash(final String dir) {
         if (dir.endsWith("/")) {
             return dir;
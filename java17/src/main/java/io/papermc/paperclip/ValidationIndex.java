@@ -0,0 +1,370 @@
+package io.papermc.paperclip;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Remembers the size, modification time and hash of every file Paperclip has verified in the repo dir, so files that
+ * haven't changed since the last start don't have to be hashed again. Setting {@code paperclip.strictVerify} to
+ * {@code true} ignores the recorded stamps and hashes every file, the index is still kept up to date. Files the bundle
+ * has {@link ChunkHashes} for are checked chunk by chunk instead of against their root hash.
+ *
+ * <p>Setting {@code paperclip.backgroundVerify} to {@code true} is meant for hosts whose files are already known to be
+ * good, such as checksummed images. Files which exist but were never verified are then trusted right away, and hashed
+ * on a low priority thread while the server starts instead. A file failing that check stops the server and is replaced
+ * on the next start. Files whose stamp doesn't match are still hashed right away, or rewritten if the stamp is for
+ * another hash, and files which have to be written are still checked as they are written, as always.</p>
+ */
+final class ValidationIndex {
+
+    private static final String FILE_NAME = "validation.index";
+
+    private final Path indexFile;
+    private final Path lockDir;
+    private final boolean strict;
+    private final Map<String, Stamp> stamps;
+    private final ChunkHashes chunkHashes;
+    // Where chunks are checked, null to check them on the calling thread
+    private final ExecutorService executor;
+    // Files trusted for now and still to be hashed, null unless verifying in the background
+    private final Queue<Pending> pending;
+    private volatile boolean dirty = false;
+
+    private ValidationIndex(
+        final Path indexFile,
+        final Path lockDir,
+        final boolean strict,
+        final Map<String, Stamp> stamps,
+        final ChunkHashes chunkHashes,
+        final ExecutorService executor,
+        final boolean background
+    ) {
+        this.indexFile = indexFile;
+        this.lockDir = lockDir;
+        this.strict = strict;
+        this.stamps = stamps;
+        this.chunkHashes = chunkHashes;
+        this.executor = executor;
+        this.pending = background ? new ConcurrentLinkedQueue<>() : null;
+    }
+
+    /**
+     * @param background whether files may be verified in the background, if {@code paperclip.backgroundVerify} is set
+     */
+    static ValidationIndex load(final Path repoDir, final boolean background) {
+        return load(repoDir, background, null);
+    }
+
+    /**
+     * @param background whether files may be verified in the background, if {@code paperclip.backgroundVerify} is set
+     * @param executor where the chunks of files with {@link ChunkHashes} are checked, for as long as it is running
+     */
+    static ValidationIndex load(final Path repoDir, final boolean background, final ExecutorService executor) {
+        final Path indexFile = repoDir.resolve("cache").resolve(FILE_NAME);
+        final var stamps = new ConcurrentHashMap<String, Stamp>();
+
+        if (Files.isRegularFile(indexFile)) {
+            try (final BufferedReader reader = Files.newBufferedReader(indexFile)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] parts = line.split("\t");
+                    if (parts.length != 4) {
+                        throw new IllegalStateException("Malformed validation index entry: " + line);
+                    }
+                    stamps.put(parts[3], new Stamp(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Util.fromHex(parts[0])));
+                }
+            } catch (final IOException | RuntimeException e) {
+                // The index only saves time, if it can't be read everything simply gets verified again
+                stamps.clear();
+            }
+        }
+
+        final boolean strict = Boolean.getBoolean("paperclip.strictVerify");
+        final boolean deferred = background && Boolean.getBoolean("paperclip.backgroundVerify");
+        if (deferred) {
+            System.out.println("Verifying existing files in the background while the server starts (paperclip.backgroundVerify)");
+        }
+        return new ValidationIndex(indexFile, repoDir.resolve("cache").resolve("locks"), strict, stamps, ChunkHashes.load(), executor, deferred);
+    }
+
+    /**
+     * Locks the output file {@code file} against every thread and process sharing the repo dir, see
+     * {@link EntryLock#forFile}.
+     */
+    EntryLock lock(final Path file) throws IOException {
+        return EntryLock.forFile(this.lockDir, file);
+    }
+
+    /**
+     * Same as {@link Util#isFileValid(Path, byte[])}, but trusts the file without hashing it if its size and
+     * modification time still match the last time it was verified against {@code hash}.
+     */
+    boolean isFileValid(final Path file, final byte[] hash) {
+        return this.isFileValid(file, hash, null);
+    }
+
+    /**
+     * Same as {@link #isFileValid(Path, byte[])}, but if there are chunk hashes for {@code hash} and only some chunks of
+     * the file are bad, those are rewritten in place with data from {@code source} rather than failing the whole file.
+     * Callers must hold the lock for the file.
+     *
+     * @return whether the file is valid, after repairing it if need be
+     */
+    boolean isFileValid(final Path file, final byte[] hash, final ChunkHashes.Source source) {
+        if (file.getFileSystem() != FileSystems.getDefault()) {
+            return Util.isFileValid(file, hash);
+        }
+
+        final String key = file.toAbsolutePath().normalize().toString();
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (final NoSuchFileException e) {
+            this.forget(key);
+            return false;
+        } catch (final IOException e) {
+            throw Util.fail("Failed to read attributes of " + file.toAbsolutePath(), e);
+        }
+
+        final long size = attributes.size();
+        final long modified = attributes.lastModifiedTime().toMillis();
+
+        final Stamp stamp = this.strict ? null : this.stamps.get(key);
+        if (stamp != null) {
+            if (stamp.matches(size, modified, hash)) {
+                return true;
+            }
+            // Verified against another hash, most likely left over from an older build, so it has to be written again
+            if (!Arrays.equals(stamp.hash(), hash)) {
+                return false;
+            }
+        }
+
+        // Only files never verified before are trusted for now, a stamp that doesn't match is a reason to look closer
+        if (this.pending != null && stamp == null) {
+            this.pending.add(new Pending(file, key, size, modified, hash.clone()));
+            return true;
+        }
+
+        final ChunkHashes.Chunks chunks = this.chunkHashes.find(hash);
+        if (chunks == null || chunks.count() == 1) {
+            if (!Util.isFileValid(file, hash)) {
+                this.forget(key);
+                return false;
+            }
+            this.put(key, size, modified, hash);
+            return true;
+        }
+
+        final BitSet failing = this.failingChunks(file, chunks);
+        if (failing.isEmpty()) {
+            this.put(key, size, modified, hash);
+            return true;
+        }
+        if (source == null || !this.repair(file, chunks, failing, source)) {
+            this.forget(key);
+            return false;
+        }
+
+        try {
+            this.record(file, hash);
+        } catch (final IOException e) {
+            throw Util.fail("Failed to read attributes of " + file.toAbsolutePath(), e);
+        }
+        return true;
+    }
+
+    /**
+     * Whether {@code data}, the jar {@code name} stored in {@code outerJar}, matches {@code hash}. It is hashed once and
+     * then trusted for as long as the size and modification time of {@code outerJar} stay the same, so a jar read in
+     * place is checked just like an extracted one.
+     */
+    boolean isNestedValid(final Path outerJar, final String name, final ByteBuffer data, final byte[] hash) {
+        final String key = outerJar.toAbsolutePath().normalize() + "!/" + name;
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(outerJar, BasicFileAttributes.class);
+        } catch (final IOException e) {
+            // Still hashed, only not remembered
+            attributes = null;
+        }
+
+        final Stamp stamp = this.strict || attributes == null ? null : this.stamps.get(key);
+        if (stamp != null && stamp.matches(attributes.size(), attributes.lastModifiedTime().toMillis(), hash)) {
+            return true;
+        }
+
+        final MessageDigest digest = Util.sha256Digest();
+        digest.update(data.duplicate());
+        if (!Arrays.equals(hash, digest.digest())) {
+            this.forget(key);
+            return false;
+        }
+        if (attributes != null) {
+            this.put(key, attributes.size(), attributes.lastModifiedTime().toMillis(), hash);
+        }
+        return true;
+    }
+
+    private BitSet failingChunks(final Path file, final ChunkHashes.Chunks chunks) {
+        try (final Timings.Span span = Timings.file("verify", file)) {
+            final BitSet failing = chunks.failing(file, this.executor());
+            span.read(chunks.size());
+            return failing;
+        } catch (final IOException e) {
+            throw Util.fail("Failed to read all of the data from " + file.toAbsolutePath(), e);
+        }
+    }
+
+    private boolean repair(final Path file, final ChunkHashes.Chunks chunks, final BitSet failing, final ChunkHashes.Source source) {
+        // Past this point fetching only the bad chunks saves little, and the file is likely not worth keeping
+        if (failing.cardinality() * 2 > chunks.count()) {
+            return false;
+        }
+
+        System.out.println("Repairing " + failing.cardinality() + " of " + chunks.count() + " chunks of " + file.getFileName());
+        try (final Timings.Span span = Timings.file("repair", file)) {
+            final long length = chunks.length(failing);
+            if (chunks.repair(file, failing, source, this.executor())) {
+                span.read(length);
+                span.written(length);
+                return true;
+            }
+            System.err.println("Repair of " + file.getFileName() + " failed, replacing the whole file");
+        } catch (final IOException e) {
+            System.err.println("Repair of " + file.getFileName() + " failed (" + e + "), replacing the whole file");
+        }
+        return false;
+    }
+
+    // Once setup is done the pool is gone, anything checked after that is checked on the calling thread
+    private ExecutorService executor() {
+        return this.executor == null || this.executor.isShutdown() ? null : this.executor;
+    }
+
+    /**
+     * Starts hashing the files {@link #isFileValid(Path, byte[])} trusted without doing so, on a low priority daemon
+     * thread. The server is stopped if one of them doesn't match, otherwise the index is saved again once all of them
+     * are verified.
+     */
+    void verifyInBackground() {
+        if (this.pending == null || this.pending.isEmpty()) {
+            return;
+        }
+
+        final Thread verifier = new Thread(() -> {
+            int verified = 0;
+            Pending file;
+            while ((file = this.pending.poll()) != null) {
+                // Hashed one at a time rather than in chunks on every core, the server needs those more right now
+                byte[] actual;
+                try {
+                    actual = Util.hashFile(file.file());
+                } catch (final IOException e) {
+                    actual = null;
+                }
+                if (!Arrays.equals(actual, file.hash())) {
+                    // The file isn't deleted, it may be an entry of the shared store other servers use as well. Recording
+                    // what it holds makes the next start write it again rather than trust it.
+                    if (actual != null) {
+                        this.put(file.key(), file.size(), file.modified(), actual);
+                    } else {
+                        this.forget(file.key());
+                    }
+                    this.save();
+                    throw Util.fail("Background verification failed: " + file.file().toAbsolutePath() + " does not match its "
+                        + "expected hash. It will be replaced on the next start", null);
+                }
+                this.put(file.key(), file.size(), file.modified(), file.hash());
+                verified++;
+            }
+            this.save();
+            System.out.println("Verified " + verified + " files in the background");
+        }, "Paperclip-BackgroundVerify");
+        verifier.setPriority(Thread.MIN_PRIORITY);
+        verifier.setDaemon(true);
+        verifier.start();
+    }
+
+    /**
+     * Records {@code file} as matching {@code hash} without reading it, for files whose hash was already computed
+     * while they were being written.
+     */
+    void record(final Path file, final byte[] hash) throws IOException {
+        if (file.getFileSystem() != FileSystems.getDefault()) {
+            return;
+        }
+
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        this.put(file.toAbsolutePath().normalize().toString(), attributes.size(), attributes.lastModifiedTime().toMillis(), hash);
+    }
+
+    private void put(final String key, final long size, final long modified, final byte[] hash) {
+        final Stamp previous = this.stamps.put(key, new Stamp(size, modified, hash.clone()));
+        if (previous == null || !previous.matches(size, modified, hash)) {
+            this.dirty = true;
+        }
+    }
+
+    private void forget(final String key) {
+        if (this.stamps.remove(key) != null) {
+            this.dirty = true;
+        }
+    }
+
+    void save() {
+        if (!this.dirty) {
+            return;
+        }
+
+        try {
+            final Path tempFile = Util.createTempFile(this.indexFile);
+            try {
+                try (final BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
+                    for (final Map.Entry<String, Stamp> entry : new TreeMap<>(this.stamps).entrySet()) {
+                        final Stamp stamp = entry.getValue();
+                        writer.write(Util.toHex(stamp.hash()) + "\t" + stamp.size() + "\t" + stamp.modified() + "\t" + entry.getKey());
+                        writer.newLine();
+                    }
+                }
+                Files.move(tempFile, this.indexFile, REPLACE_EXISTING, ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            this.dirty = false;
+        } catch (final IOException e) {
+            System.err.println("Failed to save " + this.indexFile + ", files will be verified again on the next start");
+            e.printStackTrace();
+        }
+    }
+
+    // The size and modification time are the ones the file had when it was trusted, so a file changed since then is
+    // hashed again on the next start
+    private record Pending(Path file, String key, long size, long modified, byte[] hash) {
+    }
+
+    private record Stamp(long size, long modified, byte[] hash) {
+        boolean matches(final long size, final long modified, final byte[] hash) {
+            return this.size == size && this.modified == modified && Arrays.equals(this.hash, hash);
+        }
+    }
+}
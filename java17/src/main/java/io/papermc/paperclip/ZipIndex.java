@@ -0,0 +1,240 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * The entries of a zip file held in a buffer, found by reading its central directory once. The buffer may be a mapped
+ * file or a slice of another zip, which is how jars stored inside our own jar are read without extracting them.
+ * Zip64 archives are not supported, {@link JarClassLoader} reads those through a {@link java.util.jar.JarFile}.
+ */
+final class ZipIndex {
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int DESCRIPTOR_FLAG = 1 << 3;
+    private static final int END_SIZE = 22;
+    private static final int CENTRAL_SIZE = 46;
+    private static final int LOCAL_SIZE = 30;
+
+    private final ByteBuffer zip;
+    private final Map<String, Entry> entries;
+    private final int end;
+
+    private ZipIndex(final ByteBuffer zip, final Map<String, Entry> entries, final int end) {
+        this.zip = zip;
+        this.entries = entries;
+        this.end = end;
+    }
+
+    static ZipIndex map(final Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new ZipException(file + " is too large to be mapped");
+            }
+            // The mapping stays valid after the channel is closed
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    static ZipIndex read(final ByteBuffer buffer) throws IOException {
+        final ByteBuffer zip = buffer.slice(0, buffer.limit()).order(ByteOrder.LITTLE_ENDIAN);
+
+        // The end record is followed by a comment of up to 64 KiB
+        int end = -1;
+        for (int i = zip.limit() - END_SIZE; i >= Math.max(0, zip.limit() - END_SIZE - 0xFFFF); i--) {
+            if (zip.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        final int count = Short.toUnsignedInt(zip.getShort(end + 10));
+        final long directoryOffset = Integer.toUnsignedLong(zip.getInt(end + 16));
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new ZipException("Zip64 archives are not supported");
+        }
+
+        final var entries = new HashMap<String, Entry>(count * 2);
+        int offset = (int) directoryOffset;
+        for (int i = 0; i < count; i++) {
+            if (offset + CENTRAL_SIZE > zip.limit() || zip.getInt(offset) != CENTRAL_SIGNATURE) {
+                throw new ZipException("Malformed central directory entry at " + offset);
+            }
+            final int nameLength = Short.toUnsignedInt(zip.getShort(offset + 28));
+            final int extraLength = Short.toUnsignedInt(zip.getShort(offset + 30));
+            final int commentLength = Short.toUnsignedInt(zip.getShort(offset + 32));
+
+            final byte[] name = new byte[nameLength];
+            zip.get(offset + CENTRAL_SIZE, name);
+            final var entry = new Entry(
+                new String(name, StandardCharsets.UTF_8),
+                Short.toUnsignedInt(zip.getShort(offset + 10)),
+                Integer.toUnsignedLong(zip.getInt(offset + 42)),
+                Integer.toUnsignedLong(zip.getInt(offset + 20)),
+                Integer.toUnsignedLong(zip.getInt(offset + 24)),
+                offset
+            );
+            entries.putIfAbsent(entry.name(), entry);
+
+            offset += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return new ZipIndex(zip, entries, end);
+    }
+
+    Entry entry(final String name) {
+        return this.entries.get(name);
+    }
+
+    List<Entry> entries() {
+        return new ArrayList<>(this.entries.values());
+    }
+
+    /**
+     * The names entries can be found by, including the unversioned names of versioned entries.
+     */
+    Set<String> names() {
+        return Collections.unmodifiableSet(this.entries.keySet());
+    }
+
+    /**
+     * Makes the entries under {@code META-INF/versions/<n>/} for every {@code n} up to {@code release} replace their
+     * unversioned counterparts, the way a multi-release jar is read on that release.
+     */
+    void applyVersions(final int release) {
+        final String prefix = "META-INF/versions/";
+        for (int version = 9; version <= release; version++) {
+            final String versionPrefix = prefix + version + "/";
+            for (final Entry entry : this.entries()) {
+                if (entry.name().startsWith(versionPrefix) && entry.name().length() > versionPrefix.length()) {
+                    this.entries.put(entry.name().substring(versionPrefix.length()), entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * The end of central directory record of this zip, without the comment that may follow it.
+     */
+    ByteBuffer endRecord() {
+        return this.zip.slice(this.end, END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * The raw, possibly compressed, data of {@code entry}. The returned buffer shares memory with this zip.
+     */
+    ByteBuffer data(final Entry entry) throws IOException {
+        final int start = this.dataStart(entry);
+        return this.zip.slice(start, (int) entry.compressedSize()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Where the data of {@code entry} starts in this zip.
+     */
+    int dataStart(final Entry entry) throws IOException {
+        final int local = (int) entry.localHeaderOffset();
+        if (local + LOCAL_SIZE > this.zip.limit() || this.zip.getInt(local) != LOCAL_SIGNATURE) {
+            throw new ZipException("Malformed local header for " + entry.name());
+        }
+        // The local header may carry a different extra field than the central directory
+        final int start = local + LOCAL_SIZE + Short.toUnsignedInt(this.zip.getShort(local + 26)) + Short.toUnsignedInt(this.zip.getShort(local + 28));
+        if (start + entry.compressedSize() > this.zip.limit()) {
+            throw new ZipException("Truncated data for " + entry.name());
+        }
+        return start;
+    }
+
+    /**
+     * The central directory record of {@code entry}, as it is in this zip.
+     */
+    ByteBuffer centralRecord(final Entry entry) {
+        final int offset = entry.centralOffset();
+        final int length = CENTRAL_SIZE + Short.toUnsignedInt(this.zip.getShort(offset + 28))
+            + Short.toUnsignedInt(this.zip.getShort(offset + 30)) + Short.toUnsignedInt(this.zip.getShort(offset + 32));
+        return this.zip.slice(offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Everything this zip holds for {@code entry} outside the central directory: the local header, the data and the
+     * data descriptor if there is one. Written out as is it makes the same entry in another zip.
+     */
+    ByteBuffer rawEntry(final Entry entry) throws IOException {
+        final int local = (int) entry.localHeaderOffset();
+        int end = this.dataStart(entry) + (int) entry.compressedSize();
+        if ((Short.toUnsignedInt(this.zip.getShort(local + 6)) & DESCRIPTOR_FLAG) != 0) {
+            if (end + 4 <= this.zip.limit() && this.zip.getInt(end) == DESCRIPTOR_SIGNATURE) {
+                end += 4;
+            }
+            end += 12;
+            if (end > this.zip.limit()) {
+                throw new ZipException("Truncated data descriptor for " + entry.name());
+            }
+        }
+        return this.zip.slice(local, end - local).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    byte[] read(final Entry entry) throws IOException {
+        if (entry.size() > Integer.MAX_VALUE - 8) {
+            throw new ZipException(entry.name() + " is too large to be read");
+        }
+
+        final ByteBuffer data = this.data(entry);
+        final byte[] contents = new byte[(int) entry.size()];
+        switch (entry.method()) {
+            case STORED -> data.get(contents);
+            case DEFLATED -> inflate(entry, data, contents);
+            default -> throw new ZipException("Unsupported compression method " + entry.method() + " for " + entry.name());
+        }
+        return contents;
+    }
+
+    private static void inflate(final Entry entry, final ByteBuffer data, final byte[] contents) throws IOException {
+        final var inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            int read = 0;
+            while (read < contents.length) {
+                final int inflated = inflater.inflate(contents, read, contents.length - read);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("Truncated data for " + entry.name());
+                }
+                read += inflated;
+            }
+        } catch (final DataFormatException e) {
+            throw new ZipException("Invalid data for " + entry.name() + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    record Entry(String name, int method, long localHeaderOffset, long compressedSize, long size, int centralOffset) {
+        boolean isDirectory() {
+            return this.name.endsWith("/");
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package io.papermc.paperclip;
+
+import io.sigpipe.jbsdiff.Patch;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Checks that {@link BsdiffPatcher} writes exactly what jbsdiff's {@link Patch} does for the same inputs. The patches
+ * are put together by hand, so they can hold control blocks a real diff rarely produces.
+ */
+class BsdiffPatcherTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void negativeSeeks() throws Exception {
+        final byte[] old = random(1, 10_000);
+        this.assertSameOutput(old, new PatchBuilder(2)
+            .control(3_000, 100, -2_000)
+            .control(2_000, 50, -2_500)
+            .control(1_000, 10, 0));
+    }
+
+    @Test
+    void zeroLengthExtra() throws Exception {
+        final byte[] old = random(3, 8_000);
+        this.assertSameOutput(old, new PatchBuilder(4)
+            .control(2_000, 0, 0)
+            .control(1_000, 0, 500)
+            .control(0, 300, 0)
+            .control(1_500, 0, 0));
+    }
+
+    @Test
+    void oldFileShorterThanControlRanges() throws Exception {
+        final byte[] old = random(5, 100);
+        this.assertSameOutput(old, new PatchBuilder(6)
+            // Starts before the old file, runs past its end
+            .control(0, 20, -50)
+            .control(5_000, 10, 0)
+            .control(200, 0, -6_000)
+            .control(300, 0, 0));
+    }
+
+    @Test
+    void emptyOldFile() throws Exception {
+        this.assertSameOutput(new byte[0], new PatchBuilder(7)
+            .control(1_000, 500, 0));
+    }
+
+    @Test
+    void blocksLargerThanTheBuffer() throws Exception {
+        final byte[] old = random(8, 300_000);
+        this.assertSameOutput(old, new PatchBuilder(9)
+            .control(200_000, 70_000, -150_000)
+            .control(150_000, 1, 10));
+    }
+
+    @Test
+    void randomControlBlocks() throws Exception {
+        final var random = new Random(10);
+        for (int run = 0; run < 20; run++) {
+            final byte[] old = random(run, random.nextInt(50_000));
+            final var builder = new PatchBuilder(run);
+            final int blocks = 1 + random.nextInt(20);
+            for (int i = 0; i < blocks; i++) {
+                builder.control(random.nextInt(10_000), random.nextInt(3) == 0 ? 0 : random.nextInt(2_000), random.nextInt(20_000) - 10_000);
+            }
+            this.assertSameOutput(old, builder);
+        }
+    }
+
+    private void assertSameOutput(final byte[] old, final PatchBuilder builder) throws Exception {
+        final byte[] patch = builder.build();
+
+        final var expected = new ByteArrayOutputStream();
+        Patch.patch(old, patch, expected);
+
+        final Path oldFile = Files.write(this.dir.resolve("old"), old);
+        final Path patchFile = Files.write(this.dir.resolve("patch"), patch);
+        final var actual = new ByteArrayOutputStream();
+        BsdiffPatcher.patch(oldFile, patchFile, actual);
+
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes a patch in the format jbsdiff reads: a header, then the bzip2 compressed control, diff and extra blocks.
+     * The diff and extra bytes are random, only the control blocks matter here.
+     */
+    private static final class PatchBuilder {
+        private final Random random;
+        private final List<long[]> controls = new ArrayList<>();
+        private final ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream extra = new ByteArrayOutputStream();
+        private long outputLength = 0;
+
+        PatchBuilder(final long seed) {
+            this.random = new Random(seed);
+        }
+
+        PatchBuilder control(final int diffLength, final int extraLength, final int seek) {
+            this.controls.add(new long[] {diffLength, extraLength, seek});
+            this.diff.writeBytes(this.bytes(diffLength));
+            this.extra.writeBytes(this.bytes(extraLength));
+            this.outputLength += diffLength + extraLength;
+            return this;
+        }
+
+        private byte[] bytes(final int length) {
+            final byte[] bytes = new byte[length];
+            this.random.nextBytes(bytes);
+            return bytes;
+        }
+
+        byte[] build() throws IOException {
+            final var control = new ByteArrayOutputStream();
+            for (final long[] block : this.controls) {
+                for (final long value : block) {
+                    writeOffset(control, value);
+                }
+            }
+            final byte[] controlBlock = compress(control.toByteArray());
+            final byte[] diffBlock = compress(this.diff.toByteArray());
+            final byte[] extraBlock = compress(this.extra.toByteArray());
+
+            final var out = new ByteArrayOutputStream();
+            out.writeBytes("BSDIFF40".getBytes());
+            writeOffset(out, controlBlock.length);
+            writeOffset(out, diffBlock.length);
+            writeOffset(out, this.outputLength);
+            out.writeBytes(controlBlock);
+            out.writeBytes(diffBlock);
+            out.writeBytes(extraBlock);
+            return out.toByteArray();
+        }
+
+        private static byte[] compress(final byte[] data) throws IOException {
+            final var out = new ByteArrayOutputStream();
+            try (final var bzip = new BZip2CompressorOutputStream(out)) {
+                bzip.write(data);
+            }
+            return out.toByteArray();
+        }
+
+        // 8 byte little endian sign-magnitude, as bsdiff stores them
+        private static void writeOffset(final ByteArrayOutputStream out, final long value) {
+            long magnitude = Math.abs(value);
+            for (int i = 0; i < 8; i++) {
+                int b = (int) (magnitude & 0xFF);
+                if (i == 7 && value < 0) {
+                    b |= 0x80;
+                }
+                out.write(b);
+                magnitude >>>= 8;
+            }
+        }
+    }
+}
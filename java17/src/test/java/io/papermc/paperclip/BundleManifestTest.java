@@ -0,0 +1,187 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Adds a manifest to a bundle written by the test, the way the build does with {@link BundleManifest#main}.
+ */
+class BundleManifestTest {
+
+    private static final byte[] SERVER = random(1, 4096);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void addedManifestIsRead() throws Exception {
+        final Path jar = this.writeBundle();
+        BundleManifest.add(jar);
+
+        final BundleManifest manifest = BundleManifest.load(jar);
+        assertNotNull(manifest);
+        assertEquals("org.example.Main", manifest.mainClass());
+        assertNull(manifest.downloadContext());
+        assertEquals(0, manifest.patches().length);
+        assertNull(manifest.libraries());
+
+        final FileEntry[] versions = manifest.versions();
+        assertEquals(1, versions.length);
+        assertArrayEquals(Util.sha256Digest().digest(SERVER), versions[0].hash());
+        assertEquals("server", versions[0].id());
+        assertEquals("server.jar", versions[0].path());
+
+        // Found without a lookup in the jar
+        final BundleManifest.Resource resource = manifest.find("/META-INF/versions/server.jar");
+        assertEquals(ZipIndex.STORED, resource.method());
+        final ByteBuffer data = manifest.data(resource);
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        assertArrayEquals(SERVER, bytes);
+
+        // Still a regular jar, with the manifest as its last entry
+        try (final JarFile jarFile = new JarFile(jar.toFile())) {
+            final List<String> names = jarFile.stream().map(JarEntry::getName).toList();
+            assertEquals(BundleManifest.ENTRY_NAME, names.get(names.size() - 1));
+            try (final InputStream in = jarFile.getInputStream(jarFile.getEntry("META-INF/versions/server.jar"))) {
+                assertArrayEquals(SERVER, in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void encodeAndDecode() throws Exception {
+        final byte[] hash = Util.sha256Digest().digest(SERVER);
+        final byte[] data = BundleManifest.encode(
+            new BundleManifest.Layout(0, 0, 0, 0),
+            "org.example.Main",
+            Util.toHex(hash) + "\thttps://example.org/server.jar\tserver.jar",
+            new PatchEntry[0],
+            new FileEntry[] {new FileEntry(hash, "server", "server.jar")},
+            new FileEntry[0],
+            Map.of("META-INF/versions/server.jar", new BundleManifest.Resource(ZipIndex.DEFLATED, 100, 50, 200))
+        );
+
+        final BundleManifest manifest = BundleManifest.decode(ByteBuffer.wrap(data), null);
+        assertEquals("org.example.Main", manifest.mainClass());
+        assertArrayEquals(hash, manifest.downloadContext().hash());
+        assertEquals("https://example.org/server.jar", manifest.downloadContext().url().toString());
+        assertEquals("server.jar", manifest.downloadContext().fileName());
+        assertEquals("server", manifest.versions()[0].id());
+        assertEquals(0, manifest.libraries().length);
+        // Without a jar there is nothing to read resources from
+        assertNull(manifest.find("META-INF/versions/server.jar"));
+
+        assertThrows(IOException.class, () -> BundleManifest.decode(ByteBuffer.wrap(data, 0, data.length - 10), null));
+    }
+
+    @Test
+    void changedJarIsRejected() throws Exception {
+        final Path jar = this.writeBundle();
+        BundleManifest.add(jar);
+
+        // Rewritten by another tool, the manifest no longer says where anything is
+        try (final FileSystem zip = FileSystems.newFileSystem(jar)) {
+            Files.write(zip.getPath("META-INF/versions/server.jar"), random(2, 4096));
+        }
+        assertNull(BundleManifest.load(jar));
+    }
+
+    @Test
+    void changedDirectoryIsRejected() throws Exception {
+        final Path jar = this.writeBundle();
+        BundleManifest.add(jar);
+
+        // Another name for the library in the central directory, at the same size
+        final byte[] bytes = Files.readAllBytes(jar);
+        final byte[] name = "META-INF/versions/server.jar".getBytes(StandardCharsets.UTF_8);
+        final int central = lastIndexOf(bytes, name);
+        bytes[central + name.length - 5] = 'X';
+        Files.write(jar, bytes);
+        assertNull(BundleManifest.load(jar));
+    }
+
+    @Test
+    void addingTwiceFails() throws Exception {
+        final Path jar = this.writeBundle();
+        BundleManifest.add(jar);
+        assertThrows(ZipException.class, () -> BundleManifest.add(jar));
+    }
+
+    @Test
+    void addKeepsPermissions() throws Exception {
+        final Path jar = this.writeBundle();
+        if (Files.getFileAttributeView(jar, PosixFileAttributeView.class) == null) {
+            return;
+        }
+        Files.setPosixFilePermissions(jar, PosixFilePermissions.fromString("rwxr-x---"));
+
+        BundleManifest.add(jar);
+        assertEquals(PosixFilePermissions.fromString("rwxr-x---"), Files.getPosixFilePermissions(jar));
+    }
+
+    /**
+     * A bundle with a main class and one version jar, as the text files describe it. The version jar is stored, as
+     * the build stores them.
+     */
+    private Path writeBundle() throws Exception {
+        final Path jar = this.dir.resolve("paperclip.jar");
+        try (final JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            out.putNextEntry(new JarEntry("META-INF/main-class"));
+            out.write("org.example.Main".getBytes(StandardCharsets.UTF_8));
+            out.putNextEntry(new JarEntry("META-INF/versions.list"));
+            out.write((Util.toHex(Util.sha256Digest().digest(SERVER)) + "\tserver\tserver.jar\n").getBytes(StandardCharsets.UTF_8));
+
+            final var crc = new CRC32();
+            crc.update(SERVER);
+            final JarEntry server = new JarEntry("META-INF/versions/server.jar");
+            server.setMethod(ZipEntry.STORED);
+            server.setSize(SERVER.length);
+            server.setCrc(crc.getValue());
+            out.putNextEntry(server);
+            out.write(SERVER);
+        }
+        return jar;
+    }
+
+    private static int lastIndexOf(final byte[] bytes, final byte[] part) {
+        for (int i = bytes.length - part.length; i >= 0; i--) {
+            if (Arrays.equals(bytes, i, i + part.length, part, 0, part.length)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not found");
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
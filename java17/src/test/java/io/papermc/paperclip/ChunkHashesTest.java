@@ -0,0 +1,141 @@
+package io.papermc.paperclip;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks and repairs files against {@link ChunkHashes.Chunks} computed by the test.
+ */
+class ChunkHashesTest {
+
+    private static final int CHUNK_SIZE = 4096;
+    // Four full chunks and a short one
+    private static final byte[] DATA = random(1, 4 * CHUNK_SIZE + 1000);
+    private static final ChunkHashes.Chunks CHUNKS = chunks(DATA);
+
+    @TempDir
+    Path dir;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @AfterEach
+    void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    void validFile() throws Exception {
+        final Path file = Files.write(this.dir.resolve("a.jar"), DATA);
+        assertTrue(CHUNKS.failing(file, this.executor).isEmpty());
+        assertTrue(CHUNKS.failing(file, null).isEmpty());
+    }
+
+    @Test
+    void damagedChunks() throws Exception {
+        final byte[] damaged = DATA.clone();
+        damaged[CHUNK_SIZE + 10] ^= 1;
+        damaged[3 * CHUNK_SIZE] ^= 1;
+        final Path file = Files.write(this.dir.resolve("a.jar"), damaged);
+        assertEquals(bits(1, 3), CHUNKS.failing(file, this.executor));
+    }
+
+    @Test
+    void wrongSize() throws Exception {
+        final Path shorter = Files.write(this.dir.resolve("a.jar"), Arrays.copyOf(DATA, 2 * CHUNK_SIZE + 10));
+        assertEquals(bits(2, 3, 4), CHUNKS.failing(shorter, this.executor));
+
+        final Path longer = Files.write(this.dir.resolve("b.jar"), Arrays.copyOf(DATA, DATA.length + 1));
+        assertEquals(bits(4), CHUNKS.failing(longer, this.executor));
+    }
+
+    @Test
+    void repairRewritesOnlyFailingChunks() throws Exception {
+        final byte[] damaged = DATA.clone();
+        damaged[CHUNK_SIZE] ^= 1;
+        damaged[2 * CHUNK_SIZE + 5] ^= 1;
+        damaged[4 * CHUNK_SIZE + 999] ^= 1;
+        final Path file = Files.write(this.dir.resolve("a.jar"), damaged);
+
+        final BitSet failing = CHUNKS.failing(file, this.executor);
+        assertEquals(bits(1, 2, 4), failing);
+        assertEquals(2 * CHUNK_SIZE + 1000, CHUNKS.length(failing));
+
+        final var requested = new ArrayList<ChunkHashes.Range>();
+        assertTrue(CHUNKS.repair(file, failing, (channel, ranges) -> {
+            requested.addAll(ranges);
+            for (final ChunkHashes.Range range : ranges) {
+                channel.write(ByteBuffer.wrap(DATA, (int) range.start(), (int) (range.end() - range.start())), range.start());
+            }
+        }, this.executor));
+
+        // Neighbouring chunks are requested as one range
+        assertEquals(List.of(
+            new ChunkHashes.Range(CHUNK_SIZE, 3 * CHUNK_SIZE),
+            new ChunkHashes.Range(4 * CHUNK_SIZE, DATA.length)
+        ), requested);
+        assertArrayEquals(DATA, Files.readAllBytes(file));
+    }
+
+    @Test
+    void repairTruncatesLongerFile() throws Exception {
+        final byte[] longer = Arrays.copyOf(DATA, DATA.length + 100);
+        final Path file = Files.write(this.dir.resolve("a.jar"), longer);
+
+        final BitSet failing = CHUNKS.failing(file, this.executor);
+        assertTrue(CHUNKS.repair(file, failing, (channel, ranges) -> { }, this.executor));
+        assertArrayEquals(DATA, Files.readAllBytes(file));
+    }
+
+    @Test
+    void repairFromBadSource() throws Exception {
+        final byte[] damaged = DATA.clone();
+        damaged[0] ^= 1;
+        final Path file = Files.write(this.dir.resolve("a.jar"), damaged);
+
+        assertFalse(CHUNKS.repair(file, CHUNKS.failing(file, this.executor), (channel, ranges) -> {
+            for (final ChunkHashes.Range range : ranges) {
+                channel.write(ByteBuffer.allocate((int) (range.end() - range.start())), range.start());
+            }
+        }, this.executor));
+    }
+
+    private static ChunkHashes.Chunks chunks(final byte[] data) {
+        final int count = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final byte[][] hashes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            final int start = i * CHUNK_SIZE;
+            hashes[i] = Util.sha256Digest().digest(Arrays.copyOfRange(data, start, Math.min(data.length, start + CHUNK_SIZE)));
+        }
+        return new ChunkHashes.Chunks(data.length, CHUNK_SIZE, hashes);
+    }
+
+    private static BitSet bits(final int... indexes) {
+        final var bits = new BitSet();
+        for (final int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
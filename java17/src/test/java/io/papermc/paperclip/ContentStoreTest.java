@@ -0,0 +1,111 @@
+package io.papermc.paperclip;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Shares files through a {@link ContentStore} in a temporary directory, configured the way a server start does.
+ */
+class ContentStoreTest {
+
+    private static final byte[] DATA = random(1, 10_000);
+    private static final byte[] HASH = Util.sha256Digest().digest(DATA);
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void clearProperties() {
+        System.clearProperty("paperclip.storeDir");
+        System.clearProperty("paperclip.storeMode");
+    }
+
+    @Test
+    void notConfigured() {
+        assertNull(ContentStore.fromProperties());
+    }
+
+    @Test
+    void unknownMode() {
+        System.setProperty("paperclip.storeDir", this.dir.resolve("store").toString());
+        System.setProperty("paperclip.storeMode", "symlink");
+        assertThrows(IllegalArgumentException.class, ContentStore::fromProperties);
+    }
+
+    @Test
+    void addedFileIsCopiedOut() throws Exception {
+        final ContentStore store = this.store("download");
+        store.add(Files.write(this.dir.resolve("server.jar"), DATA), HASH);
+
+        final Path target = this.dir.resolve("repo").resolve("server.jar");
+        Files.createDirectories(target.getParent());
+        assertTrue(store.copyTo(HASH, target));
+        assertArrayEquals(DATA, Files.readAllBytes(target));
+    }
+
+    @Test
+    void corruptedEntryIsRemoved() throws Exception {
+        final ContentStore store = this.store("download");
+        final Path stored = store.resolve(HASH);
+        Files.createDirectories(stored.getParent());
+        Files.write(stored, random(2, DATA.length));
+
+        final Path target = this.dir.resolve("server.jar");
+        assertFalse(store.copyTo(HASH, target));
+        assertFalse(Files.exists(stored));
+        assertFalse(Files.exists(target));
+    }
+
+    @Test
+    void linkModeKeepsRepoFile() throws Exception {
+        final ContentStore store = this.store("link");
+        final ValidationIndex index = ValidationIndex.load(this.dir.resolve("repo"), false);
+        final Path file = Files.write(this.dir.resolve("library.jar"), DATA);
+
+        assertEquals(file, store.share(file, HASH, index));
+        final Path stored = store.find(HASH, index);
+        assertEquals(store.resolve(HASH), stored);
+        assertArrayEquals(DATA, Files.readAllBytes(file));
+
+        // The next instance gets its own path to the same entry
+        final Path other = this.dir.resolve("other.jar");
+        assertEquals(other, store.use(stored, other, HASH, index));
+        assertArrayEquals(DATA, Files.readAllBytes(other));
+    }
+
+    @Test
+    void directModeUsesStoreEntry() throws Exception {
+        final ContentStore store = this.store("direct");
+        final ValidationIndex index = ValidationIndex.load(this.dir.resolve("repo"), false);
+        final Path file = Files.write(this.dir.resolve("library.jar"), DATA);
+
+        final Path stored = store.share(file, HASH, index);
+        assertEquals(store.resolve(HASH), stored);
+        assertFalse(Files.exists(file));
+        assertEquals(stored, store.use(stored, this.dir.resolve("other.jar"), HASH, index));
+        assertFalse(Files.exists(this.dir.resolve("other.jar")));
+    }
+
+    private ContentStore store(final String mode) {
+        System.setProperty("paperclip.storeDir", this.dir.resolve("store").toString());
+        System.setProperty("paperclip.storeMode", mode);
+        return ContentStore.fromProperties();
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
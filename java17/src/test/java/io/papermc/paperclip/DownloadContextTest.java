@@ -0,0 +1,110 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Downloads the original jar through {@code paperclip.download.mirrors}, falling back to the URL from the bundle.
+ */
+class DownloadContextTest {
+
+    private static final byte[] DATA = random(1, 100_000);
+    private static final byte[] HASH = Util.sha256Digest().digest(DATA);
+
+    @TempDir
+    Path dir;
+
+    private FileServer server;
+    private DownloadContext context;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        this.server = new FileServer();
+        this.context = new DownloadContext(HASH, this.server.url("/bundle/original.jar"), "original.jar");
+    }
+
+    @AfterEach
+    void stopServer() {
+        this.server.close();
+        System.clearProperty("paperclip.download.mirrors");
+    }
+
+    @Test
+    void mirrorFirst() throws Exception {
+        this.server.serve("/bundle/original.jar", DATA, FileServer.Mode.RANGES);
+        this.server.serve("/mirror/original.jar", DATA, FileServer.Mode.RANGES);
+        System.setProperty("paperclip.download.mirrors", this.server.url("/mirror").toString());
+
+        this.download();
+        assertEquals(List.of("/mirror/original.jar"), this.server.requests());
+    }
+
+    @Test
+    void mirrorPlaceholders() throws Exception {
+        this.server.serve("/by-hash/" + Util.toHex(HASH), DATA, FileServer.Mode.RANGES);
+        System.setProperty("paperclip.download.mirrors", this.server.url("/by-hash/{sha256}").toString());
+
+        this.download();
+        assertEquals(List.of("/by-hash/" + Util.toHex(HASH)), this.server.requests());
+    }
+
+    @Test
+    void missingMirrorFallsBack() throws Exception {
+        this.server.serve("/bundle/original.jar", DATA, FileServer.Mode.RANGES);
+        System.setProperty("paperclip.download.mirrors", this.server.url("/missing").toString());
+
+        this.download();
+        assertEquals(List.of("/missing/original.jar", "/bundle/original.jar"), this.server.requests());
+    }
+
+    @Test
+    void wrongMirrorFallsBack() throws Exception {
+        this.server.serve("/bundle/original.jar", DATA, FileServer.Mode.RANGES);
+        this.server.serve("/wrong/original.jar", random(2, DATA.length), FileServer.Mode.RANGES);
+        System.setProperty("paperclip.download.mirrors", this.server.url("/wrong").toString());
+
+        this.download();
+        assertEquals(List.of("/wrong/original.jar", "/bundle/original.jar"), this.server.requests());
+    }
+
+    @Test
+    void noSourceHasTheFile() throws Exception {
+        System.setProperty("paperclip.download.mirrors", this.server.url("/missing").toString());
+
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        assertThrows(IOException.class, () -> this.context.download(this.dir, index, null));
+        assertFalse(Files.exists(this.context.getOutputFile(this.dir)));
+    }
+
+    @Test
+    void validFileIsReused() throws Exception {
+        this.server.serve("/bundle/original.jar", DATA, FileServer.Mode.RANGES);
+        this.download();
+        this.download();
+        assertEquals(List.of("/bundle/original.jar"), this.server.requests());
+    }
+
+    private void download() throws Exception {
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        this.context.download(this.dir, index, null);
+        assertArrayEquals(DATA, Files.readAllBytes(this.context.getOutputFile(this.dir)));
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
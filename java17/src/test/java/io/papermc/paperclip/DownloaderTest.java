@@ -0,0 +1,138 @@
+package io.papermc.paperclip;
+
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Downloads from a {@link FileServer}, resuming from {@code .part} files left behind by an earlier attempt.
+ */
+class DownloaderTest {
+
+    private static final byte[] DATA = random(1, 200_000);
+    private static final byte[] HASH = Util.sha256Digest().digest(DATA);
+
+    @TempDir
+    Path dir;
+
+    private FileServer server;
+    private Path target;
+    private Path partFile;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        this.server = new FileServer();
+        this.target = this.dir.resolve("cache").resolve("file.jar");
+        this.partFile = this.dir.resolve("cache").resolve("file.jar.part");
+    }
+
+    @AfterEach
+    void stopServer() {
+        this.server.close();
+    }
+
+    @Test
+    void download() throws Exception {
+        this.server.serve("/file.jar", DATA, FileServer.Mode.RANGES);
+        assertTrue(this.downloader().download(this.target, HASH));
+        assertArrayEquals(DATA, Files.readAllBytes(this.target));
+        assertFalse(Files.exists(this.partFile));
+        assertEquals(List.of("/file.jar"), this.server.requests());
+    }
+
+    @Test
+    void resumeWithRange() throws Exception {
+        this.server.serve("/file.jar", DATA, FileServer.Mode.RANGES);
+        this.writePart(Arrays.copyOf(DATA, 50_000));
+
+        assertTrue(this.downloader().download(this.target, HASH));
+        assertArrayEquals(DATA, Files.readAllBytes(this.target));
+        assertEquals(List.of("/file.jar bytes=50000-"), this.server.requests());
+    }
+
+    @Test
+    void serverIgnoresRange() throws Exception {
+        this.server.serve("/file.jar", DATA, FileServer.Mode.IGNORE_RANGES);
+        // What is in the part file doesn't matter once the server sends the whole file again
+        this.writePart(random(2, 50_000));
+
+        assertTrue(this.downloader().download(this.target, HASH));
+        assertArrayEquals(DATA, Files.readAllBytes(this.target));
+        assertFalse(Files.exists(this.partFile));
+    }
+
+    @Test
+    void rangeNotSatisfiableWithCompletePart() throws Exception {
+        this.server.serve("/file.jar", DATA, FileServer.Mode.NOT_SATISFIABLE);
+        this.writePart(DATA);
+
+        assertTrue(this.downloader().download(this.target, HASH));
+        assertArrayEquals(DATA, Files.readAllBytes(this.target));
+        assertEquals(List.of("/file.jar bytes=200000-"), this.server.requests());
+    }
+
+    @Test
+    void rangeNotSatisfiableWithBadPart() throws Exception {
+        this.server.serve("/file.jar", DATA, FileServer.Mode.NOT_SATISFIABLE);
+        this.writePart(random(3, DATA.length));
+
+        assertFalse(this.downloader().download(this.target, HASH));
+        assertFalse(Files.exists(this.target));
+        // The next attempt starts over rather than resuming from bad data
+        assertFalse(Files.exists(this.partFile));
+    }
+
+    @Test
+    void retryResumesDroppedConnection() throws Exception {
+        this.server.serve("/file.jar", DATA, FileServer.Mode.RANGES);
+        this.server.drop("/file.jar", 1);
+
+        assertTrue(this.downloader().download(this.target, HASH));
+        assertArrayEquals(DATA, Files.readAllBytes(this.target));
+        // The server sent half of the file before it dropped the connection
+        assertEquals(List.of("/file.jar", "/file.jar bytes=100000-"), this.server.requests());
+    }
+
+    @Test
+    void missingFileIsNotRetried() throws Exception {
+        assertThrows(FileNotFoundException.class, () -> this.downloader().download(this.target, HASH));
+        assertEquals(List.of("/file.jar"), this.server.requests());
+        assertFalse(Files.exists(this.target));
+    }
+
+    @Test
+    void wrongHash() throws Exception {
+        this.server.serve("/file.jar", random(4, DATA.length), FileServer.Mode.RANGES);
+        assertFalse(this.downloader().download(this.target, HASH));
+        assertFalse(Files.exists(this.target));
+        assertFalse(Files.exists(this.partFile));
+    }
+
+    private Downloader downloader() throws Exception {
+        return new Downloader(this.server.url("/file.jar"), "file.jar");
+    }
+
+    private void writePart(final byte[] data) throws Exception {
+        Files.createDirectories(this.partFile.getParent());
+        Files.write(this.partFile, data);
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
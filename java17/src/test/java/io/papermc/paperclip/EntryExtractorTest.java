@@ -0,0 +1,110 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Extracts entries of an original jar written by the test through {@link EntryExtractor}. The tests don't run from a
+ * jar, so that is where entries are found.
+ */
+class EntryExtractorTest {
+
+    // More than the buffer entries are inflated into, so it is reused
+    private static final byte[] STORED = random(1, 600_000);
+    private static final byte[] DEFLATED = "deflated ".repeat(100_000).getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path dir;
+
+    private OriginalJar originalJar;
+
+    @BeforeEach
+    void writeJar() throws IOException {
+        final Path jar = this.dir.resolve("original.jar");
+        try (final JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            final var crc = new CRC32();
+            crc.update(STORED);
+            final JarEntry stored = new JarEntry("stored.bin");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(STORED.length);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(STORED);
+
+            out.putNextEntry(new JarEntry("deflated.txt"));
+            out.write(DEFLATED);
+        }
+        this.originalJar = new OriginalJar(jar);
+    }
+
+    @Test
+    void storedEntry() throws Exception {
+        final EntryExtractor.Source source = EntryExtractor.find("/stored.bin", this.originalJar);
+        assertNotNull(source);
+        assertEquals(ZipIndex.STORED, source.method());
+
+        final Path target = this.dir.resolve("stored.bin");
+        assertTrue(source.copyVerified(target, hash(STORED)));
+        assertArrayEquals(STORED, Files.readAllBytes(target));
+    }
+
+    @Test
+    void deflatedEntry() throws Exception {
+        final EntryExtractor.Source source = EntryExtractor.find("deflated.txt", this.originalJar);
+        assertNotNull(source);
+        assertEquals(ZipIndex.DEFLATED, source.method());
+
+        // Twice, the inflater and buffer of this thread are reused
+        for (int i = 0; i < 2; i++) {
+            final Path target = this.dir.resolve("deflated" + i + ".txt");
+            assertTrue(source.copyVerified(target, hash(DEFLATED)));
+            assertArrayEquals(DEFLATED, Files.readAllBytes(target));
+        }
+    }
+
+    @Test
+    void wrongHashLeavesTarget() throws Exception {
+        final Path target = Files.write(this.dir.resolve("stored.bin"), new byte[] {1, 2, 3});
+        assertFalse(EntryExtractor.find("stored.bin", this.originalJar).copyVerified(target, hash(DEFLATED)));
+        assertFalse(EntryExtractor.find("deflated.txt", this.originalJar).copyVerified(target, hash(STORED)));
+        assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(target));
+
+        // Nothing is left behind next to the target either
+        try (final var files = Files.list(this.dir)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    void missingEntry() {
+        assertNull(EntryExtractor.find("missing.bin", this.originalJar));
+        assertNull(EntryExtractor.find("missing.bin", null));
+    }
+
+    private static byte[] hash(final byte[] data) {
+        return Util.sha256Digest().digest(data);
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
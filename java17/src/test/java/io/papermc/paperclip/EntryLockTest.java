@@ -0,0 +1,121 @@
+package io.papermc.paperclip;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Takes {@link EntryLock}s from several threads and channels in this process, standing in for the instances sharing a
+ * repo dir or store.
+ */
+class EntryLockTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void lockFileIsHeld() throws Exception {
+        final Path lockFile = this.dir.resolve("locks").resolve("a.lock");
+        final EntryLock lock = EntryLock.acquire(lockFile);
+        try (final FileChannel channel = FileChannel.open(lockFile, WRITE)) {
+            // A second channel on the same file stands in for another process
+            assertThrows(OverlappingFileLockException.class, channel::tryLock);
+        } finally {
+            lock.close();
+        }
+
+        try (final FileChannel channel = FileChannel.open(lockFile, WRITE);
+             final FileLock fileLock = channel.tryLock()) {
+            assertTrue(fileLock.isValid());
+        }
+    }
+
+    @Test
+    void otherThreadWaits() throws Exception {
+        final Path lockFile = this.dir.resolve("a.lock");
+        final EntryLock lock = EntryLock.acquire(lockFile);
+        final CompletableFuture<EntryLock> waiting = acquireAsync(() -> EntryLock.acquire(lockFile));
+
+        assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS));
+        lock.close();
+        waiting.get(10, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    void releasedFromAnotherThread() throws Exception {
+        final Path lockFile = this.dir.resolve("a.lock");
+        final EntryLock lock = EntryLock.acquire(lockFile);
+        CompletableFuture.runAsync(() -> {
+            try {
+                lock.close();
+            } catch (final Exception e) {
+                throw new RuntimeException(e);
+            }
+        }).get(10, TimeUnit.SECONDS);
+
+        final EntryLock again = EntryLock.acquire(lockFile);
+        // Closing the first lock again does nothing, in particular it doesn't release the second one
+        lock.close();
+        final CompletableFuture<EntryLock> waiting = acquireAsync(() -> EntryLock.acquire(lockFile));
+        assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS));
+        again.close();
+        waiting.get(10, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    void samePathSameLock() throws Exception {
+        final Path lockDir = this.dir.resolve("locks");
+        final Path file = this.dir.resolve("libraries").resolve("a.jar");
+        final EntryLock lock = EntryLock.forFile(lockDir, file);
+        final CompletableFuture<EntryLock> waiting = acquireAsync(
+            () -> EntryLock.forFile(lockDir, this.dir.resolve("libraries").resolve("..").resolve("libraries").resolve("a.jar"))
+        );
+
+        assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS));
+        lock.close();
+        waiting.get(10, TimeUnit.SECONDS).close();
+
+        // The lock file isn't put next to the output file
+        assertFalse(Files.exists(file.getParent()));
+        try (final Stream<Path> files = Files.list(lockDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void failedAcquireReleasesThreadLock() throws Exception {
+        // The lock directory can't be created below a regular file
+        final Path lockFile = Files.createFile(this.dir.resolve("blocker")).resolve("a.lock");
+        assertThrows(Exception.class, () -> EntryLock.acquire(lockFile));
+
+        // Fails again instead of waiting for the first attempt's thread lock
+        final CompletableFuture<EntryLock> retry = acquireAsync(() -> EntryLock.acquire(lockFile));
+        assertThrows(ExecutionException.class, () -> retry.get(10, TimeUnit.SECONDS));
+    }
+
+    private static CompletableFuture<EntryLock> acquireAsync(final Callable<EntryLock> acquire) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return acquire.call();
+            } catch (final Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,89 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Extracts entries while the original jar is still downloading. The files in {@code META-INF/upgradetest} stand in for
+ * the ones embedded in our jar.
+ */
+class FileEntryTest {
+
+    private static final String BASE_DIR = "/META-INF/upgradetest";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void isEmbedded() throws Exception {
+        assertTrue(entry("server.patch").isEmbedded(BASE_DIR));
+        assertFalse(new FileEntry(new byte[32], "missing", "missing.jar").isEmbedded(BASE_DIR));
+    }
+
+    @Test
+    void embeddedEntryDoesNotWaitForDownload() throws Exception {
+        final FileEntry entry = entry("server.patch");
+        // Never finishes downloading
+        final OriginalJar originalJar = new OriginalJar(new CompletableFuture<>());
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+
+        final CompletableFuture<URL> extracted = CompletableFuture.supplyAsync(() -> {
+            try {
+                return entry.extractFile(new PatchEntry[0], "libraries", originalJar, BASE_DIR, this.dir, index, null);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        final URL url = extracted.get(10, TimeUnit.SECONDS);
+        assertEquals(this.dir.resolve("server.patch").toUri().toURL(), url);
+        assertArrayEquals(resource("server.patch"), Files.readAllBytes(this.dir.resolve("server.patch")));
+    }
+
+    @Test
+    void originalJarWaitsForDownload() throws Exception {
+        final var download = new CompletableFuture<Path>();
+        final OriginalJar originalJar = new OriginalJar(download);
+        final CompletableFuture<Path> file = CompletableFuture.supplyAsync(() -> {
+            try {
+                return originalJar.file();
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        assertThrows(TimeoutException.class, () -> file.get(200, TimeUnit.MILLISECONDS));
+        download.complete(this.dir.resolve("original.jar"));
+        assertEquals(this.dir.resolve("original.jar"), file.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void failedDownload() {
+        final OriginalJar originalJar = new OriginalJar(CompletableFuture.failedFuture(new IOException("Connection reset")));
+        final IOException e = assertThrows(IOException.class, originalJar::file);
+        assertEquals("Connection reset", e.getMessage());
+    }
+
+    private static FileEntry entry(final String name) throws IOException {
+        return new FileEntry(Util.sha256Digest().digest(resource(name)), name, name);
+    }
+
+    private static byte[] resource(final String name) throws IOException {
+        try (final InputStream in = FileEntryTest.class.getResourceAsStream(BASE_DIR + "/" + name)) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.papermc.paperclip;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local HTTP server for the download tests, which serves files from memory and can be told to behave like the
+ * servers {@link Downloader} has to cope with.
+ */
+final class FileServer implements AutoCloseable {
+
+    enum Mode {
+        /** Answers range requests with 206 and the requested part */
+        RANGES,
+        /** Sends the whole file with 200, whatever range was asked for */
+        IGNORE_RANGES,
+        /** Answers every range request with 416 */
+        NOT_SATISFIABLE
+    }
+
+    private record File(byte[] data, Mode mode, AtomicInteger drops) {
+    }
+
+    private final HttpServer server;
+    private final Map<String, File> files = new ConcurrentHashMap<>();
+    private final List<String> requests = new ArrayList<>();
+
+    FileServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    URL url(final String path) throws IOException {
+        return new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), this.server.getAddress().getPort(), path);
+    }
+
+    void serve(final String path, final byte[] data, final Mode mode) {
+        this.files.put(path, new File(data, mode, new AtomicInteger()));
+    }
+
+    /**
+     * Makes the next {@code count} requests for {@code path} close the connection halfway through the body.
+     */
+    void drop(final String path, final int count) {
+        this.files.get(path).drops().set(count);
+    }
+
+    /**
+     * @return every request so far, as the path followed by the range header if there was one
+     */
+    synchronized List<String> requests() {
+        return List.copyOf(this.requests);
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try (exchange) {
+            final String path = exchange.getRequestURI().getPath();
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            synchronized (this) {
+                this.requests.add(range == null ? path : path + " " + range);
+            }
+
+            final File file = this.files.get(path);
+            if (file == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (range != null && file.mode() == Mode.NOT_SATISFIABLE) {
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+
+            int start = 0;
+            int end = file.data().length;
+            int code = 200;
+            if (range != null && file.mode() == Mode.RANGES) {
+                // bytes=<start>-[<end>]
+                final String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Integer.parseInt(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(bounds[1]) + 1);
+                }
+                if (start >= end) {
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + file.data().length);
+                code = 206;
+            }
+
+            exchange.sendResponseHeaders(code, end - start);
+            final OutputStream body = exchange.getResponseBody();
+            if (file.drops().getAndDecrement() > 0) {
+                body.write(file.data(), start, (end - start) / 2);
+                body.flush();
+                // Failing the exchange closes the connection with the body unfinished
+                throw new IOException("Dropped connection");
+            }
+            body.write(file.data(), start, end - start);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+    }
+}
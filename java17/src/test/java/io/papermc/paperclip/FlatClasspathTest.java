@@ -0,0 +1,174 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Merges jars written by the test, a versions jar and libraries conflicting with it, and reads the merged classpath
+ * back the way a class loader would.
+ */
+class FlatClasspathTest {
+
+    private static final byte[] KEY = {1, 2, 3};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void versionsJarWins() throws Exception {
+        final URL[] urls = this.writeClasspath();
+        final URL[] flat = FlatClasspath.flatten(urls, this.dir.resolve("repo"), KEY);
+
+        // The library with a different config.yml stays on the classpath after the merged jar
+        assertEquals(2, flat.length);
+        assertEquals(urls[1], flat[1]);
+
+        try (final ZipFile zip = new ZipFile(Path.of(flat[0].toURI()).toFile())) {
+            assertEquals("server", read(zip, "a/A.class"));
+            assertEquals("server", read(zip, "config.yml"));
+            assertEquals("library", read(zip, "b/B.class"));
+            assertEquals("other", read(zip, "c/C.class"));
+            // Service files are merged, in classpath order
+            assertEquals("impl.Server\nimpl.Library\n", read(zip, "META-INF/services/api.Service"));
+            // Signatures of the libraries don't hold for the merged jar
+            assertNull(zip.getEntry("META-INF/OTHER.SF"));
+        }
+
+        try (final URLClassLoader loader = new URLClassLoader(flat, null)) {
+            assertEquals(List.of("server", "library"), contents(loader.getResources("config.yml")));
+            // Found in the merged jar first, like in the versions jar before
+            assertEquals("server", contents(loader.getResources("a/A.class")).get(0));
+            assertEquals("jar:" + flat[0] + "!/b/B.class", loader.getResource("b/B.class").toString());
+        }
+    }
+
+    @Test
+    void mergedJarIsReused() throws Exception {
+        final URL[] urls = this.writeClasspath();
+        final Path repoDir = this.dir.resolve("repo");
+        final URL[] flat = FlatClasspath.flatten(urls, repoDir, KEY);
+        final Path jar = Path.of(flat[0].toURI());
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(0));
+
+        assertArrayEquals(flat, FlatClasspath.flatten(urls, repoDir, KEY));
+        assertEquals(FileTime.fromMillis(0), Files.getLastModifiedTime(jar));
+
+        // Another classpath replaces it
+        final URL[] other = FlatClasspath.flatten(urls, repoDir, new byte[] {4, 5, 6});
+        assertFalse(Files.exists(jar));
+        assertTrue(Files.exists(Path.of(other[0].toURI())));
+        try (final Stream<Path> files = Files.list(jar.getParent())) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    void missingMergedJarIsWrittenAgain() throws Exception {
+        final URL[] urls = this.writeClasspath();
+        final Path repoDir = this.dir.resolve("repo");
+        final URL[] flat = FlatClasspath.flatten(urls, repoDir, KEY);
+        Files.delete(Path.of(flat[0].toURI()));
+
+        assertArrayEquals(flat, FlatClasspath.flatten(urls, repoDir, KEY));
+        assertTrue(Files.exists(Path.of(flat[0].toURI())));
+    }
+
+    @Test
+    void classPathJarIsKept() throws Exception {
+        final Map<String, String> entries = Map.of("d/D.class", "linked");
+        final URL[] urls = {
+            this.writeJar("server.jar", Map.of("a/A.class", "server"), null),
+            this.writeJar("linking.jar", entries, "linked.jar"),
+        };
+        final URL[] flat = FlatClasspath.flatten(urls, this.dir.resolve("repo"), KEY);
+        assertEquals(2, flat.length);
+        assertEquals(urls[1], flat[1]);
+    }
+
+    /**
+     * A versions jar and two libraries: one with its own config.yml and one agreeing with the versions jar.
+     */
+    private URL[] writeClasspath() throws IOException {
+        final var server = new LinkedHashMap<String, String>();
+        server.put("a/A.class", "server");
+        server.put("config.yml", "server");
+        server.put("META-INF/services/api.Service", "impl.Server");
+        final var library = new LinkedHashMap<String, String>();
+        library.put("a/A.class", "library");
+        library.put("b/B.class", "library");
+        library.put("config.yml", "library");
+        library.put("META-INF/services/api.Service", "impl.Library\n");
+        final var other = new LinkedHashMap<String, String>();
+        other.put("c/C.class", "other");
+        other.put("config.yml", "server");
+        other.put("META-INF/OTHER.SF", "signature");
+        return new URL[] {
+            this.writeJar("server.jar", server, null),
+            this.writeJar("library.jar", library, null),
+            this.writeJar("other.jar", other, null),
+        };
+    }
+
+    private URL writeJar(final String name, final Map<String, String> entries, final String classPath) throws IOException {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (classPath != null) {
+            manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, classPath);
+        }
+
+        final Path jar = this.dir.resolve(name);
+        try (final JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            for (final Map.Entry<String, String> entry : entries.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey()));
+                out.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return jar.toUri().toURL();
+    }
+
+    private static String read(final ZipFile zip, final String name) throws IOException {
+        try (final InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static List<String> contents(final Enumeration<URL> urls) throws IOException {
+        final var contents = new ArrayList<String>();
+        for (final URL url : Collections.list(urls)) {
+            final URLConnection connection = url.openConnection();
+            // Keeps the JDK's jar cache from holding on to the temporary jars
+            connection.setUseCaches(false);
+            try (final InputStream in = connection.getInputStream()) {
+                contents.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return contents;
+    }
+}
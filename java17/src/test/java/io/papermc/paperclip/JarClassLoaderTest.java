@@ -0,0 +1,177 @@
+package io.papermc.paperclip;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Loads classes and resources through {@link JarClassLoader} from jars written by the test.
+ */
+class JarClassLoaderTest {
+
+    private static final String MARKER = "io/papermc/paperclip/JarClassLoaderTest$Marker.class";
+
+    @TempDir
+    Path dir;
+
+    /**
+     * More entries than fit in a plain zip end record, so the jar is written as a Zip64 archive.
+     */
+    @Test
+    void zip64JarIsReadThroughJarFile() throws Exception {
+        final Path jar = this.dir.resolve("large.jar");
+        try (final JarOutputStream out = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jar)))) {
+            out.putNextEntry(new JarEntry(MARKER));
+            out.write(classBytes());
+            for (int i = 0; i < 66_000; i++) {
+                out.putNextEntry(new JarEntry("data/" + i + ".txt"));
+                out.write(Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        try (final JarClassLoader loader = new JarClassLoader(new URL[] {jar.toUri().toURL()}, null)) {
+            final Class<?> marker = loader.loadClass(Marker.class.getName());
+            assertSame(loader, marker.getClassLoader());
+
+            final URL resource = loader.getResource("data/65999.txt");
+            assertNotNull(resource);
+            try (final InputStream in = resource.openStream()) {
+                assertEquals("65999", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Jars named in a Class-Path attribute are searched right after the jar naming them, as by URLClassLoader.
+     */
+    @Test
+    void searchOrderMatchesURLClassLoader() throws Exception {
+        final URL[] urls = {
+            this.writeJar("a.jar", "c.jar missing.jar", "a"),
+            this.writeJar("b.jar", null, "b"),
+        };
+        this.writeJar("c.jar", null, "c");
+
+        try (final URLClassLoader expected = new URLClassLoader(urls, null);
+             final JarClassLoader loader = new JarClassLoader(urls, null)) {
+            assertEquals(List.of("a", "c", "b"), contents(expected.getResources("data.txt")));
+            assertEquals(contents(expected.getResources("data.txt")), contents(loader.getResources("data.txt")));
+            assertEquals(contents(expected.getResources("c.txt")), contents(loader.getResources("c.txt")));
+            assertNull(loader.getResource("missing.txt"));
+        }
+    }
+
+    @Test
+    void firstJarDefinesClass() throws Exception {
+        final URL[] urls = {
+            this.writeJar("a.jar", null, "a"),
+            this.writeJar("b.jar", null, "b"),
+        };
+
+        try (final JarClassLoader loader = new JarClassLoader(urls, null)) {
+            final Class<?> marker = loader.loadClass(Marker.class.getName());
+            assertEquals(urls[0], marker.getProtectionDomain().getCodeSource().getLocation());
+            assertSame(marker, loader.loadClass(Marker.class.getName()));
+            assertThrows(ClassNotFoundException.class, () -> loader.loadClass("io.papermc.paperclip.Missing"));
+        }
+    }
+
+    @Test
+    void savedIndexIsReused() throws Exception {
+        final URL[] urls = {
+            this.writeJar("a.jar", null, "a"),
+            this.writeJar("b.jar", null, "b"),
+        };
+        final Path indexFile = this.dir.resolve("packages.idx");
+        final byte[] key = {1, 2, 3};
+
+        try (final JarClassLoader loader = new JarClassLoader(urls, null, indexFile, key)) {
+            assertEquals(List.of("a", "b"), contents(loader.getResources("data.txt")));
+        }
+        assertTrue(Files.isRegularFile(indexFile));
+        try (final JarClassLoader loader = new JarClassLoader(urls, null, indexFile, key)) {
+            assertEquals(List.of("a", "b"), contents(loader.getResources("data.txt")));
+            assertNotNull(loader.loadClass(Marker.class.getName()));
+        }
+    }
+
+    @Test
+    void classPathIndexIsNotSaved() throws Exception {
+        final URL[] urls = {this.writeJar("a.jar", "c.jar", "a")};
+        this.writeJar("c.jar", null, "c");
+        final Path indexFile = this.dir.resolve("packages.idx");
+
+        try (final JarClassLoader loader = new JarClassLoader(urls, null, indexFile, new byte[] {1})) {
+            assertEquals(List.of("a", "c"), contents(loader.getResources("data.txt")));
+        }
+        assertFalse(Files.exists(indexFile));
+    }
+
+    /**
+     * Writes a jar with the marker class, a {@code data.txt} containing {@code data} and a {@code <data>.txt}.
+     */
+    private URL writeJar(final String name, final String classPath, final String data) throws IOException {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (classPath != null) {
+            manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, classPath);
+        }
+
+        final Path jar = this.dir.resolve(name);
+        try (final JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            out.putNextEntry(new JarEntry(MARKER));
+            out.write(classBytes());
+            out.putNextEntry(new JarEntry("data.txt"));
+            out.write(data.getBytes(StandardCharsets.UTF_8));
+            out.putNextEntry(new JarEntry(data + ".txt"));
+            out.write(data.getBytes(StandardCharsets.UTF_8));
+        }
+        return jar.toUri().toURL();
+    }
+
+    private static List<String> contents(final Enumeration<URL> urls) throws IOException {
+        final var contents = new ArrayList<String>();
+        for (final URL url : Collections.list(urls)) {
+            final URLConnection connection = url.openConnection();
+            // Keeps the JDK's jar cache from holding on to the temporary jars
+            connection.setUseCaches(false);
+            try (final InputStream in = connection.getInputStream()) {
+                contents.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return contents;
+    }
+
+    private static byte[] classBytes() throws IOException {
+        try (final InputStream in = JarClassLoaderTest.class.getResourceAsStream("/" + MARKER)) {
+            return in.readAllBytes();
+        }
+    }
+
+    static final class Marker {
+    }
+}
@@ -0,0 +1,171 @@
+package io.papermc.paperclip;
+
+import io.sigpipe.jbsdiff.Diff;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Applies patches in the {@code entries} format to jars written by the test and reads the result back with
+ * {@link ZipFile}.
+ */
+class JarPatcherTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void copyAddAndPatch() throws Exception {
+        final byte[] copied = "copied unchanged".repeat(100).getBytes(StandardCharsets.UTF_8);
+        final byte[] original = random(1, 20_000);
+        final byte[] patched = original.clone();
+        patched[100] ^= 1;
+        final byte[] added = random(2, 500);
+
+        final Path oldFile = this.writeZip("old.jar", Map.of(
+            "a/Copied.class", copied,
+            "a/Patched.class", original,
+            "a/Removed.class", random(3, 100)
+        ));
+        final Map<String, byte[]> patch = new LinkedHashMap<>();
+        patch.put(JarPatcher.INDEX_NAME, "copy\ta/Copied.class\npatch\ta/Patched.class\nadd\tb/Added.class\n".getBytes(StandardCharsets.UTF_8));
+        patch.put("a/Patched.class", diff(original, patched));
+        patch.put("b/Added.class", added);
+        final Path patchFile = this.writeZip("patch.zip", patch);
+
+        final Path output = this.patch(oldFile, patchFile);
+        try (final ZipFile zip = new ZipFile(output.toFile())) {
+            assertEquals(List.of("a/Copied.class", "a/Patched.class", "b/Added.class"), names(zip));
+            assertArrayEquals(copied, read(zip, "a/Copied.class"));
+            assertArrayEquals(patched, read(zip, "a/Patched.class"));
+            assertArrayEquals(added, read(zip, "b/Added.class"));
+            assertEquals(ZipEntry.DEFLATED, zip.getEntry("a/Copied.class").getMethod());
+            // Stored, so the output doesn't depend on the zlib version
+            assertEquals(ZipEntry.STORED, zip.getEntry("a/Patched.class").getMethod());
+            assertNull(zip.getEntry("a/Removed.class"));
+        }
+    }
+
+    /**
+     * More patched entries than are patched ahead of the one being written, they still end up in order.
+     */
+    @Test
+    void manyEntriesKeepTheirOrder() throws Exception {
+        final Map<String, byte[]> old = new LinkedHashMap<>();
+        final Map<String, byte[]> patch = new LinkedHashMap<>();
+        final var index = new StringBuilder();
+        final var expected = new ArrayList<byte[]>();
+        for (int i = 0; i < 300; i++) {
+            final String name = "entry" + i + ".class";
+            final byte[] original = random(i, 200 + i);
+            final byte[] patched = random(i + 1000, 100 + i);
+            old.put(name, original);
+            patch.put(name, diff(original, patched));
+            index.append("patch\t").append(name).append('\n');
+            expected.add(patched);
+        }
+        patch.put(JarPatcher.INDEX_NAME, index.toString().getBytes(StandardCharsets.UTF_8));
+
+        final Path output = this.patch(this.writeZip("old.jar", old), this.writeZip("patch.zip", patch));
+        try (final ZipFile zip = new ZipFile(output.toFile())) {
+            final List<String> names = names(zip);
+            assertEquals(300, names.size());
+            for (int i = 0; i < 300; i++) {
+                assertEquals("entry" + i + ".class", names.get(i));
+                assertArrayEquals(expected.get(i), read(zip, names.get(i)));
+            }
+        }
+    }
+
+    @Test
+    void missingIndex() throws Exception {
+        final Path oldFile = this.writeZip("old.jar", Map.of("a.class", random(1, 10)));
+        final Path patchFile = this.writeZip("patch.zip", Map.of("a.class", random(2, 10)));
+        assertThrows(ZipException.class, () -> this.patch(oldFile, patchFile));
+    }
+
+    @Test
+    void unknownOperation() throws Exception {
+        final Path oldFile = this.writeZip("old.jar", Map.of("a.class", random(1, 10)));
+        final Path patchFile = this.writeZip("patch.zip", Map.of(JarPatcher.INDEX_NAME, "move\ta.class\n".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(ZipException.class, () -> this.patch(oldFile, patchFile));
+    }
+
+    @Test
+    void missingEntry() throws Exception {
+        final Path oldFile = this.writeZip("old.jar", Map.of("a.class", random(1, 10)));
+        final Path patchFile = this.writeZip("patch.zip", Map.of(JarPatcher.INDEX_NAME, "copy\tb.class\n".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(ZipException.class, () -> this.patch(oldFile, patchFile));
+    }
+
+    private Path patch(final Path oldFile, final Path patchFile) throws IOException {
+        final Path output = this.dir.resolve("patched.jar");
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (final OutputStream out = Files.newOutputStream(output)) {
+            JarPatcher.patch(oldFile, patchFile, out, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+        return output;
+    }
+
+    private Path writeZip(final String name, final Map<String, byte[]> entries) throws IOException {
+        final Path file = this.dir.resolve(name);
+        try (final ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(file))) {
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue());
+            }
+        }
+        return file;
+    }
+
+    private static byte[] diff(final byte[] original, final byte[] patched) throws Exception {
+        final var out = new ByteArrayOutputStream();
+        Diff.diff(original, patched, out);
+        return out.toByteArray();
+    }
+
+    private static List<String> names(final ZipFile zip) {
+        final var names = new ArrayList<String>();
+        for (final ZipEntry entry : Collections.list(zip.entries())) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+
+    private static byte[] read(final ZipFile zip, final String name) throws IOException {
+        try (final InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,119 @@
+package io.papermc.paperclip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemoryFilesTest {
+
+    private static final long MIB = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void parseBudget() {
+        assertEquals(64 * MIB, MemoryFiles.parseBudget("64"));
+        assertEquals(64 * MIB, MemoryFiles.parseBudget("64m"));
+        assertEquals(64 * MIB, MemoryFiles.parseBudget(" 64M "));
+        assertEquals(2 * 1024 * MIB, MemoryFiles.parseBudget("2g"));
+        assertEquals(0, MemoryFiles.parseBudget("0"));
+    }
+
+    @Test
+    void parseInvalidBudget() {
+        assertEquals(-1, MemoryFiles.parseBudget("64mb"));
+        assertEquals(-1, MemoryFiles.parseBudget("1.5g"));
+        assertEquals(-1, MemoryFiles.parseBudget("-64"));
+        assertEquals(-1, MemoryFiles.parseBudget(""));
+        assertEquals(-1, MemoryFiles.parseBudget(Long.MAX_VALUE + "g"));
+    }
+
+    @Test
+    void outputOfKnownSize() throws Exception {
+        final byte[] data = random(1, 100_000);
+        final var budget = new MemoryFiles.Budget(MIB);
+        final var output = new MemoryFiles.Output("versions/server.jar", this.dir.resolve("server.jar"), data.length, budget);
+        try (output) {
+            output.write(data[0]);
+            output.write(data, 1, data.length - 1);
+        }
+
+        assertTrue(output.inMemory());
+        assertEquals(data.length, output.size());
+        assertEquals(data.length, budget.used());
+        assertArrayEquals(data, Files.readAllBytes(output.toDisk()));
+
+        output.discard();
+        assertEquals(0, budget.used());
+        this.assertNoFiles();
+    }
+
+    @Test
+    void outputOfUnknownSize() throws Exception {
+        final byte[] data = random(2, 300_000);
+        final var budget = new MemoryFiles.Budget(4 * MIB);
+        final var output = new MemoryFiles.Output("versions/server.jar", this.dir.resolve("server.jar"), -1, budget);
+        try (output) {
+            writeInChunks(output, data);
+        }
+
+        // Grown by doubling, then trimmed to the size of the file
+        assertTrue(output.inMemory());
+        assertEquals(data.length, budget.used());
+        assertArrayEquals(data, Files.readAllBytes(output.toDisk()));
+        output.discard();
+        assertEquals(0, budget.used());
+    }
+
+    @Test
+    void outputOverBudgetGoesToDisk() throws Exception {
+        final byte[] data = random(3, 300_000);
+        // Room for the first buffer, but not for it and the doubled one
+        final var budget = new MemoryFiles.Budget(400_000);
+        final Path target = this.dir.resolve("server.jar");
+        final var output = new MemoryFiles.Output("versions/server.jar", target, -1, budget);
+        try (output) {
+            writeInChunks(output, data);
+        }
+
+        assertFalse(output.inMemory());
+        assertEquals(0, budget.used());
+        final Path tempFile = output.toDisk();
+        assertEquals(target.getParent(), tempFile.getParent());
+        assertArrayEquals(data, Files.readAllBytes(tempFile));
+        assertFalse(Files.exists(target));
+
+        output.discard();
+        this.assertNoFiles();
+    }
+
+    // As a patch is written, rather than all at once
+    private static void writeInChunks(final OutputStream out, final byte[] data) throws IOException {
+        for (int offset = 0; offset < data.length; offset += 8192) {
+            out.write(data, offset, Math.min(8192, data.length - offset));
+        }
+    }
+
+    private void assertNoFiles() throws Exception {
+        try (final Stream<Path> files = Files.list(this.dir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,91 @@
+package io.papermc.paperclip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Reads jars through {@code paperclip:} URLs. The tests don't run from a jar, so the jars are added from memory the
+ * way {@link MemoryFiles} adds them.
+ */
+class NestedJarsTest {
+
+    private static final String MARKER = "io/papermc/paperclip/JarClassLoaderTest$Marker.class";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void classesAndResourcesAreReadInPlace() throws Exception {
+        final URL url = NestedJars.add("memory/classes.jar", jar());
+        assertEquals("paperclip:/memory/classes.jar", url.toString());
+
+        try (final JarClassLoader loader = new JarClassLoader(new URL[] {url}, null)) {
+            final Class<?> marker = loader.loadClass("io.papermc.paperclip.JarClassLoaderTest$Marker");
+            assertSame(loader, marker.getClassLoader());
+            assertEquals(url, marker.getProtectionDomain().getCodeSource().getLocation());
+
+            final URL resource = loader.getResource("data.txt");
+            assertEquals("paperclip:/memory/classes.jar!/data.txt", resource.toString());
+            try (final InputStream in = resource.openStream()) {
+                assertEquals("data", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    void jarUrlReadsWholeJar() throws Exception {
+        final ByteBuffer data = jar();
+        final URL url = NestedJars.add("memory/whole.jar", data);
+
+        final byte[] expected = new byte[data.remaining()];
+        data.duplicate().get(expected);
+        try (final InputStream in = url.openStream()) {
+            assertArrayEquals(expected, in.readAllBytes());
+        }
+        assertEquals(expected.length, url.openConnection().getContentLengthLong());
+    }
+
+    @Test
+    void unknownJar() throws Exception {
+        assertThrows(FileNotFoundException.class, () -> NestedJars.url("memory/missing.jar", "data.txt").openStream());
+        NestedJars.add("memory/known.jar", jar());
+        assertThrows(FileNotFoundException.class, () -> NestedJars.url("memory/known.jar", "missing.txt").openStream());
+    }
+
+    @Test
+    void notRunningFromJar() {
+        // Extracted as usual
+        assertNull(NestedJars.find("/META-INF/libraries/a.jar", new byte[32], ValidationIndex.load(this.dir, false)));
+    }
+
+    // A direct buffer, like the ones MemoryFiles writes into
+    private static ByteBuffer jar() throws IOException {
+        final var bytes = new ByteArrayOutputStream();
+        try (final JarOutputStream out = new JarOutputStream(bytes)) {
+            out.putNextEntry(new JarEntry(MARKER));
+            try (final InputStream in = NestedJarsTest.class.getResourceAsStream("/" + MARKER)) {
+                in.transferTo(out);
+            }
+            out.putNextEntry(new JarEntry("data.txt"));
+            out.write("data".getBytes(StandardCharsets.UTF_8));
+        }
+        final byte[] jar = bytes.toByteArray();
+        return ByteBuffer.allocateDirect(jar.length).put(jar).flip();
+    }
+}
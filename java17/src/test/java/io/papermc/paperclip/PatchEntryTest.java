@@ -0,0 +1,114 @@
+package io.papermc.paperclip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Applies a patch with an upgrade from the output of a previous build, see {@link PatchEntry#applyPatch}. The patches
+ * are in {@code META-INF/upgradetest}: {@code server.patch} is a valid bsdiff patch, {@code truncated.patch} is its
+ * first half and {@code corrupt.patch} has its blocks overwritten.
+ */
+class PatchEntryTest {
+
+    private static final String LOCATION = "upgradetest";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void upgradeFromPreviousOutput() throws Exception {
+        final byte[] vanilla = random(96);
+        // Without the vanilla entry in the original jar, only the upgrade can produce the output
+        final URL url = this.apply(vanilla, null, "server.patch");
+        assertArrayEquals(expectedOutput(vanilla), Files.readAllBytes(Path.of(url.toURI())));
+    }
+
+    @Test
+    void truncatedUpgradeFallsBackToOriginal() throws Exception {
+        final byte[] vanilla = random(96);
+        final URL url = this.apply(vanilla, vanilla, "truncated.patch");
+        assertArrayEquals(expectedOutput(vanilla), Files.readAllBytes(Path.of(url.toURI())));
+    }
+
+    @Test
+    void corruptUpgradeFallsBackToOriginal() throws Exception {
+        final byte[] vanilla = random(96);
+        final URL url = this.apply(vanilla, vanilla, "corrupt.patch");
+        assertArrayEquals(expectedOutput(vanilla), Files.readAllBytes(Path.of(url.toURI())));
+    }
+
+    /**
+     * Applies {@code server.patch} to {@code vanilla}, with an upgrade applying {@code upgradePatch} to the previous
+     * output. The previous output holds the same bytes as {@code vanilla}, so a valid upgrade gives the same result.
+     *
+     * @param originalEntry the vanilla jar in the original jar, or {@code null} to leave it out
+     */
+    private URL apply(final byte[] vanilla, final byte[] originalEntry, final String upgradePatch) throws Exception {
+        final byte[] output = expectedOutput(vanilla);
+
+        final Path repoDir = this.dir.resolve("repo");
+        Files.createDirectories(repoDir.resolve(LOCATION));
+        Files.write(repoDir.resolve(LOCATION).resolve("previous.jar"), vanilla);
+
+        final Path originalFile = this.dir.resolve("original.jar");
+        try (final JarOutputStream out = new JarOutputStream(Files.newOutputStream(originalFile))) {
+            if (originalEntry != null) {
+                out.putNextEntry(new JarEntry("META-INF/" + LOCATION + "/vanilla.jar"));
+                out.write(originalEntry);
+            }
+        }
+
+        final byte[] outputHash = sha256(output);
+        final var patch = new PatchEntry(LOCATION, sha256(vanilla), resourceHash("server.patch"), outputHash,
+            "vanilla.jar", "server.patch", "server.jar", PatchEntry.Format.BSDIFF);
+        final var upgrade = new PatchEntry(LOCATION, sha256(vanilla), resourceHash(upgradePatch), outputHash,
+            "previous.jar", upgradePatch, "server.jar", PatchEntry.Format.BSDIFF);
+
+        final ValidationIndex index = ValidationIndex.load(repoDir, false);
+        try (final OriginalJar originalJar = new OriginalJar(originalFile)) {
+            final CompletableFuture<URL> result = patch.applyPatch(originalJar, new PatchEntry[] {upgrade}, repoDir, index, null, Runnable::run);
+            final URL url = Util.join(result);
+            assertEquals(repoDir.resolve(LOCATION).resolve("server.jar").toUri().toURL(), url);
+            return url;
+        }
+    }
+
+    private static byte[] expectedOutput(final byte[] vanilla) throws Exception {
+        final var out = new ByteArrayOutputStream();
+        io.sigpipe.jbsdiff.Patch.patch(vanilla, resource("server.patch"), out);
+        return out.toByteArray();
+    }
+
+    private static byte[] resource(final String name) throws IOException {
+        try (final InputStream in = PatchEntryTest.class.getResourceAsStream("/META-INF/" + LOCATION + "/" + name)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] resourceHash(final String name) throws IOException {
+        return sha256(resource(name));
+    }
+
+    private static byte[] sha256(final byte[] data) {
+        return Util.sha256Digest().digest(data);
+    }
+
+    private static byte[] random(final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,65 @@
+package io.papermc.paperclip;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UtilTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * More tasks than threads, each waiting for tasks of its own on the same executor, as verifying and patching do on
+     * the executor shared by all of setup.
+     */
+    @Test
+    void nestedInvokeAll() throws Exception {
+        final ExecutorService executor = Util.newExecutor("Paperclip-Test", 2);
+        try {
+            final var outer = new ArrayList<Util.IOTask<Integer>>();
+            for (int i = 0; i < 8; i++) {
+                outer.add(() -> {
+                    final var inner = new ArrayList<Util.IOTask<Integer>>();
+                    for (int j = 0; j < 8; j++) {
+                        inner.add(() -> 1);
+                    }
+                    return Util.invokeAll(executor, inner).stream().mapToInt(Integer::intValue).sum();
+                });
+            }
+
+            final List<Integer> results = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return Util.invokeAll(executor, outer);
+                } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }).get(10, TimeUnit.SECONDS);
+            assertEquals(List.of(8, 8, 8, 8, 8, 8, 8, 8), results);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Files written through a temp file end up with the permissions of any other new file, not just the owner's.
+     */
+    @Test
+    void tempFilePermissions() throws Exception {
+        if (Files.getFileAttributeView(this.dir, PosixFileAttributeView.class) == null) {
+            return;
+        }
+        final Path plain = Files.createFile(this.dir.resolve("plain.jar"));
+        final Path tempFile = Util.createTempFile(this.dir.resolve("target.jar"));
+        assertEquals(Files.getPosixFilePermissions(plain), Files.getPosixFilePermissions(tempFile));
+    }
+}
@@ -0,0 +1,203 @@
+package io.papermc.paperclip;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks files against the stamps {@link ValidationIndex} saves in the repo dir, reloading the index the way the next
+ * start does.
+ */
+class ValidationIndexTest {
+
+    private static final byte[] DATA = random(1, 10_000);
+    private static final byte[] HASH = Util.sha256Digest().digest(DATA);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void unchangedFileIsNotHashedAgain() throws Exception {
+        final Path file = this.write("a.jar", DATA);
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        assertTrue(index.isFileValid(file, HASH));
+        index.save();
+
+        // Same size and modification time, so the stamp is trusted and the new contents are never read
+        this.overwrite(file, random(2, DATA.length));
+        assertTrue(ValidationIndex.load(this.dir, false).isFileValid(file, HASH));
+    }
+
+    @Test
+    void modifiedFileIsHashedAgain() throws Exception {
+        final Path file = this.write("a.jar", DATA);
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        index.record(file, HASH);
+        index.save();
+
+        Files.write(file, random(2, DATA.length));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 60_000));
+        assertFalse(ValidationIndex.load(this.dir, false).isFileValid(file, HASH));
+    }
+
+    @Test
+    void stampForAnotherHash() throws Exception {
+        final Path file = this.write("a.jar", DATA);
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        assertTrue(index.isFileValid(file, HASH));
+        index.save();
+
+        // Left over from another build, the file has to be written again
+        assertFalse(ValidationIndex.load(this.dir, false).isFileValid(file, Util.sha256Digest().digest(random(2, 10))));
+    }
+
+    @Test
+    void strictVerifyIgnoresStamps() throws Exception {
+        final Path file = this.write("a.jar", DATA);
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        assertTrue(index.isFileValid(file, HASH));
+        index.save();
+
+        this.overwrite(file, random(2, DATA.length));
+        System.setProperty("paperclip.strictVerify", "true");
+        try {
+            assertFalse(ValidationIndex.load(this.dir, false).isFileValid(file, HASH));
+        } finally {
+            System.clearProperty("paperclip.strictVerify");
+        }
+    }
+
+    @Test
+    void unreadableIndexIsIgnored() throws Exception {
+        final Path file = this.write("a.jar", DATA);
+        Files.createDirectories(this.dir.resolve("cache"));
+        Files.writeString(this.dir.resolve("cache").resolve("validation.index"), "not an index\n");
+
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        assertTrue(index.isFileValid(file, HASH));
+        assertFalse(index.isFileValid(this.write("b.jar", random(2, 10)), HASH));
+    }
+
+    @Test
+    void backgroundVerifyTrustsNewFiles() throws Exception {
+        final Path file = this.write("a.jar", DATA);
+        final Path damaged = this.write("b.jar", random(2, DATA.length));
+        final ValidationIndex index = this.loadInBackground();
+        assertTrue(index.isFileValid(file, HASH));
+        // Only checked once the server is starting
+        assertTrue(index.isFileValid(damaged, HASH));
+    }
+
+    @Test
+    void backgroundVerifyChecksChangedFiles() throws Exception {
+        final Path file = this.write("a.jar", DATA);
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        assertTrue(index.isFileValid(file, HASH));
+        index.save();
+
+        Files.write(file, random(2, DATA.length));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 60_000));
+        assertFalse(this.loadInBackground().isFileValid(file, HASH));
+    }
+
+    @Test
+    void backgroundVerifyNeedsCaller() throws Exception {
+        final Path damaged = this.write("a.jar", random(2, DATA.length));
+        System.setProperty("paperclip.backgroundVerify", "true");
+        try {
+            assertFalse(ValidationIndex.load(this.dir, false).isFileValid(damaged, HASH));
+        } finally {
+            System.clearProperty("paperclip.backgroundVerify");
+        }
+    }
+
+    @Test
+    void backgroundVerifySavesStamps() throws Exception {
+        final Path file = this.write("a.jar", DATA);
+        final ValidationIndex index = this.loadInBackground();
+        assertTrue(index.isFileValid(file, HASH));
+
+        final Path indexFile = this.dir.resolve("cache").resolve("validation.index");
+        index.verifyInBackground();
+        for (int i = 0; i < 1000 && !Files.exists(indexFile); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(Files.exists(indexFile));
+
+        // Stamped once verified, so the next start trusts it without hashing it
+        this.overwrite(file, random(2, DATA.length));
+        assertTrue(ValidationIndex.load(this.dir, false).isFileValid(file, HASH));
+    }
+
+    @Test
+    void nestedJarIsHashedOnce() throws Exception {
+        final Path outer = this.dir.resolve("paperclip.jar");
+        Files.write(outer, new byte[] {1, 2, 3});
+
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        assertTrue(index.isNestedValid(outer, "META-INF/libraries/a.jar", ByteBuffer.wrap(DATA), HASH));
+        index.save();
+
+        // The same outer jar as before, so its nested jar isn't hashed again
+        final ValidationIndex reloaded = ValidationIndex.load(this.dir, false);
+        assertTrue(reloaded.isNestedValid(outer, "META-INF/libraries/a.jar", ByteBuffer.wrap(random(2, 10_000)), HASH));
+    }
+
+    @Test
+    void damagedNestedJar() throws Exception {
+        final Path outer = this.dir.resolve("paperclip.jar");
+        Files.write(outer, new byte[] {1, 2, 3});
+
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        assertFalse(index.isNestedValid(outer, "META-INF/libraries/a.jar", ByteBuffer.wrap(DATA, 0, DATA.length / 2), HASH));
+    }
+
+    @Test
+    void changedOuterJarIsHashedAgain() throws Exception {
+        final Path outer = this.dir.resolve("paperclip.jar");
+        Files.write(outer, new byte[] {1, 2, 3});
+
+        final ValidationIndex index = ValidationIndex.load(this.dir, false);
+        assertTrue(index.isNestedValid(outer, "META-INF/libraries/a.jar", ByteBuffer.wrap(DATA), HASH));
+        index.save();
+
+        Files.setLastModifiedTime(outer, FileTime.fromMillis(Files.getLastModifiedTime(outer).toMillis() + 60_000));
+        final ValidationIndex reloaded = ValidationIndex.load(this.dir, false);
+        assertFalse(reloaded.isNestedValid(outer, "META-INF/libraries/a.jar", ByteBuffer.wrap(random(2, 10_000)), HASH));
+    }
+
+    private ValidationIndex loadInBackground() {
+        System.setProperty("paperclip.backgroundVerify", "true");
+        try {
+            return ValidationIndex.load(this.dir, true);
+        } finally {
+            System.clearProperty("paperclip.backgroundVerify");
+        }
+    }
+
+    private Path write(final String name, final byte[] data) throws Exception {
+        return Files.write(this.dir.resolve(name), data);
+    }
+
+    /**
+     * Replaces the contents of {@code file} without changing its size or modification time.
+     */
+    private void overwrite(final Path file, final byte[] data) throws Exception {
+        final FileTime modified = Files.getLastModifiedTime(file);
+        Files.write(file, data);
+        Files.setLastModifiedTime(file, modified);
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
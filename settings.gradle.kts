@@ -3,4 +3,4 @@ plugins {
 }
 
 rootProject.name = "paperclip"
-include("java6", "java17")
+include("java6", "java17", "benchmarks")